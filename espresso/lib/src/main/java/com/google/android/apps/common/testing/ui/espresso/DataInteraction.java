@@ -54,6 +54,7 @@ public class DataInteraction {
   private Optional<Integer> atPosition = Optional.absent();
   private AdapterViewProtocol adapterViewProtocol = AdapterViewProtocols.standardProtocol();
   private Matcher<Root> rootMatcher = RootMatchers.DEFAULT;
+  private InteractionIdlingPolicy idlingPolicy = InteractionIdlingPolicy.DEFAULT;
 
   DataInteraction(Matcher<Object> dataMatcher) {
     this.dataMatcher = checkNotNull(dataMatcher);
@@ -103,6 +104,14 @@ public class DataInteraction {
     return this;
   }
 
+  /**
+   * Overrides the idling policies while loading the data and interacting with its view.
+   */
+  public DataInteraction withIdlingPolicy(InteractionIdlingPolicy idlingPolicy) {
+    this.idlingPolicy = checkNotNull(idlingPolicy);
+    return this;
+  }
+
   /**
    * Performs an action on the view after we force the data to be loaded.
    *
@@ -113,6 +122,7 @@ public class DataInteraction {
 
     return onView(makeTargetMatcher(adapterDataLoaderAction))
         .inRoot(rootMatcher)
+        .withIdlingPolicy(idlingPolicy)
         .perform(actions);
   }
 
@@ -126,6 +136,7 @@ public class DataInteraction {
 
     return onView(makeTargetMatcher(adapterDataLoaderAction))
         .inRoot(rootMatcher)
+        .withIdlingPolicy(idlingPolicy)
         .check(assertion);
   }
 
@@ -134,6 +145,7 @@ public class DataInteraction {
        new AdapterDataLoaderAction(dataMatcher, atPosition, adapterViewProtocol);
     onView(adapterMatcher)
       .inRoot(rootMatcher)
+      .withIdlingPolicy(idlingPolicy)
       .perform(adapterDataLoaderAction);
     return adapterDataLoaderAction;
   }
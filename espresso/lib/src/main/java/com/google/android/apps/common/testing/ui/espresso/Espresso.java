@@ -8,13 +8,18 @@ import android.view.ViewConfiguration;
 
 import com.google.android.apps.common.testing.ui.espresso.action.ViewActions;
 import com.google.android.apps.common.testing.ui.espresso.base.BaseLayerModule;
+import com.google.android.apps.common.testing.ui.espresso.base.HandlerThreadDiscovery;
+import com.google.android.apps.common.testing.ui.espresso.base.IdlingConditionRegistry;
 import com.google.android.apps.common.testing.ui.espresso.base.IdlingResourceRegistry;
+import com.google.android.apps.common.testing.ui.espresso.base.IdlingResourceTimeline;
 import com.google.android.apps.common.testing.ui.espresso.base.Screenshotter;
 import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables;
 
 import org.hamcrest.Matcher;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import dagger.ObjectGraph;
 
@@ -94,6 +99,49 @@ public final class Espresso {
         espressoGraph().get(IdlingResourceRegistry.class).registerLooper(looper, considerWaitIdle);
     }
 
+    /**
+     * Registers a group of non-UI thread Loopers (e.g. an app's HandlerThreads) for idle checking
+     * with the framework as a single resource with the given name, which is idle when all of the
+     * loopers are. Unlike registering each looper by itself, the loopers report going idle from
+     * their own threads; each check of the group's idleness still looks at the queue of every
+     * looper not known to be busy.
+     *
+     * @throws IllegalStateException if one of the loopers is the main looper.
+     */
+    public static void registerLoopersAsIdlingResource(String name, Looper... loopers) {
+        checkNotNull(loopers);
+        espressoGraph().get(IdlingResourceRegistry.class)
+                .registerLoopers(name, Arrays.asList(loopers));
+    }
+
+    /**
+     * Registers the app's HandlerThreads which the given discovery finds for idle checking with the
+     * framework, now and on each of its rescans, instead of registering each of their loopers by
+     * hand. Replaces any discovery started before.
+     */
+    public static void registerHandlerThreadsAsIdlingResources(HandlerThreadDiscovery discovery) {
+        espressoGraph().get(IdlingResourceRegistry.class).startLooperDiscovery(discovery);
+    }
+
+    /**
+     * Stops the discovery started by {@link #registerHandlerThreadsAsIdlingResources} and
+     * unregisters the loopers it found.
+     */
+    public static void unregisterDiscoveredHandlerThreads() {
+        espressoGraph().get(IdlingResourceRegistry.class).stopLooperDiscovery();
+    }
+
+    /**
+     * Registers an executor the app runs background work on (e.g. image loading, networking or
+     * database access) for idle checking with the framework, instead of wrapping that work in
+     * IdlingResources by hand. Works with ThreadPoolExecutors and ScheduledThreadPoolExecutors;
+     * delayed tasks which are not due soon do not keep the executor busy.
+     */
+    public static void registerExecutorAsIdlingResource(ThreadPoolExecutor executor) {
+        checkNotNull(executor);
+        espressoGraph().get(IdlingResourceRegistry.class).registerExecutor(executor);
+    }
+
     /**
      * Registers one or more {@link IdlingResource}s with the framework. It is expected, although not
      * strictly required, that this method will be called at test setup time prior to any interaction
@@ -109,6 +157,53 @@ public final class Espresso {
         }
     }
 
+    /**
+     * Unregisters {@link IdlingResource}s which were registered through
+     * {@link #registerIdlingResources}, e.g. in a test's tearDown.
+     */
+    public static void unregisterIdlingResources(IdlingResource... resources) {
+        checkNotNull(resources);
+        IdlingResourceRegistry registry = espressoGraph().get(IdlingResourceRegistry.class);
+        for (IdlingResource resource : resources) {
+            registry.unregister(resource);
+        }
+    }
+
+    /**
+     * Returns the busy and idle transitions of the registered {@link IdlingResource}s, e.g. to
+     * export a test's timeline in tearDown or to find the resources that dominate idle waits
+     * across a suite.
+     */
+    public static IdlingResourceTimeline getIdlingResourceTimeline() {
+        return espressoGraph().get(IdlingResourceRegistry.class).getTimeline();
+    }
+
+    /**
+     * Registers one or more {@link IdlingCondition}s with the framework. Espresso waits for every
+     * registered condition before each view operation, in the same pass as the main thread and
+     * the IdlingResources. When registering more than one condition, ensure that each has a
+     * unique name.
+     */
+    public static void registerIdlingConditions(IdlingCondition... conditions) {
+        checkNotNull(conditions);
+        IdlingConditionRegistry registry = espressoGraph().get(IdlingConditionRegistry.class);
+        for (IdlingCondition condition : conditions) {
+            registry.register(condition);
+        }
+    }
+
+    /**
+     * Unregisters {@link IdlingCondition}s which were registered through
+     * {@link #registerIdlingConditions}.
+     */
+    public static void unregisterIdlingConditions(IdlingCondition... conditions) {
+        checkNotNull(conditions);
+        IdlingConditionRegistry registry = espressoGraph().get(IdlingConditionRegistry.class);
+        for (IdlingCondition condition : conditions) {
+            registry.unregister(condition);
+        }
+    }
+
     /**
      * Changes the default {@link FailureHandler} to the given one.
      */
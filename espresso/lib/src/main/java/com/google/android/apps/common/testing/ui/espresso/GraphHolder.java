@@ -5,6 +5,7 @@ import static com.google.common.base.Preconditions.checkState;
 
 import com.google.android.apps.common.testing.testrunner.UsageTrackerRegistry;
 import com.google.android.apps.common.testing.ui.espresso.base.BaseLayerModule;
+import com.google.android.apps.common.testing.ui.espresso.base.IdlingConditionRegistry;
 import com.google.android.apps.common.testing.ui.espresso.base.IdlingResourceRegistry;
 
 import dagger.Module;
@@ -54,7 +55,7 @@ public final class GraphHolder {
 
   @Module(
     includes = BaseLayerModule.class,
-    injects = IdlingResourceRegistry.class
+    injects = {IdlingResourceRegistry.class, IdlingConditionRegistry.class}
   )
   static class EspressoModule {
   }
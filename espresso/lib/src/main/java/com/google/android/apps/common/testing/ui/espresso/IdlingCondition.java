@@ -0,0 +1,44 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+/**
+ * A condition Espresso waits for before each view operation, which tells Espresso when it is met
+ * rather than being asked over and over.
+ *
+ * Meant for background work whose owner knows exactly when it finishes (e.g. a job queue, a
+ * database writer or a network client). Espresso checks {@link #isIdleNow()} once when it starts
+ * waiting; if the condition is not met it hands over a signal and is not asked again until the
+ * signal has been run. Any number of conditions are waited for in the same pass as Espresso's own
+ * conditions (the main queue, AsyncTasks and {@link IdlingResource}s).
+ */
+public interface IdlingCondition {
+
+  /**
+   * Returns the name of the condition (used for logging and idempotency of registration).
+   */
+  public String getName();
+
+  /**
+   * Returns {@code true} if the condition is met at this moment. Espresso will <b>always</b> call
+   * this method from the main thread, therefore it should be non-blocking and return immediately.
+   */
+  public boolean isIdleNow();
+
+  /**
+   * Asks the condition to run the given signal once it is met. Espresso will call this method:
+   * <ul>
+   * <li>from the main thread, but you are free to run the signal from any thread
+   * <li>only after {@link #isIdleNow()} returned {@code false}
+   * <li>at most once until {@link #cancelIdleNotification()} is called
+   * </ul>
+   * <br>
+   * Running the signal more than once, or after the notification was cancelled, is harmless: the
+   * signal is bound to a single wait and ignored afterwards.
+   */
+  public void notifyWhenIdle(Runnable signal);
+
+  /**
+   * Called from the main thread once Espresso stops waiting, whether or not the signal was run.
+   * The condition should drop any signal it still holds.
+   */
+  public void cancelIdleNotification();
+}
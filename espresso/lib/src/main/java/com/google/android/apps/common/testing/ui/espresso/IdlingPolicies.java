@@ -1,5 +1,9 @@
 package com.google.android.apps.common.testing.ui.espresso;
 
+import com.google.android.apps.common.testing.ui.espresso.base.IdleWaitStatistics;
+import com.google.common.base.Optional;
+
+import java.io.File;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.android.apps.common.testing.ui.espresso.assertion.ViewAssertions.matches;
@@ -43,6 +47,21 @@ public final class IdlingPolicies {
 
     private static volatile ViewAssertion viewPerformPrecondition = matches(isDisplayed());
 
+    private static volatile boolean virtualTimeEnabled = false;
+
+    private static volatile long mainThreadFrameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private static volatile Optional<IdleWaitStatistics> idleWaitStatistics = Optional.absent();
+
+    // thread confined: set on the main thread while an interaction's work runs there.
+    private static final ThreadLocal<InteractionIdlingPolicy> interactionIdlingPolicy =
+            new ThreadLocal<InteractionIdlingPolicy>() {
+                @Override
+                protected InteractionIdlingPolicy initialValue() {
+                    return InteractionIdlingPolicy.DEFAULT;
+                }
+            };
+
     /**
      * Updates the IdlingPolicy used in UiController.loopUntil to detect AppNotIdleExceptions.
      *
@@ -84,6 +103,103 @@ public final class IdlingPolicies {
                 .build();
     }
 
+    /**
+     * Enables or disables virtual time (off by default).
+     *
+     * With virtual time UiController.loopMainThreadForAtLeast does not sleep: once the app is
+     * otherwise idle, messages that would become due before the requested time has passed are
+     * moved forward and run right away, in their original order. Messages due after that point
+     * are left alone, so a wait never runs anything earlier than it would have run in real time
+     * relative to the end of the wait.
+     *
+     * Code that reads SystemClock directly (animations, event timestamps) still sees real time.
+     */
+    public static void setVirtualTimeEnabled(boolean enabled) {
+        virtualTimeEnabled = enabled;
+    }
+
+    public static boolean isVirtualTimeEnabled() {
+        return virtualTimeEnabled;
+    }
+
+    /**
+     * Updates how long a single main thread message may take before Espresso's idle loop flags
+     * it as over the frame budget (16ms by default).
+     *
+     * @param budget the longest a dispatch may take.
+     * @param unit the unit of the budget value.
+     */
+    public static void setMainThreadFrameBudget(long budget, TimeUnit unit) {
+        checkArgument(budget > 0);
+        checkNotNull(unit);
+        mainThreadFrameBudgetNanos = unit.toNanos(budget);
+    }
+
+    public static long getMainThreadFrameBudgetNanos() {
+        return mainThreadFrameBudgetNanos;
+    }
+
+    /**
+     * Applies the given overrides to everything Espresso waits for on the calling thread, until
+     * another policy is set. ViewInteraction and DataInteraction set (and restore) this around
+     * each piece of work they run on the main thread.
+     *
+     * @param policy the overrides, InteractionIdlingPolicy.DEFAULT for none.
+     */
+    public static void setInteractionIdlingPolicy(InteractionIdlingPolicy policy) {
+        interactionIdlingPolicy.set(checkNotNull(policy));
+    }
+
+    /**
+     * Returns the overrides in effect on the calling thread.
+     */
+    public static InteractionIdlingPolicy getInteractionIdlingPolicy() {
+        return interactionIdlingPolicy.get();
+    }
+
+    /**
+     * Learns how long idle waits usually take - per resumed activity and per IdlingResource - and
+     * times out a wait well before the fixed timeouts once it takes far longer than it usually
+     * does (off by default).
+     *
+     * A learned timeout is the longest wait seen - rounded up to a power of two milliseconds, and
+     * forgotten after about ten runs in which it did not happen again - times 3, but at least 10
+     * seconds. It never exceeds the master or IdlingResource timeout and is only used once a
+     * screen or resource was seen in several runs. Timeouts set by an InteractionIdlingPolicy take
+     * precedence.
+     *
+     * @param statisticsFile where the wait durations are kept across runs, e.g. a file in the test
+     *     output directory.
+     */
+    public static void enableAdaptiveTimeouts(File statisticsFile) {
+        enableAdaptiveTimeouts(statisticsFile, 3, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Like {@link #enableAdaptiveTimeouts(File)}, with the given tuning.
+     *
+     * @param statisticsFile where the wait durations are kept across runs.
+     * @param safetyFactor what the longest wait is multiplied with, at least 1.
+     * @param minTimeout the shortest timeout ever used.
+     * @param unit the unit of minTimeout.
+     */
+    public static void enableAdaptiveTimeouts(File statisticsFile, double safetyFactor,
+            long minTimeout, TimeUnit unit) {
+        idleWaitStatistics = Optional.of(
+                new IdleWaitStatistics(statisticsFile, safetyFactor, minTimeout, unit));
+    }
+
+    public static void disableAdaptiveTimeouts() {
+        idleWaitStatistics = Optional.absent();
+    }
+
+    /**
+     * Returns the statistics adaptive timeouts are based on, if enabled.
+     */
+    public static Optional<IdleWaitStatistics> getIdleWaitStatistics() {
+        return idleWaitStatistics;
+    }
+
     public static double getViewCheckTimeout() {
         return viewCheckTimeout;
     }
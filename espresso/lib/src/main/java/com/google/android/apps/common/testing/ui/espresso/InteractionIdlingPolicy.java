@@ -0,0 +1,165 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overrides the global idling policies (see {@link IdlingPolicies}) for a single interaction.
+ *
+ * Each kind of background work Espresso waits for can be skipped - Espresso then does not even
+ * look at it - or given its own timeout. The same goes for individual {@link IdlingResource}s,
+ * by name. Anything not overridden here falls back to the global policies.
+ *
+ * <pre>
+ * onView(withId(R.id.refresh))
+ *     .withIdlingPolicy(new InteractionIdlingPolicy.Builder()
+ *         .skip(InteractionIdlingPolicy.Condition.ASYNC_TASKS)
+ *         .withIdlingResourceTimeout("ImageLoader", 2, TimeUnit.SECONDS)
+ *         .build())
+ *     .perform(click());
+ * </pre>
+ */
+public final class InteractionIdlingPolicy {
+
+  /**
+   * The kinds of background work Espresso waits for besides the main thread.
+   */
+  public enum Condition {
+    /** The SDK's AsyncTask pool. */
+    ASYNC_TASKS,
+    /** The support library's AsyncTask pool, if the app uses it. */
+    COMPAT_ASYNC_TASKS,
+    /** All registered {@link IdlingResource}s. */
+    IDLING_RESOURCES,
+    /** All registered {@link IdlingCondition}s. */
+    IDLING_CONDITIONS
+  }
+
+  /**
+   * A policy which overrides nothing.
+   */
+  public static final InteractionIdlingPolicy DEFAULT = new Builder().build();
+
+  private final Set<Condition> skipped;
+  // by Condition ordinal, 0 when the global policy applies.
+  private final long[] timeoutNanos;
+  private final long mainThreadTimeoutNanos;
+  private final Set<String> skippedResources;
+  private final Map<String, Long> resourceTimeoutNanos;
+
+  private InteractionIdlingPolicy(Builder builder) {
+    this.skipped = EnumSet.copyOf(builder.skipped);
+    this.timeoutNanos = builder.timeoutNanos.clone();
+    this.mainThreadTimeoutNanos = builder.mainThreadTimeoutNanos;
+    this.skippedResources = ImmutableSet.copyOf(builder.skippedResources);
+    this.resourceTimeoutNanos = ImmutableMap.copyOf(builder.resourceTimeoutNanos);
+  }
+
+  /**
+   * Whether Espresso should not wait for the given kind of work at all.
+   */
+  public boolean skips(Condition condition) {
+    return skipped.contains(condition);
+  }
+
+  /**
+   * Returns how long Espresso may wait for the given kind of work, or 0 if the global policy
+   * applies.
+   */
+  public long getTimeoutNanos(Condition condition) {
+    return timeoutNanos[condition.ordinal()];
+  }
+
+  /**
+   * Returns how long Espresso may loop the main thread in total, or 0 if the master policy
+   * applies.
+   */
+  public long getMainThreadTimeoutNanos() {
+    return mainThreadTimeoutNanos;
+  }
+
+  /**
+   * Whether Espresso should ignore the IdlingResource with the given name.
+   */
+  public boolean skipsIdlingResource(String name) {
+    return !skippedResources.isEmpty() && skippedResources.contains(name);
+  }
+
+  /**
+   * Whether Espresso should ignore any IdlingResource at all.
+   */
+  public boolean skipsIdlingResources() {
+    return !skippedResources.isEmpty();
+  }
+
+  /**
+   * Returns how long the IdlingResource with the given name may stay busy, or 0 if the
+   * IdlingResource policies apply.
+   */
+  public long getIdlingResourceTimeoutNanos(String name) {
+    if (resourceTimeoutNanos.isEmpty()) {
+      return 0;
+    }
+    Long timeout = resourceTimeoutNanos.get(name);
+    return null == timeout ? 0 : timeout;
+  }
+
+  /**
+   * Builds an {@link InteractionIdlingPolicy}.
+   */
+  public static final class Builder {
+    private final Set<Condition> skipped = EnumSet.noneOf(Condition.class);
+    private final long[] timeoutNanos = new long[Condition.values().length];
+    private long mainThreadTimeoutNanos = 0;
+    private final Set<String> skippedResources = Sets.newHashSet();
+    private final Map<String, Long> resourceTimeoutNanos = Maps.newHashMap();
+
+    public Builder skip(Condition condition) {
+      skipped.add(checkNotNull(condition));
+      return this;
+    }
+
+    public Builder withTimeout(Condition condition, long timeout, TimeUnit unit) {
+      checkNotNull(condition);
+      timeoutNanos[condition.ordinal()] = toNanos(timeout, unit);
+      return this;
+    }
+
+    /**
+     * Limits how long the main thread may be looped (instead of the master policy's timeout).
+     */
+    public Builder withMainThreadTimeout(long timeout, TimeUnit unit) {
+      mainThreadTimeoutNanos = toNanos(timeout, unit);
+      return this;
+    }
+
+    public Builder skipIdlingResource(String name) {
+      skippedResources.add(checkNotNull(name));
+      return this;
+    }
+
+    public Builder withIdlingResourceTimeout(String name, long timeout, TimeUnit unit) {
+      resourceTimeoutNanos.put(checkNotNull(name), toNanos(timeout, unit));
+      return this;
+    }
+
+    public InteractionIdlingPolicy build() {
+      return new InteractionIdlingPolicy(this);
+    }
+
+    private static long toNanos(long timeout, TimeUnit unit) {
+      checkArgument(timeout > 0);
+      return checkNotNull(unit).toNanos(timeout);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link IdlingResource} which can only tell whether it is idle right now and never calls its
+ * {@link IdlingResource.ResourceCallback}, e.g. a wrapper around a third party component.
+ * <br><br>
+ * While Espresso waits for such a resource it asks isIdleNow() on the main thread, first after the
+ * policy's initial delay and then after exponentially growing, jittered delays, and reports the
+ * transition to idle on the resource's behalf.
+ */
+public interface PolledIdlingResource extends IdlingResource {
+
+  /**
+   * Returns how Espresso should poll this resource. Called once, when the resource is registered.
+   */
+  public PollingPolicy getPollingPolicy();
+
+  /**
+   * How often a {@link PolledIdlingResource} is asked whether it is idle.
+   */
+  public static final class PollingPolicy {
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    private PollingPolicy(Builder builder) {
+      this.initialDelayMillis = builder.initialDelayMillis;
+      this.maxDelayMillis = builder.maxDelayMillis;
+      this.multiplier = builder.multiplier;
+      this.jitter = builder.jitter;
+    }
+
+    /**
+     * Returns the delay before the next poll of a wait.
+     *
+     * @param attempt how many polls the wait has made so far.
+     * @param random a value in [0, 1) choosing where within the jitter the delay falls.
+     */
+    public long getDelayMillis(int attempt, double random) {
+      double delay = initialDelayMillis * Math.pow(multiplier, attempt);
+      delay = Math.min(delay, maxDelayMillis);
+      delay *= 1 + jitter * (2 * random - 1);
+      return Math.max(1, Math.round(delay));
+    }
+
+    public Builder toBuilder() {
+      return new Builder(this);
+    }
+
+    /**
+     * Builds a {@link PollingPolicy}: by default polls after 10ms, doubling up to 1s, with 20%
+     * jitter.
+     */
+    public static final class Builder {
+      private long initialDelayMillis = 10;
+      private long maxDelayMillis = TimeUnit.SECONDS.toMillis(1);
+      private double multiplier = 2;
+      private double jitter = 0.2;
+
+      public Builder() { }
+
+      private Builder(PollingPolicy copy) {
+        this.initialDelayMillis = copy.initialDelayMillis;
+        this.maxDelayMillis = copy.maxDelayMillis;
+        this.multiplier = copy.multiplier;
+        this.jitter = copy.jitter;
+      }
+
+      public Builder withInitialDelay(long delay, TimeUnit unit) {
+        checkArgument(delay > 0);
+        this.initialDelayMillis = Math.max(1, checkNotNull(unit).toMillis(delay));
+        return this;
+      }
+
+      public Builder withMaxDelay(long delay, TimeUnit unit) {
+        checkArgument(delay > 0);
+        this.maxDelayMillis = Math.max(1, checkNotNull(unit).toMillis(delay));
+        return this;
+      }
+
+      /**
+       * Sets how much each delay grows over the previous one, at least 1 (no growth).
+       */
+      public Builder withMultiplier(double multiplier) {
+        checkArgument(multiplier >= 1, "multiplier must be at least 1: %s", multiplier);
+        this.multiplier = multiplier;
+        return this;
+      }
+
+      /**
+       * Sets by what fraction each delay may randomly differ, in [0, 1), so that many resources
+       * polled at once do not stay in lockstep.
+       */
+      public Builder withJitter(double jitter) {
+        checkArgument(jitter >= 0 && jitter < 1, "jitter must be in [0, 1): %s", jitter);
+        this.jitter = jitter;
+        return this;
+      }
+
+      public PollingPolicy build() {
+        checkArgument(initialDelayMillis <= maxDelayMillis,
+            "initial delay (%sms) exceeds max delay (%sms)", initialDelayMillis, maxDelayMillis);
+        return new PollingPolicy(this);
+      }
+    }
+  }
+}
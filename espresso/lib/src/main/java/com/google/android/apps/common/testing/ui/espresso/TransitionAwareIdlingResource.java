@@ -0,0 +1,39 @@
+package com.google.android.apps.common.testing.ui.espresso;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link IdlingResource} which also tells Espresso when it becomes busy, and optionally when it
+ * expects to be idle again.
+ * <br><br>
+ * Espresso has to ask a plain IdlingResource whether it went busy (by calling isIdleNow) every time
+ * it is about to wait. A TransitionAwareIdlingResource is never asked: Espresso relies on its
+ * callbacks alone, so it must report every transition. Resources which know how long their work
+ * takes can say so, and Espresso checks on them at that time even if they do not report going
+ * idle.
+ */
+public interface TransitionAwareIdlingResource extends IdlingResource {
+
+  /**
+   * Registers the given {@link TransitionCallback} with the resource. Espresso calls this instead
+   * of {@link #registerIdleTransitionCallback}, from the main thread, once. The callback's methods
+   * may be called from any thread.
+   */
+  public void registerTransitionCallback(TransitionCallback callback);
+
+  /**
+   * Registered by a {@link TransitionAwareIdlingResource} to notify Espresso of its transitions.
+   */
+  public interface TransitionCallback extends ResourceCallback {
+    /**
+     * Called when the resource goes from idle to busy.
+     */
+    public void onTransitionToBusy();
+
+    /**
+     * Called by a busy resource which expects to be idle after the given delay. Espresso asks the
+     * resource whether it is idle once the delay has passed.
+     */
+    public void onIdleExpected(long delay, TimeUnit unit);
+  }
+}
@@ -59,7 +59,8 @@ public interface UiController {
    * Loops the main thread for a specified period of time.
    *
    *  Control may not return immediately, instead it'll return after the time has passed and the
-   * queue is in an idle state again.
+   * queue is in an idle state again. If virtual time is enabled (see
+   * {@link IdlingPolicies#setVirtualTimeEnabled(boolean)}) the time passes virtually instead.
    *
    * @param millisDelay time to spend in looping the main thread
    */
@@ -70,6 +70,7 @@ public final class ViewInteraction {
 
     private double timeout;
     private ViewAssertion defaultPrecondition;
+    private InteractionIdlingPolicy idlingPolicy = InteractionIdlingPolicy.DEFAULT;
 
     @SuppressLint("NewApi")
     @Inject
@@ -135,6 +136,14 @@ public final class ViewInteraction {
         return this;
     }
 
+    /**
+     * Overrides the idling policies for the rest of this interaction's perform/check calls.
+     */
+    public ViewInteraction withIdlingPolicy(InteractionIdlingPolicy idlingPolicy) {
+        this.idlingPolicy = checkNotNull(idlingPolicy);
+        return this;
+    }
+
     private void takeScreenshot() {
         File f = new File(outdir, String.format("snapshot-%s.jpg", dateFormat.format(new Date())));
         try {
@@ -284,8 +293,20 @@ public final class ViewInteraction {
         return this;
     }
 
-    private void runSynchronouslyOnUiThread(Runnable action) {
-        FutureTask<Void> uiTask = new FutureTask<Void>(action, null);
+    private void runSynchronouslyOnUiThread(final Runnable action) {
+        final InteractionIdlingPolicy policy = idlingPolicy;
+        FutureTask<Void> uiTask = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                InteractionIdlingPolicy previous = IdlingPolicies.getInteractionIdlingPolicy();
+                IdlingPolicies.setInteractionIdlingPolicy(policy);
+                try {
+                    action.run();
+                } finally {
+                    IdlingPolicies.setInteractionIdlingPolicy(previous);
+                }
+            }
+        }, null);
         mainThreadExecutor.execute(uiTask);
         try {
             uiTask.get();
@@ -7,9 +7,10 @@ import com.google.android.apps.common.testing.ui.espresso.PerformException;
 import com.google.android.apps.common.testing.ui.espresso.UiController;
 import com.google.android.apps.common.testing.ui.espresso.ViewAction;
 import com.google.android.apps.common.testing.ui.espresso.util.HumanReadables;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceBuffer;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceEvent;
 import com.google.common.base.Optional;
 
-import android.util.Log;
 import android.view.View;
 import android.view.ViewConfiguration;
 import android.webkit.WebView;
@@ -21,8 +22,6 @@ import org.hamcrest.Matcher;
  */
 public final class GeneralClickAction implements ViewAction {
 
-    private final static String TAG = GeneralClickAction.class.getSimpleName();
-
     private final CoordinatesProvider coordinatesProvider;
     private final Tapper tapper;
     private final PrecisionDescriber precisionDescriber;
@@ -82,7 +81,8 @@ public final class GeneralClickAction implements ViewAction {
 
         while (status != Tapper.Status.SUCCESS && loopCount < 3) {
             try {
-                Log.i(TAG, String.format("Sending tap to %f, %f (%f, %f)", coordinates[0], coordinates[1], precision[0], precision[1]));
+                TraceBuffer.getInstance().record(
+                        TraceEvent.TAP_SENT, (long) coordinates[0], (long) coordinates[1]);
                 status = tapper.sendTap(uiController, coordinates, precision);
             } catch (RuntimeException re) {
                 throw new PerformException.Builder()
@@ -93,7 +93,8 @@ public final class GeneralClickAction implements ViewAction {
             }
 
             // ensures that all work enqueued to process the tap has been run.
-            Log.i(TAG, String.format("status: %s, looping main thread for at least %d ms", status, ViewConfiguration.getPressedStateDuration()));
+            TraceBuffer.getInstance().record(TraceEvent.TAP_STATUS, status.ordinal(),
+                    ViewConfiguration.getPressedStateDuration());
             uiController.loopMainThreadForAtLeast(ViewConfiguration.getPressedStateDuration());
             if (status == Tapper.Status.WARNING) {
                 if (rollbackAction.isPresent()) {
@@ -119,7 +120,8 @@ public final class GeneralClickAction implements ViewAction {
         if (tapper == Tap.SINGLE && view instanceof WebView) {
             // WebViews will not process click events until double tap
             // timeout. Not the best place for this - but good for now.
-            Log.i(TAG, String.format("WebView! Must wait %d ms to process the single tap.", ViewConfiguration.getDoubleTapTimeout()));
+            TraceBuffer.getInstance().record(
+                    TraceEvent.WEBVIEW_TAP_DELAY, ViewConfiguration.getDoubleTapTimeout(), 0);
             uiController.loopMainThreadForAtLeast(ViewConfiguration.getDoubleTapTimeout());
         }
     }
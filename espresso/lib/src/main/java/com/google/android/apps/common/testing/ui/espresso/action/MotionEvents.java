@@ -6,6 +6,8 @@ import com.google.android.apps.common.testing.testrunner.UsageTrackerRegistry;
 import com.google.android.apps.common.testing.ui.espresso.InjectEventSecurityException;
 import com.google.android.apps.common.testing.ui.espresso.PerformException;
 import com.google.android.apps.common.testing.ui.espresso.UiController;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceBuffer;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceEvent;
 import com.google.common.annotations.VisibleForTesting;
 
 import android.os.SystemClock;
@@ -61,17 +63,18 @@ final class MotionEvents {
                 long isTapAt = downTime + (ViewConfiguration.getTapTimeout() / 2);
 
                 boolean injectEventSucceeded = uiController.injectMotionEvent(motionEvent);
-                Log.v(TAG, String.format("inject success: %s. should be a tap at %d (in %d) ms", injectEventSucceeded, isTapAt, (ViewConfiguration.getTapTimeout() / 2)));
+                TraceBuffer.getInstance().record(
+                        TraceEvent.DOWN_INJECTED, injectEventSucceeded ? 1 : 0, isTapAt);
 
                 while (true) {
                     long delayToBeTap = isTapAt - SystemClock.uptimeMillis();
                     if (delayToBeTap <= 10) {
-                        Log.v(TAG, String.format("delayToBeTap is %d ms, too soon so skipping looping", delayToBeTap));
+                        TraceBuffer.getInstance().record(TraceEvent.TAP_DELAY_SKIPPED, delayToBeTap, 0);
                         break;
                     }
                     // Sleep only a fraction of the time, since there may be other events in the UI queue
                     // that could cause us to start sleeping late, and then oversleep.
-                    Log.v(TAG, String.format("Looping main thread for at least %d ms in order to wait until isTapAt", delayToBeTap / 4));
+                    TraceBuffer.getInstance().record(TraceEvent.TAP_DELAY_LOOPING, delayToBeTap / 4, 0);
                     uiController.loopMainThreadForAtLeast(delayToBeTap / 4);
                 }
 
@@ -121,7 +124,7 @@ final class MotionEvents {
                     coordinates[0],
                     coordinates[1],
                     0);
-            Log.v(TAG, String.format("Sending up event at %d", SystemClock.uptimeMillis()));
+            TraceBuffer.getInstance().record(TraceEvent.UP_SENT, motionEvent.getEventTime(), 0);
             boolean injectEventSucceeded = uiController.injectMotionEvent(motionEvent);
 
             if (!injectEventSucceeded) {
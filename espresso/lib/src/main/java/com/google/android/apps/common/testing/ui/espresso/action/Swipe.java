@@ -5,6 +5,8 @@ import android.util.Log;
 import android.view.MotionEvent;
 
 import com.google.android.apps.common.testing.ui.espresso.UiController;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceBuffer;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceEvent;
 
 import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -77,6 +79,8 @@ public enum Swipe implements Swiper {
           MotionEvents.sendCancel(uiController, downEvent);
           return Swiper.Status.FAILURE;
         }
+        TraceBuffer.getInstance().record(
+            TraceEvent.SWIPE_MOVE_SENT, (long) steps[i][0], (long) steps[i][1]);
 
         long desiredTime = downEvent.getDownTime() + delayBetweenMovements * i;
         long timeUntilDesired = desiredTime - SystemClock.uptimeMillis();
@@ -90,6 +94,8 @@ public enum Swipe implements Swiper {
         MotionEvents.sendCancel(uiController, downEvent);
         return Swiper.Status.FAILURE;
       }
+      TraceBuffer.getInstance().record(
+          TraceEvent.SWIPE_UP_SENT, (long) endCoordinates[0], (long) endCoordinates[1]);
     } finally {
       downEvent.recycle();
     }
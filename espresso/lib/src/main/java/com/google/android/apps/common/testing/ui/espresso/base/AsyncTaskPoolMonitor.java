@@ -3,6 +3,7 @@ package com.google.android.apps.common.testing.ui.espresso.base;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -17,22 +18,53 @@ import java.util.concurrent.atomic.AtomicReference;
  * That is currently possible and easy in Froyo to JB. If it ever becomes impossible, as long as we
  * know the max # of executor threads the AsyncTask framework allows we can still use this
  * interface, just need a different implementation.
+ *
+ * If the pool's work queue is a {@link TaskCountingQueue} (ThreadPoolExecutorExtractor installs
+ * one), idleness is told from its task counts - tasks handed straight to a new pool thread
+ * included - and the idle callback runs as the last task completes. Otherwise idleness is proven
+ * by blocking every pool thread on a barrier.
  */
 class AsyncTaskPoolMonitor {
   private final AtomicReference<IdleMonitor> monitor = new AtomicReference<IdleMonitor>(null);
   private final ThreadPoolExecutor pool;
   private final AtomicInteger activeBarrierChecks = new AtomicInteger(0);
+  // null if the pool's tasks are not counted.
+  private final TaskCountingQueue countingQueue;
+  private final AtomicReference<Runnable> countedIdleCallback = new AtomicReference<Runnable>(null);
 
   AsyncTaskPoolMonitor(ThreadPoolExecutor pool) {
     this.pool = checkNotNull(pool);
+    BlockingQueue<Runnable> queue = pool.getQueue();
+    if (queue instanceof TaskCountingQueue && TaskCountingQueue.install(pool)) {
+      // install also counts the pool's new threads, if the pool was created with the queue.
+      countingQueue = (TaskCountingQueue) queue;
+      countingQueue.addWorkerWaitingListener(new Runnable() {
+        @Override
+        public void run() {
+          notifyIfCountedIdle();
+        }
+      });
+    } else {
+      countingQueue = null;
+    }
   }
 
   /**
    * Checks if the pool is idle at this moment.
    *
+   * If the pool's tasks are counted this only reads counters, and allocates nothing - it is asked
+   * on every idle wait. Otherwise, and until every thread the pool had before its tasks were
+   * counted came back to the queue once, it asks the pool for its active count, which iterates the
+   * pool's threads.
+   *
    * @return true if the pool is idle, false otherwise.
    */
   boolean isIdleNow() {
+    if (null != countingQueue) {
+      // a thread from before the install may still run a task nobody counted.
+      return countingQueue.allTasksCompleted()
+          && (countingQueue.allWorkersCounted() || 0 == pool.getActiveCount());
+    }
     if (!pool.getQueue().isEmpty()) {
       return false;
     } else {
@@ -59,10 +91,20 @@ class AsyncTaskPoolMonitor {
    * Obviously this strategy will fail horribly if 2 parties are doing it at the same time,
    * we prevent recursion here the best we can.
    *
+   * If the pool's tasks are counted, nothing is submitted to the pool: the callback is run by the
+   * pool thread which completes the last task, as it comes back for more work.
+   *
    * @param idleCallback called once the pool is idle.
    */
   void notifyWhenIdle(final Runnable idleCallback) {
     checkNotNull(idleCallback);
+    if (null != countingQueue) {
+      checkState(countedIdleCallback.compareAndSet(null, idleCallback),
+          "cannot monitor for idle recursively!");
+      // the pool may have gone idle before the callback was set.
+      notifyIfCountedIdle();
+      return;
+    }
     IdleMonitor myMonitor = new IdleMonitor(idleCallback);
     checkState(monitor.compareAndSet(null, myMonitor), "cannot monitor for idle recursively!");
     myMonitor.monitorForIdle();
@@ -76,12 +118,25 @@ class AsyncTaskPoolMonitor {
    * on the thread pool.
    */
   void cancelIdleMonitor() {
+    if (null != countingQueue) {
+      countedIdleCallback.set(null);
+      return;
+    }
     IdleMonitor myMonitor = monitor.getAndSet(null);
     if (null != myMonitor) {
       myMonitor.poison();
     }
   }
 
+  private void notifyIfCountedIdle() {
+    if (null != countedIdleCallback.get() && isIdleNow()) {
+      Runnable idleCallback = countedIdleCallback.getAndSet(null);
+      if (null != idleCallback) {
+        idleCallback.run();
+      }
+    }
+  }
+
   private class IdleMonitor {
     private final Runnable onIdle;
     private final AtomicInteger barrierGeneration = new AtomicInteger(0);
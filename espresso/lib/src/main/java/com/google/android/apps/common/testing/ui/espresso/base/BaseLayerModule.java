@@ -29,7 +29,8 @@ import javax.inject.Singleton;
  * Dagger module for creating the implementation classes within the base package.
  */
 @Module(library = true, injects = {
-    BaseLayerModule.FailureHandlerHolder.class, FailureHandler.class, Screenshotter.class})
+    BaseLayerModule.FailureHandlerHolder.class, FailureHandler.class, Screenshotter.class,
+    ViewIndex.class})
 public class BaseLayerModule {
 
   @Provides @Singleton
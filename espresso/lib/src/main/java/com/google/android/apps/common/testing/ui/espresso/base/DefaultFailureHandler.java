@@ -7,6 +7,7 @@ import com.google.android.apps.common.testing.testrunner.inject.TargetContext;
 import com.google.android.apps.common.testing.ui.espresso.EspressoException;
 import com.google.android.apps.common.testing.ui.espresso.FailureHandler;
 import com.google.android.apps.common.testing.ui.espresso.PerformException;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceBuffer;
 
 import android.content.Context;
 import android.view.View;
@@ -25,6 +26,9 @@ import javax.inject.Inject;
  */
 public final class DefaultFailureHandler implements FailureHandler {
 
+  // how many of the most recent trace records to attach to a failure.
+  private static final int TRACE_DUMP_SIZE = 100;
+
   private static final AtomicInteger failureCount = new AtomicInteger(0);
   private final Context appContext;
 
@@ -35,11 +39,33 @@ public final class DefaultFailureHandler implements FailureHandler {
 
   @Override
   public void handle(Throwable error, Matcher<View> viewMatcher) {
+    Throwable failure = error;
     if (error instanceof EspressoException || error instanceof AssertionFailedError
         || error instanceof AssertionError) {
-      throw propagate(getUserFriendlyError(error, viewMatcher));
-    } else {
-      throw propagate(error);
+      failure = getUserFriendlyError(error, viewMatcher);
+    }
+    attachTrace(failure);
+    throw propagate(failure);
+  }
+
+  /**
+   * Attaches the recent trace records to a failure Espresso owns, so they are printed with it -
+   * and only formatted if somebody prints it.
+   *
+   * An assertion failure gets them appended to its message. An Espresso exception without a cause
+   * gets them as its cause. Exceptions of the app or the test, and the causes of Espresso
+   * exceptions, are never changed.
+   */
+  private static void attachTrace(Throwable failure) {
+    if (failure instanceof AssertionFailedWithCauseError) {
+      ((AssertionFailedWithCauseError) failure).trace =
+          TraceBuffer.getInstance().capture(TRACE_DUMP_SIZE);
+    } else if (failure instanceof EspressoException && null == failure.getCause()) {
+      try {
+        failure.initCause(TraceBuffer.getInstance().capture(TRACE_DUMP_SIZE));
+      } catch (IllegalStateException causeAlreadySet) {
+        // created with an explicit null cause, the failure goes without the trace.
+      }
     }
   }
 
@@ -54,7 +80,7 @@ public final class DefaultFailureHandler implements FailureHandler {
       // Re-throw the exception with the viewMatcher (used to locate the view) as the view
       // description (makes the error more readable). The reason we do this here: not all creators
       // of PerformException have access to the viewMatcher.
-      throw new PerformException.Builder()
+      return new PerformException.Builder()
         .from((PerformException) error)
         .withViewDescription(viewMatcher.toString())
         .build();
@@ -71,10 +97,21 @@ public final class DefaultFailureHandler implements FailureHandler {
   }
 
   private static final class AssertionFailedWithCauseError extends AssertionFailedError {
+    private volatile Throwable trace;
+
     /* junit hides the cause constructor. */
     public AssertionFailedWithCauseError(String message, Throwable cause) {
       super(message);
       initCause(cause);
     }
+
+    @Override
+    public String getMessage() {
+      Throwable attached = trace;
+      if (null == attached) {
+        return super.getMessage();
+      }
+      return super.getMessage() + "\n" + attached.getMessage();
+    }
   }
 }
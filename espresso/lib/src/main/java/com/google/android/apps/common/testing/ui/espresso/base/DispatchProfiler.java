@@ -0,0 +1,192 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long main thread messages dispatched by the idle loop take, keyed by the class of
+ * their target Handler and of their callback.
+ *
+ * All state lives in preallocated primitive arrays: recording a dispatch never allocates, no
+ * matter how many messages are profiled. Once MAX_KEYS distinct target / callback pairs have
+ * been seen, further pairs are lumped together under a single overflow entry.
+ *
+ * Durations are kept in a power of two histogram of milliseconds: bucket 0 holds dispatches
+ * under 1ms, bucket n those under 2^n ms, and the last bucket everything longer.
+ *
+ * Only to be used from the main thread.
+ */
+final class DispatchProfiler {
+
+  static final int HISTOGRAM_BUCKETS = 12;
+
+  // a power of 2 so probing can mask rather than mod.
+  private static final int MAX_KEYS = 64;
+  private static final int OVERFLOW = MAX_KEYS;
+
+  private final Class<?>[] targetClasses = new Class<?>[MAX_KEYS];
+  private final Class<?>[] callbackClasses = new Class<?>[MAX_KEYS];
+  // one extra slot at the end for the overflow entry.
+  private final int[] dispatchCounts = new int[MAX_KEYS + 1];
+  private final int[] overBudgetCounts = new int[MAX_KEYS + 1];
+  private final long[] totalNanos = new long[MAX_KEYS + 1];
+  private final long[] maxNanos = new long[MAX_KEYS + 1];
+  private final int[] histogram = new int[(MAX_KEYS + 1) * HISTOGRAM_BUCKETS];
+  private int keysInUse = 0;
+
+  /**
+   * Records a single dispatch.
+   *
+   * @param targetClass the class of the message's target Handler.
+   * @param callbackClass the class of the message's callback, or null if it has none.
+   * @param dispatchNanos how long dispatching took.
+   * @param frameBudgetNanos dispatches longer than this are counted as over budget.
+   * @return true if the dispatch was over budget.
+   */
+  boolean record(Class<?> targetClass, Class<?> callbackClass, long dispatchNanos,
+      long frameBudgetNanos) {
+    int slot = slotFor(checkNotNull(targetClass), callbackClass);
+    dispatchCounts[slot]++;
+    totalNanos[slot] += dispatchNanos;
+    if (dispatchNanos > maxNanos[slot]) {
+      maxNanos[slot] = dispatchNanos;
+    }
+    histogram[slot * HISTOGRAM_BUCKETS + bucketFor(dispatchNanos)]++;
+    if (dispatchNanos > frameBudgetNanos) {
+      overBudgetCounts[slot]++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the histogram bucket for the given duration.
+   */
+  static int bucketFor(long dispatchNanos) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(dispatchNanos);
+    // 0 for < 1ms, 1 for < 2ms, 2 for < 4ms...
+    int bucket = 64 - Long.numberOfLeadingZeros(millis);
+    return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+  }
+
+  private int slotFor(Class<?> targetClass, Class<?> callbackClass) {
+    int hash = System.identityHashCode(targetClass) * 31 + System.identityHashCode(callbackClass);
+    hash ^= (hash >>> 16);
+    for (int probe = 0; probe < MAX_KEYS; probe++) {
+      int slot = (hash + probe) & (MAX_KEYS - 1);
+      if (targetClasses[slot] == targetClass && callbackClasses[slot] == callbackClass) {
+        return slot;
+      } else if (null == targetClasses[slot]) {
+        // keep the table sparse enough for probing to stay short.
+        if (keysInUse >= MAX_KEYS * 3 / 4) {
+          return OVERFLOW;
+        }
+        keysInUse++;
+        targetClasses[slot] = targetClass;
+        callbackClasses[slot] = callbackClass;
+        return slot;
+      }
+    }
+    return OVERFLOW;
+  }
+
+  /**
+   * Returns true if nothing has been recorded since creation or the last reset.
+   */
+  boolean isEmpty() {
+    for (int count : dispatchCounts) {
+      if (count > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void reset() {
+    for (int i = 0; i < MAX_KEYS; i++) {
+      targetClasses[i] = null;
+      callbackClasses[i] = null;
+    }
+    for (int i = 0; i <= MAX_KEYS; i++) {
+      dispatchCounts[i] = 0;
+      overBudgetCounts[i] = 0;
+      totalNanos[i] = 0;
+      maxNanos[i] = 0;
+    }
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = 0;
+    }
+    keysInUse = 0;
+  }
+
+  /**
+   * Describes the target / callback pairs which took the most main thread time in total.
+   *
+   * @param topN the maximum number of entries to describe.
+   * @param frameBudgetNanos the budget the over budget counts were recorded against.
+   */
+  String report(int topN, long frameBudgetNanos) {
+    checkArgument(topN > 0);
+    StringBuilder report = new StringBuilder(String.format(
+        "Main thread dispatches taking the most time (frame budget: %sms):",
+        TimeUnit.NANOSECONDS.toMillis(frameBudgetNanos)));
+    if (isEmpty()) {
+      return report.append(" none recorded.").toString();
+    }
+    boolean[] reported = new boolean[MAX_KEYS + 1];
+    for (int rank = 1; rank <= topN; rank++) {
+      int slowest = -1;
+      for (int slot = 0; slot <= MAX_KEYS; slot++) {
+        if (!reported[slot] && dispatchCounts[slot] > 0
+            && (slowest == -1 || totalNanos[slot] > totalNanos[slowest])) {
+          slowest = slot;
+        }
+      }
+      if (slowest == -1) {
+        break;
+      }
+      reported[slowest] = true;
+      report.append(String.format("\n%s. %s: %s dispatches, %sms total, %sms max, %s over budget, "
+          + "histogram (ms) %s",
+          rank,
+          describe(slowest),
+          dispatchCounts[slowest],
+          TimeUnit.NANOSECONDS.toMillis(totalNanos[slowest]),
+          TimeUnit.NANOSECONDS.toMillis(maxNanos[slowest]),
+          overBudgetCounts[slowest],
+          describeHistogram(slowest)));
+    }
+    return report.toString();
+  }
+
+  private String describe(int slot) {
+    if (slot == OVERFLOW) {
+      return "(other targets)";
+    }
+    return targetClasses[slot].getName() + " / "
+        + (null == callbackClasses[slot] ? "no callback" : callbackClasses[slot].getName());
+  }
+
+  private String describeHistogram(int slot) {
+    StringBuilder description = new StringBuilder("[");
+    int offset = slot * HISTOGRAM_BUCKETS;
+    for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++) {
+      int count = histogram[offset + bucket];
+      if (count == 0) {
+        continue;
+      }
+      if (description.length() > 1) {
+        description.append(", ");
+      }
+      if (bucket == HISTOGRAM_BUCKETS - 1) {
+        description.append(">=").append(1L << (bucket - 1));
+      } else {
+        description.append("<").append(1L << bucket);
+      }
+      description.append(": ").append(count);
+    }
+    return description.append("]").toString();
+  }
+}
@@ -0,0 +1,103 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.android.apps.common.testing.ui.espresso.PolledIdlingResource;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An Idling Resource Adapter for ThreadPoolExecutors (and ScheduledThreadPoolExecutors).
+ *
+ * The executor gets a {@link TaskCountingQueue} installed, so that idleness is told from its task
+ * counts and the transition to idle is reported by the pool thread which completes the last task.
+ * Like messages which are TASK_DUE_LONG on a looper, delayed tasks which are not due within
+ * {@link QueueInterrogator#LOOKAHEAD_MILLIS} do not keep the executor busy.
+ *
+ * The executor's active count, which locks the executor and walks its threads, is only asked
+ * while a thread the executor had before the queue was installed did not come back to it yet (see
+ * {@link TaskCountingQueue#allWorkersCounted}), or if the queue cannot be replaced. Idleness is
+ * then told from the executor's active count and queue alone, and only noticed when Espresso
+ * polls.
+ */
+final class ExecutorIdlingResource implements PolledIdlingResource {
+
+  private static final PollingPolicy POLLING_POLICY = new PollingPolicy.Builder().build();
+
+  private final ThreadPoolExecutor executor;
+  private final String name;
+  // null if the executor's tasks are not counted.
+  private final TaskCountingQueue countingQueue;
+  // set when Espresso was told the executor is busy, so only those transitions are reported.
+  private final AtomicBoolean reportedBusy = new AtomicBoolean(false);
+  private final Runnable idleReporter = new Runnable() {
+    @Override
+    public void run() {
+      reportIfIdle();
+    }
+  };
+  private volatile ResourceCallback resourceCallback;
+
+  ExecutorIdlingResource(ThreadPoolExecutor executor) {
+    this.executor = checkNotNull(executor);
+    this.name = executor.getClass().getSimpleName() + "@"
+        + Integer.toHexString(System.identityHashCode(executor));
+    if (TaskCountingQueue.install(executor)) {
+      countingQueue = (TaskCountingQueue) executor.getQueue();
+    } else {
+      countingQueue = null;
+    }
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean isIdleNow() {
+    boolean idle = idleNow();
+    reportedBusy.set(!idle);
+    return idle;
+  }
+
+  private boolean idleNow() {
+    if (null != countingQueue) {
+      return countingQueue.allTasksCompleted(QueueInterrogator.LOOKAHEAD_MILLIS)
+          && (countingQueue.allWorkersCounted() || 0 == executor.getActiveCount());
+    }
+    if (0 != executor.getActiveCount()) {
+      return false;
+    }
+    Runnable next = executor.getQueue().peek();
+    return null == next
+        || (next instanceof Delayed
+            && ((Delayed) next).getDelay(TimeUnit.MILLISECONDS)
+                > QueueInterrogator.LOOKAHEAD_MILLIS);
+  }
+
+  @Override
+  public void registerIdleTransitionCallback(ResourceCallback resourceCallback) {
+    this.resourceCallback = resourceCallback;
+    if (null != countingQueue) {
+      // only on registration, and once - the same resource may be registered again.
+      countingQueue.addWorkerWaitingListenerIfAbsent(idleReporter);
+    }
+  }
+
+  private void reportIfIdle() {
+    ResourceCallback callback = resourceCallback;
+    if (null != callback && reportedBusy.get() && idleNow()
+        && reportedBusy.compareAndSet(true, false)) {
+      callback.onTransitionToIdle();
+    }
+  }
+
+  @Override
+  public PollingPolicy getPollingPolicy() {
+    return POLLING_POLICY;
+  }
+}
@@ -0,0 +1,255 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the app's live HandlerThreads and registers their loopers as IdlingResources, so that
+ * test base classes do not have to register each of them by hand.
+ *
+ * Threads are picked by name with include and exclude patterns. The include pattern has to be
+ * given: the framework and libraries start HandlerThreads of their own, and waiting on all of them
+ * makes tests wait on work they do not care about - or time out on a thread which is never idle.
+ * Discovery runs once when it is started and, if a rescan interval is set, periodically on a
+ * background thread afterwards - registering HandlerThreads which were started since and
+ * unregistering the ones which died. Scans do not hold up interactions.
+ *
+ * The discovered loopers are registered together as a single {@link LooperGroupIdlingResource},
+ * which is replaced whenever the set changes. Each poll of it looks at the queues of the loopers
+ * which are not known to be busy, so its cost still grows with the number of threads - another
+ * reason to keep the include pattern narrow. Loopers which are registered by hand as well should
+ * be excluded.
+ */
+public final class HandlerThreadDiscovery {
+  private static final String TAG = HandlerThreadDiscovery.class.getSimpleName();
+  private static final String RESOURCE_NAME = "DiscoveredHandlerThreads";
+
+  private static final ScheduledExecutorService RESCAN_EXECUTOR =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "EspressoLooperDiscovery");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final Pattern includedNames;
+  // null if no names are excluded.
+  private final Pattern excludedNames;
+  private final long rescanIntervalMillis;
+
+  // held while scanning, so scans do not overlap. Never taken while holding this.
+  private final Object scanLock = new Object();
+  // guarded by this.
+  private final Map<Thread, Looper> discovered = Maps.newHashMap();
+  private LooperGroupIdlingResource resource;
+  private IdlingResourceRegistry registry;
+  private ScheduledFuture<?> rescans;
+
+  private HandlerThreadDiscovery(Builder builder) {
+    this.includedNames = builder.includedNames;
+    this.excludedNames = builder.excludedNames;
+    this.rescanIntervalMillis = builder.rescanIntervalMillis;
+  }
+
+  /**
+   * Scans for HandlerThreads now and schedules the rescans, if any.
+   */
+  void start(IdlingResourceRegistry registry) {
+    synchronized (this) {
+      checkState(null == this.registry, "Discovery already started.");
+      this.registry = checkNotNull(registry);
+      if (rescanIntervalMillis > 0) {
+        rescans = RESCAN_EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            scan();
+          }
+        }, rescanIntervalMillis, rescanIntervalMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    scan();
+  }
+
+  /**
+   * Stops rescanning and unregisters every looper which was discovered.
+   */
+  synchronized void stop() {
+    if (null == registry) {
+      return;
+    }
+    if (null != rescans) {
+      rescans.cancel(false);
+      rescans = null;
+    }
+    replaceResource(null);
+    discovered.clear();
+    registry = null;
+  }
+
+  /**
+   * Registers the loopers of HandlerThreads started since the last scan, and unregisters the ones
+   * of threads which died.
+   */
+  @VisibleForTesting
+  void scan() {
+    synchronized (scanLock) {
+      IdlingResourceRegistry scanRegistry;
+      Map<Thread, Looper> loopers;
+      synchronized (this) {
+        if (null == registry) {
+          // stopped while a rescan was pending.
+          return;
+        }
+        scanRegistry = registry;
+        loopers = Maps.newHashMap(discovered);
+      }
+      boolean changed = false;
+      for (Iterator<Thread> it = loopers.keySet().iterator(); it.hasNext(); ) {
+        Thread thread = it.next();
+        if (!thread.isAlive()) {
+          it.remove();
+          changed = true;
+          Log.i(TAG, "Unregistering looper of " + thread.getName());
+        }
+      }
+      for (Thread thread : liveThreads()) {
+        if (!(thread instanceof HandlerThread) || loopers.containsKey(thread)
+            || !matches(thread.getName())) {
+          continue;
+        }
+        // blocks until a just started thread prepared its looper, null if it already quit - so
+        // not while holding this, which stop needs.
+        Looper looper = ((HandlerThread) thread).getLooper();
+        if (null == looper || Looper.getMainLooper() == looper) {
+          continue;
+        }
+        loopers.put(thread, looper);
+        changed = true;
+        Log.i(TAG, "Registering looper of " + thread.getName());
+      }
+      if (!changed) {
+        return;
+      }
+      synchronized (this) {
+        if (scanRegistry != registry) {
+          // stopped while scanning.
+          return;
+        }
+        discovered.clear();
+        discovered.putAll(loopers);
+        replaceResource(loopers.isEmpty() ? null : new LooperGroupIdlingResource(
+            RESOURCE_NAME, ImmutableList.copyOf(loopers.values())));
+      }
+    }
+  }
+
+  /**
+   * Returns the threads whose loopers are registered.
+   */
+  @VisibleForTesting
+  synchronized List<Thread> getDiscoveredThreads() {
+    return ImmutableList.copyOf(discovered.keySet());
+  }
+
+  // called holding this.
+  private void replaceResource(LooperGroupIdlingResource newResource) {
+    if (null != resource) {
+      registry.unregister(resource);
+      resource.release();
+    }
+    resource = newResource;
+    if (null != resource) {
+      // the registry applies changes in order, so the name is free again by now.
+      registry.register(resource);
+    }
+  }
+
+  @VisibleForTesting
+  boolean matches(String threadName) {
+    return includedNames.matcher(threadName).matches()
+        && (null == excludedNames || !excludedNames.matcher(threadName).matches());
+  }
+
+  private static List<Thread> liveThreads() {
+    ThreadGroup root = Thread.currentThread().getThreadGroup();
+    while (null != root.getParent()) {
+      root = root.getParent();
+    }
+    Thread[] threads = new Thread[root.activeCount() + 1];
+    int count;
+    // grow until the threads fit - more may have started since activeCount.
+    while ((count = root.enumerate(threads, true)) == threads.length) {
+      threads = new Thread[threads.length * 2];
+    }
+    List<Thread> live = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      live.add(threads[i]);
+    }
+    return live;
+  }
+
+  /**
+   * Builds a {@link HandlerThreadDiscovery}: the included names must be given, and by default
+   * HandlerThreads are only looked for once, without rescans.
+   */
+  public static final class Builder {
+    private Pattern includedNames = null;
+    private Pattern excludedNames = null;
+    private long rescanIntervalMillis = 0;
+
+    /**
+     * Only registers HandlerThreads whose whole name matches the given regular expression.
+     * Required - a pattern like ".*" includes the HandlerThreads of the framework and libraries
+     * too, and tests then wait on them as well.
+     */
+    public Builder withIncludedNames(String regex) {
+      this.includedNames = Pattern.compile(checkNotNull(regex));
+      return this;
+    }
+
+    /**
+     * Does not register HandlerThreads whose whole name matches the given regular expression, even
+     * if it is included.
+     */
+    public Builder withExcludedNames(String regex) {
+      this.excludedNames = Pattern.compile(checkNotNull(regex));
+      return this;
+    }
+
+    /**
+     * Looks for new and dead HandlerThreads again after each interval. 0 scans only once.
+     */
+    public Builder withRescanInterval(long interval, TimeUnit unit) {
+      checkArgument(interval >= 0);
+      this.rescanIntervalMillis = checkNotNull(unit).toMillis(interval);
+      return this;
+    }
+
+    public HandlerThreadDiscovery build() {
+      checkState(null != includedNames, "The names of the HandlerThreads to include are required.");
+      return new HandlerThreadDiscovery(this);
+    }
+  }
+}
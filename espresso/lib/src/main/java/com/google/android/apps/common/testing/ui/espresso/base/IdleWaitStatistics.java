@@ -0,0 +1,268 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers how long past idle waits took - per screen and per IdlingResource - and derives
+ * timeouts from them.
+ *
+ * Each key keeps the distribution of its waits as a histogram with power of two buckets (in
+ * milliseconds). A wait's weight in it decays with every later run, so a wait that has not happened
+ * again for about ten runs no longer counts. A key's timeout is the upper bound of its longest
+ * bucket that still has weight, times a safety factor. It is never less than a floor and never
+ * more than the fixed timeout it replaces.
+ *
+ * A screen is waited on many times per test, mostly for a few milliseconds, so even a high
+ * percentile would miss the rare wait which legitimately takes seconds - the decaying maximum does
+ * not. Until a key was seen in several runs, with many waits, the fixed timeout applies unchanged:
+ * one run rarely shows every slow path of a screen (a cold cache, a database migration). The floor
+ * stays well above such waits.
+ *
+ * The histogram of each key is kept in a small text file, one key per line, so it survives across
+ * test runs. A run starts when the file is loaded. The file is rewritten on a background thread
+ * shortly after new samples are recorded.
+ */
+public final class IdleWaitStatistics {
+  private static final String TAG = IdleWaitStatistics.class.getSimpleName();
+
+  static final String SCREEN_PREFIX = "screen:";
+  static final String RESOURCE_PREFIX = "resource:";
+
+  // a key's timeout is only learned once it was seen in this many runs, with this many waits.
+  private static final int MIN_RUNS = 3;
+  private static final int MIN_SAMPLES = 50;
+  // bucket i holds waits of less than 2^i ms; the last one also holds all longer waits.
+  private static final int BUCKETS = 20;
+  // what a wait's weight is multiplied with on each later run, and the weight it stops counting at.
+  private static final double DECAY_PER_RUN = 0.75;
+  private static final double MIN_WEIGHT = 0.05;
+  private static final long SAVE_DELAY_MILLIS = 1000;
+
+  private static final ScheduledExecutorService SAVE_EXECUTOR =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "EspressoIdleStatistics");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final File file;
+  private final double safetyFactor;
+  private final long minTimeoutMillis;
+  // guarded by this.
+  private final Map<String, Samples> samplesByKey = Maps.newHashMap();
+  private final AtomicBoolean savePending = new AtomicBoolean(false);
+
+  /**
+   * Creates statistics backed by the given file, loading any samples it already holds.
+   *
+   * @param file where samples are kept across runs.
+   * @param safetyFactor what the longest wait bucket is multiplied with, at least 1.
+   * @param minTimeout the shortest timeout ever derived.
+   * @param unit the unit of minTimeout.
+   */
+  public IdleWaitStatistics(File file, double safetyFactor, long minTimeout, TimeUnit unit) {
+    checkArgument(safetyFactor >= 1, "safetyFactor must be at least 1: %s", safetyFactor);
+    checkArgument(minTimeout > 0);
+    this.file = checkNotNull(file);
+    this.safetyFactor = safetyFactor;
+    this.minTimeoutMillis = checkNotNull(unit).toMillis(minTimeout);
+    load();
+  }
+
+  static String screenKey(String screen) {
+    return SCREEN_PREFIX + screen;
+  }
+
+  static String resourceKey(String resourceName) {
+    return RESOURCE_PREFIX + resourceName;
+  }
+
+  /**
+   * Records how long a wait for the given key took.
+   */
+  public void record(String key, long waitMillis) {
+    key = savedKey(key);
+    synchronized (this) {
+      Samples samples = samplesByKey.get(key);
+      if (null == samples) {
+        samples = new Samples();
+        samplesByKey.put(key, samples);
+      }
+      samples.add(Math.max(0, waitMillis));
+    }
+    scheduleSave();
+  }
+
+  /**
+   * Returns the timeout derived for the given key.
+   *
+   * @param key the screen or resource key.
+   * @param fixedTimeoutMillis the timeout which applies without statistics - returned as long as
+   *     the key was seen in too few runs or waits, and never exceeded.
+   */
+  public long getTimeoutMillis(String key, long fixedTimeoutMillis) {
+    key = savedKey(key);
+    long longest;
+    synchronized (this) {
+      Samples samples = samplesByKey.get(key);
+      if (null == samples || samples.runs < MIN_RUNS || samples.count < MIN_SAMPLES) {
+        return fixedTimeoutMillis;
+      }
+      longest = samples.longestMillis();
+    }
+    long learned = (long) Math.ceil(longest * safetyFactor);
+    return Math.min(fixedTimeoutMillis, Math.max(minTimeoutMillis, learned));
+  }
+
+  /**
+   * Returns the key as it is saved: tabs and line breaks are replaced by spaces.
+   */
+  private static String savedKey(String key) {
+    return checkNotNull(key).replace('\t', ' ').replace('\n', ' ');
+  }
+
+  private void scheduleSave() {
+    if (savePending.compareAndSet(false, true)) {
+      SAVE_EXECUTOR.schedule(new Runnable() {
+        @Override
+        public void run() {
+          savePending.set(false);
+          try {
+            save();
+          } catch (IOException ioe) {
+            Log.w(TAG, "Could not save idle wait statistics to " + file, ioe);
+          }
+        }
+      }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @VisibleForTesting
+  void save() throws IOException {
+    StringBuilder contents = new StringBuilder();
+    synchronized (this) {
+      for (Map.Entry<String, Samples> entry : samplesByKey.entrySet()) {
+        Samples samples = entry.getValue();
+        contents.append(entry.getKey()).append('\t')
+            .append(samples.runs).append(',').append(samples.count);
+        for (double weight : samples.weights) {
+          contents.append(',').append(weight);
+        }
+        contents.append('\n');
+      }
+    }
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (null != parent && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create " + parent);
+    }
+    // write to the side and rename, a crash mid-write must not lose the history.
+    File temp = new File(file.getPath() + ".tmp");
+    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+    try {
+      out.write(contents.toString());
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Cannot rename " + temp + " to " + file);
+    }
+  }
+
+  private void load() {
+    if (!file.isFile()) {
+      return;
+    }
+    try {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        while (null != (line = in.readLine())) {
+          int tab = line.lastIndexOf('\t');
+          if (tab <= 0) {
+            continue;
+          }
+          String[] values = line.substring(tab + 1).split(",");
+          if (values.length != 2 + BUCKETS) {
+            throw new NumberFormatException("Expected runs,count and " + BUCKETS + " weights: "
+                + line);
+          }
+          Samples samples = new Samples();
+          samples.runs = Integer.parseInt(values[0].trim());
+          samples.count = Long.parseLong(values[1].trim());
+          for (int i = 0; i < BUCKETS; i++) {
+            // the samples are from an earlier run.
+            samples.weights[i] = Double.parseDouble(values[2 + i].trim()) * DECAY_PER_RUN;
+          }
+          synchronized (this) {
+            samplesByKey.put(line.substring(0, tab), samples);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException ioe) {
+      Log.w(TAG, "Ignoring unreadable idle wait statistics in " + file, ioe);
+    } catch (NumberFormatException nfe) {
+      Log.w(TAG, "Ignoring malformed idle wait statistics in " + file, nfe);
+    }
+  }
+
+  /**
+   * The waits seen for a key: in how many runs and how many of them, and their decayed histogram.
+   */
+  private static final class Samples {
+    private int runs = 0;
+    private long count = 0;
+    private final double[] weights = new double[BUCKETS];
+    // not saved: a loaded key was not seen in this run yet.
+    private boolean seenThisRun = false;
+
+    void add(long waitMillis) {
+      if (!seenThisRun) {
+        seenThisRun = true;
+        runs++;
+      }
+      count++;
+      int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(waitMillis));
+      weights[bucket] += 1;
+    }
+
+    /**
+     * Returns the upper bound of the longest bucket which still has weight.
+     */
+    long longestMillis() {
+      for (int i = BUCKETS - 1; i > 0; i--) {
+        if (weights[i] >= MIN_WEIGHT) {
+          return 1L << i;
+        }
+      }
+      return 1;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingCondition;
+import com.google.common.collect.Lists;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Keeps track of user-registered {@link IdlingCondition}s.
+ *
+ * Conditions may be registered from any thread, the list itself is only changed and read on the
+ * main thread. The UiController takes a snapshot of the conditions it waits for, so changes made
+ * while it is waiting only take effect in its next pass.
+ */
+@Singleton
+public final class IdlingConditionRegistry {
+  private static final String TAG = IdlingConditionRegistry.class.getSimpleName();
+
+  // only accessed on main thread.
+  private final List<IdlingCondition> conditions = Lists.newArrayList();
+  private final Looper looper;
+  private final Handler handler;
+
+  @Inject
+  public IdlingConditionRegistry(Looper looper) {
+    this.looper = checkNotNull(looper);
+    this.handler = new Handler(looper);
+  }
+
+  /**
+   * Registers the given condition.
+   */
+  public void register(final IdlingCondition condition) {
+    checkNotNull(condition);
+    checkNotNull(condition.getName(), "IdlingCondition.getName() should not be null");
+    if (Looper.myLooper() != looper) {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          register(condition);
+        }
+      });
+    } else {
+      for (IdlingCondition oldCondition : conditions) {
+        if (condition.getName().equals(oldCondition.getName())) {
+          // Same reasoning as for IdlingResources: tests often register in setUp and the vm is
+          // not necessarily cleared between test runs.
+          Log.e(TAG, String.format("Attempted to register condition with same names:"
+              + " %s. C1: %s C2: %s.\nDuplicate condition registration will be ignored.",
+              condition.getName(), condition, oldCondition));
+          return;
+        }
+      }
+      conditions.add(condition);
+    }
+  }
+
+  /**
+   * Unregisters the given condition. Does nothing if it was never registered.
+   */
+  public void unregister(final IdlingCondition condition) {
+    checkNotNull(condition);
+    if (Looper.myLooper() != looper) {
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          unregister(condition);
+        }
+      });
+    } else {
+      conditions.remove(condition);
+    }
+  }
+
+  int size() {
+    checkState(Looper.myLooper() == looper);
+    return conditions.size();
+  }
+
+  IdlingCondition get(int index) {
+    checkState(Looper.myLooper() == looper);
+    return conditions.get(index);
+  }
+
+  /**
+   * Checks every registered condition once, without asking any of them for a signal.
+   */
+  boolean allConditionsAreIdle() {
+    checkState(Looper.myLooper() == looper);
+    for (int i = 0; i < conditions.size(); i++) {
+      if (!conditions.get(i).isIdleNow()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
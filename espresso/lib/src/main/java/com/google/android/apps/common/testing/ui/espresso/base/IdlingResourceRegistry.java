@@ -7,22 +7,65 @@ import static com.google.common.base.Preconditions.checkState;
 import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
 import com.google.android.apps.common.testing.ui.espresso.IdlingPolicy;
 import com.google.android.apps.common.testing.ui.espresso.IdlingResource;
-import com.google.android.apps.common.testing.ui.espresso.IdlingResource.ResourceCallback;
+import com.google.android.apps.common.testing.ui.espresso.InteractionIdlingPolicy;
+import com.google.android.apps.common.testing.ui.espresso.PolledIdlingResource;
+import com.google.android.apps.common.testing.ui.espresso.PolledIdlingResource.PollingPolicy;
+import com.google.android.apps.common.testing.ui.espresso.TransitionAwareIdlingResource;
+import com.google.android.apps.common.testing.ui.espresso.TransitionAwareIdlingResource.TransitionCallback;
+import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 /**
  * Keeps track of user-registered {@link IdlingResource}s.
+ *
+ * Resources are found by name through a hash index and kept in a dense slot array: registering
+ * and unregistering take constant time, unregistering moves the last slot into the hole. A running
+ * count of the resources known to be busy answers whether all of them are idle, but each check
+ * first brings it up to date by walking every slot: the state a transition aware resource reported
+ * is copied, and plain and polled resources are asked isIdleNow() as described below. A check is
+ * therefore linear in the number of registered resources, and a policy which skips resources while
+ * some are busy walks them once more.
+ *
+ * Plain resources only report becoming idle, so the idle ones are asked whether they went busy
+ * before each wait. {@link TransitionAwareIdlingResource}s report both transitions and are never
+ * asked. When one says when it expects to be idle, a message on the main looper checks on it at
+ * that time - the UiController's loop stays parked on the looper until then.
+ * {@link PolledIdlingResource}s report nothing: they are asked whether they are idle before each
+ * wait and, while a wait is in progress, polled with backoff on the registry's handler.
+ *
+ * Every busy and idle transition the registry sees is recorded in an {@link
+ * IdlingResourceTimeline}, which timeout messages describe.
+ *
+ * Resources may be registered and unregistered from any thread without waiting for the main
+ * thread: changes made elsewhere go into a lock-free queue which the main thread applies, in order,
+ * before it next looks at the resources. A change made before loopMainThreadUntilIdle is called
+ * therefore always takes effect in that call.
+ *
+ * Resources skipped by the calling thread's InteractionIdlingPolicy are treated as idle, resources
+ * it gives a timeout of their own time out individually.
+ *
+ * With adaptive timeouts enabled (see {@link IdlingPolicies#enableAdaptiveTimeouts}) the time each
+ * awaited resource stays busy is recorded, and resources without an interaction timeout time out
+ * individually after the timeout learned for them.
  */
 @Singleton
 public final class IdlingResourceRegistry {
@@ -32,7 +75,12 @@ public final class IdlingResourceRegistry {
   private static final int TIMEOUT_OCCURRED = 2;
   private static final int IDLE_WARNING_REACHED = 3;
   private static final int POSSIBLE_RACE_CONDITION_DETECTED = 4;
+  private static final int RESOURCE_TIMEOUT_OCCURRED = 5;
+  private static final int RESOURCE_IDLE_EXPECTED = 6;
+  private static final int PENDING_CHANGES_QUEUED = 7;
+  private static final int POLL_RESOURCE = 8;
   private static final Object TIMEOUT_MESSAGE_TAG = new Object();
+  private static final int TIMELINE_DESCRIBE_SIZE = 10;
 
   private static final IdleNotificationCallback NO_OP_CALLBACK = new IdleNotificationCallback() {
 
@@ -46,14 +94,27 @@ public final class IdlingResourceRegistry {
     public void resourcesHaveTimedOut(List<String> busys) {}
   };
 
-  // resources and idleState should only be accessed on main thread
-  private final List<IdlingResource> resources = Lists.newArrayList();
-  // idleState.get(i) == true indicates resources.get(i) is idle, false indicates it's busy
-  private final BitSet idleState = new BitSet();
+  // slots, slotsByName and busyCount should only be accessed on main thread
+  private final List<Slot> slots = Lists.newArrayList();
+  private final Map<String, Slot> slotsByName = Maps.newHashMap();
+  // how many of the registered resources are known to be busy.
+  private int busyCount = 0;
+  // written from any thread, drained on main thread.
+  private final ConcurrentLinkedQueue<PendingChange> pendingChanges =
+      new ConcurrentLinkedQueue<PendingChange>();
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+  private final AtomicReference<HandlerThreadDiscovery> looperDiscovery =
+      new AtomicReference<HandlerThreadDiscovery>(null);
+  private final IdlingResourceTimeline timeline = new IdlingResourceTimeline();
+  // main thread only - spreads the polls of PolledIdlingResources.
+  private final Random pollJitter = new Random();
   private final Looper looper;
   private final Handler handler;
   private final Dispatcher dispatcher;
   private IdleNotificationCallback idleNotificationCallback = NO_OP_CALLBACK;
+  // main thread only - when the current wait began, and the statistics it records to if any.
+  private long waitStartMillis = 0;
+  private Optional<IdleWaitStatistics> waitStatistics = Optional.absent();
 
   @Inject
   public IdlingResourceRegistry(Looper looper) {
@@ -63,33 +124,83 @@ public final class IdlingResourceRegistry {
   }
 
   /**
-   * Registers the given resource.
+   * Registers the given resource. May be called from any thread, it never waits for the main
+   * thread.
    */
-  public void register(final IdlingResource resource) {
+  public void register(IdlingResource resource) {
     checkNotNull(resource);
     if (Looper.myLooper() != looper) {
-      handler.post(new Runnable() {
-        @Override
-        public void run() {
-          register(resource);
-        }
-      });
-    } else {      
-      for (IdlingResource oldResource : resources) {
-        if (resource.getName().equals(oldResource.getName())) {
-          // This does not throw an error to avoid leaving tests that register resource in test
-          // setup in an undeterministic state (we cannot assume that everyone clears vm state
-          // between each test run)
-          Log.e(TAG, String.format("Attempted to register resource with same names:" +
-              " %s. R1: %s R2: %s.\nDuplicate resource registration will be ignored.",
-              resource.getName(), resource, oldResource));
-          return;
+      queueChange(new PendingChange(resource, true));
+    } else {
+      applyPendingChanges();
+      addSlot(resource);
+    }
+  }
+
+  private void addSlot(IdlingResource resource) {
+    Slot oldSlot = slotsByName.get(resource.getName());
+    if (null != oldSlot) {
+      // This does not throw an error to avoid leaving tests that register resource in test
+      // setup in an undeterministic state (we cannot assume that everyone clears vm state
+      // between each test run)
+      Log.e(TAG, String.format("Attempted to register resource with same names:" +
+          " %s. R1: %s R2: %s.\nDuplicate resource registration will be ignored.",
+          resource.getName(), resource, oldSlot.resource));
+      return;
+    }
+    Slot slot = new Slot(resource, slots.size(), timeline.addResource(resource.getName()));
+    slots.add(slot);
+    slotsByName.put(slot.name, slot);
+    if (slot.reportsTransitions) {
+      ((TransitionAwareIdlingResource) resource).registerTransitionCallback(slot);
+      synchronized (slot) {
+        // a transition reported since registering is more recent than anything asked here.
+        if (!slot.transitionReported) {
+          slot.busyReported = !resource.isIdleNow();
         }
       }
-      resources.add(resource);
-      final int position = resources.size() - 1;
-      registerToIdleCallback(resource, position);
-      idleState.set(position, resource.isIdleNow());
+      setIdle(slot, !slot.busyReported);
+    } else {
+      resource.registerIdleTransitionCallback(slot);
+      setIdle(slot, resource.isIdleNow());
+    }
+  }
+
+  /**
+   * Unregisters the given resource. Does nothing if it is not registered. Any later idle
+   * transition it reports is ignored. May be called from any thread.
+   */
+  public void unregister(IdlingResource resource) {
+    checkNotNull(resource);
+    if (Looper.myLooper() != looper) {
+      queueChange(new PendingChange(resource, false));
+    } else {
+      applyPendingChanges();
+      removeSlot(resource);
+    }
+  }
+
+  private void removeSlot(IdlingResource resource) {
+    Slot slot = slotsByName.get(resource.getName());
+    if (null == slot || slot.resource != resource) {
+      return;
+    }
+    slotsByName.remove(slot.name);
+    setIdle(slot, true);
+    slot.registered = false;
+    handler.removeMessages(RESOURCE_IDLE_EXPECTED, slot);
+    handler.removeMessages(POLL_RESOURCE, slot);
+    Slot last = slots.remove(slots.size() - 1);
+    if (last != slot) {
+      slots.set(slot.index, last);
+      last.index = slot.index;
+    }
+    if (idleNotificationCallback != NO_OP_CALLBACK && allAwaitedResourcesIdle()) {
+      try {
+        idleNotificationCallback.allResourcesIdle();
+      } finally {
+        dispatcher.deregister();
+      }
     }
   }
 
@@ -99,24 +210,117 @@ public final class IdlingResourceRegistry {
     register(new LooperIdlingResource(looper, considerWaitIdle));
   }
 
-  private void registerToIdleCallback(IdlingResource resource, final int position) {
-    resource.registerIdleTransitionCallback(new ResourceCallback() {
-      @Override
-      public void onTransitionToIdle() {
-        Message m = handler.obtainMessage(DYNAMIC_RESOURCE_HAS_IDLED);
-        m.arg1 = position;
-        handler.sendMessage(m);
+  public void registerLoopers(String name, List<Looper> loopers) {
+    checkNotNull(loopers);
+    register(new LooperGroupIdlingResource(name, loopers));
+  }
+
+  public void registerExecutor(ThreadPoolExecutor executor) {
+    register(new ExecutorIdlingResource(executor));
+  }
+
+  /**
+   * Registers the HandlerThreads the given discovery finds, replacing any discovery started
+   * before. May be called from any thread.
+   */
+  public void startLooperDiscovery(HandlerThreadDiscovery discovery) {
+    HandlerThreadDiscovery previous = looperDiscovery.getAndSet(checkNotNull(discovery));
+    if (null != previous) {
+      previous.stop();
+    }
+    discovery.start(this);
+  }
+
+  /**
+   * Stops the current looper discovery, if any, and unregisters the loopers it found.
+   */
+  public void stopLooperDiscovery() {
+    HandlerThreadDiscovery discovery = looperDiscovery.getAndSet(null);
+    if (null != discovery) {
+      discovery.stop();
+    }
+  }
+
+  private void queueChange(PendingChange change) {
+    pendingChanges.offer(change);
+    // only needed to apply the change to a wait in progress, the next wait applies it anyway.
+    if (drainScheduled.compareAndSet(false, true)) {
+      handler.sendEmptyMessage(PENDING_CHANGES_QUEUED);
+    }
+  }
+
+  private void applyPendingChanges() {
+    PendingChange change;
+    while (null != (change = pendingChanges.poll())) {
+      if (change.register) {
+        addSlot(change.resource);
+      } else {
+        removeSlot(change.resource);
       }
-    });
+    }
+  }
+
+  int size() {
+    checkState(Looper.myLooper() == looper);
+    applyPendingChanges();
+    return slots.size();
+  }
+
+  private void setIdle(Slot slot, boolean idle) {
+    if (slot.idle != idle) {
+      slot.idle = idle;
+      busyCount += idle ? -1 : 1;
+      timeline.record(slot.timelineId, !idle);
+    }
+  }
+
+  /**
+   * Returns the busy and idle transitions of the registered resources.
+   */
+  public IdlingResourceTimeline getTimeline() {
+    return timeline;
+  }
+
+  /**
+   * Describes which resources were busy the longest recently.
+   */
+  String describeTimeline() {
+    return timeline.describe(0, TIMELINE_DESCRIBE_SIZE);
   }
 
   boolean allResourcesAreIdle() {
     checkState(Looper.myLooper() == looper);
-    for (int i = idleState.nextSetBit(0); i >= 0 && i < resources.size();
-        i = idleState.nextSetBit(i + 1)) {
-      idleState.set(i, resources.get(i).isIdleNow());
+    applyPendingChanges();
+    for (int i = 0; i < slots.size(); i++) {
+      Slot slot = slots.get(i);
+      if (slot.reportsTransitions) {
+        setIdle(slot, !slot.busyReported);
+      } else if (null != slot.pollingPolicy) {
+        setIdle(slot, slot.resource.isIdleNow());
+      } else if (slot.idle) {
+        // plain resources only report becoming idle, ask whether they went busy since.
+        setIdle(slot, slot.resource.isIdleNow());
+      }
+    }
+    return allAwaitedResourcesIdle();
+  }
+
+  private boolean allAwaitedResourcesIdle() {
+    if (busyCount == 0) {
+      return true;
+    }
+    InteractionIdlingPolicy policy = IdlingPolicies.getInteractionIdlingPolicy();
+    if (!policy.skipsIdlingResources()) {
+      return false;
+    }
+    int skippedBusyCount = 0;
+    for (int i = 0; i < slots.size(); i++) {
+      Slot slot = slots.get(i);
+      if (!slot.idle && policy.skipsIdlingResource(slot.name)) {
+        skippedBusyCount++;
+      }
     }
-    return idleState.cardinality() == resources.size();
+    return skippedBusyCount == busyCount;
   }
 
   interface IdleNotificationCallback {
@@ -135,6 +339,8 @@ public final class IdlingResourceRegistry {
       callback.allResourcesIdle();
     } else {
       idleNotificationCallback = callback;
+      waitStartMillis = SystemClock.uptimeMillis();
+      waitStatistics = IdlingPolicies.getIdleWaitStatistics();
       scheduleTimeoutMessages();
     }
   }
@@ -150,24 +356,66 @@ public final class IdlingResourceRegistry {
         warning.getIdleTimeout()));
     Message timeoutError = handler.obtainMessage(TIMEOUT_OCCURRED, TIMEOUT_MESSAGE_TAG);
     IdlingPolicy error = IdlingPolicies.getDynamicIdlingResourceErrorPolicy();
+    InteractionIdlingPolicy interactionPolicy = IdlingPolicies.getInteractionIdlingPolicy();
+    long errorTimeoutNanos =
+        interactionPolicy.getTimeoutNanos(InteractionIdlingPolicy.Condition.IDLING_RESOURCES);
+    long errorTimeoutMillis = errorTimeoutNanos > 0
+        ? TimeUnit.NANOSECONDS.toMillis(errorTimeoutNanos)
+        : error.getIdleTimeoutUnit().toMillis(error.getIdleTimeout());
+
+    handler.sendMessageDelayed(timeoutError, errorTimeoutMillis);
+
+    for (int i = 0; i < slots.size(); i++) {
+      Slot slot = slots.get(i);
+      if (slot.idle) {
+        continue;
+      }
+      if (null != slot.pollingPolicy) {
+        slot.pollCount = 0;
+        schedulePoll(slot);
+      }
+      String name = slot.name;
+      long resourceTimeoutMillis =
+          TimeUnit.NANOSECONDS.toMillis(interactionPolicy.getIdlingResourceTimeoutNanos(name));
+      if (resourceTimeoutMillis == 0 && waitStatistics.isPresent()) {
+        long learnedTimeoutMillis = waitStatistics.get().getTimeoutMillis(
+            IdleWaitStatistics.resourceKey(name), errorTimeoutMillis);
+        if (learnedTimeoutMillis < errorTimeoutMillis) {
+          resourceTimeoutMillis = learnedTimeoutMillis;
+        }
+      }
+      if (resourceTimeoutMillis > 0) {
+        // obj is the slot, so these are removed by what rather than by TIMEOUT_MESSAGE_TAG.
+        Message resourceTimeout = handler.obtainMessage(RESOURCE_TIMEOUT_OCCURRED, slot);
+        handler.sendMessageDelayed(resourceTimeout, resourceTimeoutMillis);
+      }
+    }
+  }
 
-    handler.sendMessageDelayed(timeoutError, error.getIdleTimeoutUnit().toMillis(
-        error.getIdleTimeout()));
+  private void schedulePoll(Slot slot) {
+    // obj is the slot, so these are removed by what rather than by TIMEOUT_MESSAGE_TAG.
+    handler.sendMessageDelayed(handler.obtainMessage(POLL_RESOURCE, slot),
+        slot.pollingPolicy.getDelayMillis(slot.pollCount, pollJitter.nextDouble()));
   }
 
   private List<String> getBusyResources() {
     List<String> busyResourceNames = Lists.newArrayList();
-    List<Integer> racyResources = Lists.newArrayList();
-
-    for (int i = 0; i < resources.size(); i++) {
-      IdlingResource resource = resources.get(i);
-      if (!idleState.get(i)) {
-        if (resource.isIdleNow()) {
+    List<Slot> racyResources = Lists.newArrayList();
+
+    InteractionIdlingPolicy policy = IdlingPolicies.getInteractionIdlingPolicy();
+    for (int i = 0; i < slots.size(); i++) {
+      Slot slot = slots.get(i);
+      if (!slot.idle && !policy.skipsIdlingResource(slot.name)) {
+        if (slot.resource.isIdleNow()) {
+          if (null != slot.pollingPolicy) {
+            // not a race, the next poll reports it.
+            continue;
+          }
           // We have not been notified of a BUSY -> IDLE transition, but the resource is telling us
           // its that its idle. Either it's a race condition or is this resource buggy.
-          racyResources.add(i);
+          racyResources.add(slot);
         } else {
-          busyResourceNames.add(resource.getName());
+          busyResourceNames.add(slot.name);
         }
       }
     }
@@ -197,9 +445,22 @@ public final class IdlingResourceRegistry {
         case TIMEOUT_OCCURRED:
           handleTimeout();
           break;
+        case RESOURCE_TIMEOUT_OCCURRED:
+          handleResourceTimeout(m);
+          break;
         case POSSIBLE_RACE_CONDITION_DETECTED:
           handleRaceCondition(m);
           break;
+        case RESOURCE_IDLE_EXPECTED:
+          handleIdleExpected(m);
+          break;
+        case POLL_RESOURCE:
+          handlePoll(m);
+          break;
+        case PENDING_CHANGES_QUEUED:
+          drainScheduled.set(false);
+          applyPendingChanges();
+          break;
         default:
           Log.w(TAG, "Unknown message type: " + m);
           return false;
@@ -208,8 +469,20 @@ public final class IdlingResourceRegistry {
     }
 
     private void handleResourceIdled(Message m) {
-      idleState.set(m.arg1, true);
-      if (idleState.cardinality() == resources.size()) {
+      handleResourceIdled((Slot) m.obj);
+    }
+
+    private void handleResourceIdled(Slot slot) {
+      // a resource reporting its transitions may have gone busy again since.
+      if (!slot.registered || slot.busyReported) {
+        return;
+      }
+      if (waitStatistics.isPresent() && !slot.idle) {
+        waitStatistics.get().record(IdleWaitStatistics.resourceKey(slot.name),
+            SystemClock.uptimeMillis() - waitStartMillis);
+      }
+      setIdle(slot, true);
+      if (allAwaitedResourcesIdle()) {
         try {
           idleNotificationCallback.allResourcesIdle();
         } finally {
@@ -251,23 +524,138 @@ public final class IdlingResourceRegistry {
       }
     }
 
+    private void handleResourceTimeout(Message m) {
+      Slot slot = (Slot) m.obj;
+      if (!slot.registered || slot.idle || slot.resource.isIdleNow()) {
+        // idle or gone by now - any missing transition is caught by the race detection.
+        return;
+      }
+      try {
+        idleNotificationCallback.resourcesHaveTimedOut(Lists.newArrayList(slot.name));
+      } finally {
+        deregister();
+      }
+    }
+
+    private void handlePoll(Message m) {
+      Slot slot = (Slot) m.obj;
+      if (!slot.registered || slot.idle) {
+        return;
+      }
+      if (slot.resource.isIdleNow()) {
+        // reported on the resource's behalf.
+        handleResourceIdled(slot);
+      } else {
+        slot.pollCount++;
+        schedulePoll(slot);
+      }
+    }
+
+    private void handleIdleExpected(Message m) {
+      Slot slot = (Slot) m.obj;
+      if (!slot.registered || slot.idle || !slot.resource.isIdleNow()) {
+        return;
+      }
+      synchronized (slot) {
+        slot.busyReported = false;
+        slot.transitionReported = true;
+      }
+      handleResourceIdled(slot);
+    }
+
     @SuppressWarnings("unchecked")
     private void handleRaceCondition(Message m) {
-      for (Integer i : (List<Integer>) m.obj) {
-        if (idleState.get(i)) {
-          // it was a race... i is now idle, everything is fine...
+      for (Slot slot : (List<Slot>) m.obj) {
+        if (slot.idle || !slot.registered) {
+          // it was a race... slot is now idle, everything is fine...
         } else {
           throw new IllegalStateException(String.format(
               "Resource %s isIdleNow() is returning true, but a message indicating that the "
               + "resource has transitioned from busy to idle was never sent.",
-              resources.get(i).getName()));
+              slot.name));
         }
       }
     }
 
     private void deregister() {
       handler.removeCallbacksAndMessages(TIMEOUT_MESSAGE_TAG);
+      handler.removeMessages(RESOURCE_TIMEOUT_OCCURRED);
+      handler.removeMessages(POLL_RESOURCE);
       idleNotificationCallback = NO_OP_CALLBACK;
+      waitStatistics = Optional.absent();
+    }
+  }
+
+  /**
+   * A registration or unregistration made off the main thread.
+   */
+  private static final class PendingChange {
+    private final IdlingResource resource;
+    private final boolean register;
+
+    PendingChange(IdlingResource resource, boolean register) {
+      this.resource = resource;
+      this.register = register;
+    }
+  }
+
+  /**
+   * A registered resource and what is known about it. Doubles as the resource's callback, so
+   * transitions reach the right slot however often the slots are compacted.
+   */
+  private final class Slot implements TransitionCallback {
+    private final IdlingResource resource;
+    private final String name;
+    private final boolean reportsTransitions;
+    private final int timelineId;
+    // null unless the resource is a PolledIdlingResource.
+    private final PollingPolicy pollingPolicy;
+    // main thread only.
+    private int pollCount = 0;
+    private int index;
+    private boolean idle = true;
+    private boolean registered = true;
+    // the state last reported by a TransitionAwareIdlingResource, written under the slot's lock
+    // from any thread.
+    private volatile boolean busyReported = false;
+    private boolean transitionReported = false;
+
+    Slot(IdlingResource resource, int index, int timelineId) {
+      this.resource = resource;
+      this.timelineId = timelineId;
+      this.name = resource.getName();
+      this.reportsTransitions = resource instanceof TransitionAwareIdlingResource;
+      this.pollingPolicy = resource instanceof PolledIdlingResource
+          ? checkNotNull(((PolledIdlingResource) resource).getPollingPolicy(),
+              "PolledIdlingResource.getPollingPolicy() should not be null")
+          : null;
+      this.index = index;
+    }
+
+    @Override
+    public void onTransitionToIdle() {
+      if (reportsTransitions) {
+        synchronized (this) {
+          busyReported = false;
+          transitionReported = true;
+        }
+      }
+      handler.sendMessage(handler.obtainMessage(DYNAMIC_RESOURCE_HAS_IDLED, this));
+    }
+
+    @Override
+    public void onTransitionToBusy() {
+      // picked up by the next allResourcesAreIdle, a wait in progress goes on regardless.
+      synchronized (this) {
+        busyReported = true;
+        transitionReported = true;
+      }
+    }
+
+    @Override
+    public void onIdleExpected(long delay, TimeUnit unit) {
+      handler.sendMessageDelayed(handler.obtainMessage(RESOURCE_IDLE_EXPECTED, this),
+          Math.max(0, unit.toMillis(delay)));
     }
   }
 }
@@ -0,0 +1,263 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records when each IdlingResource went busy and idle, as seen by the {@link
+ * IdlingResourceRegistry}.
+ *
+ * Transitions go into a fixed size ring of primitive arrays, overwriting the oldest once it is
+ * full. The registry records them on the main thread only, so the ring has a single writer;
+ * recording allocates nothing, and the lock it takes is only contended while a test reads the
+ * timeline. Besides the ring, running totals of how long each resource was busy are kept for the
+ * life of the process, so the resources which dominate idle waits across a whole suite can be told
+ * even after the ring wrapped.
+ *
+ * Plain IdlingResources only report becoming idle; their busy transitions are recorded when the
+ * registry notices them, right before a wait.
+ *
+ * To look at a single test, take a {@link #mark()} in setUp and {@link #export} or
+ * {@link #describe} from it in tearDown.
+ */
+public final class IdlingResourceTimeline {
+
+  private static final int DEFAULT_CAPACITY = 2048;
+
+  // all guarded by this, and only written on the main thread.
+  private final int mask;
+  private long nextSequence = 0;
+  private final long[] timestamps;
+  private final int[] resourceIds;
+  private final boolean[] busy;
+
+  // indexed by resource id.
+  private final List<String> names = Lists.newArrayList();
+  // a resource registered again under the same name keeps its id.
+  private final Map<String, Integer> idsByName = Maps.newHashMap();
+  private long[] busySinceNanos = new long[0];
+  private long[] totalBusyNanos = new long[0];
+  private int[] busyIntervals = new int[0];
+
+  IdlingResourceTimeline() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  @VisibleForTesting
+  IdlingResourceTimeline(int capacity) {
+    checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "capacity must be a power of 2: %s", capacity);
+    this.mask = capacity - 1;
+    this.timestamps = new long[capacity];
+    this.resourceIds = new int[capacity];
+    this.busy = new boolean[capacity];
+  }
+
+  /**
+   * Gives the resource with the given name an id to record its transitions under.
+   */
+  synchronized int addResource(String name) {
+    Integer existing = idsByName.get(checkNotNull(name));
+    if (null != existing) {
+      return existing;
+    }
+    int id = names.size();
+    busySinceNanos = grow(busySinceNanos, id + 1);
+    totalBusyNanos = grow(totalBusyNanos, id + 1);
+    int[] intervals = new int[id + 1];
+    System.arraycopy(busyIntervals, 0, intervals, 0, busyIntervals.length);
+    busyIntervals = intervals;
+    names.add(name);
+    idsByName.put(name, id);
+    return id;
+  }
+
+  private static long[] grow(long[] array, int length) {
+    long[] grown = new long[length];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  void record(int resourceId, boolean nowBusy) {
+    record(resourceId, nowBusy, System.nanoTime());
+  }
+
+  @VisibleForTesting
+  synchronized void record(int resourceId, boolean nowBusy, long nanos) {
+    if (nowBusy) {
+      busySinceNanos[resourceId] = nanos;
+      busyIntervals[resourceId]++;
+    } else if (busySinceNanos[resourceId] != 0) {
+      totalBusyNanos[resourceId] += nanos - busySinceNanos[resourceId];
+      busySinceNanos[resourceId] = 0;
+    }
+    int slot = (int) nextSequence & mask;
+    timestamps[slot] = nanos;
+    resourceIds[slot] = resourceId;
+    busy[slot] = nowBusy;
+    nextSequence++;
+  }
+
+  /**
+   * Returns a marker for the current point in the timeline.
+   */
+  public synchronized long mark() {
+    return nextSequence;
+  }
+
+  /**
+   * Writes every transition since the given mark which is still held, oldest first, one per line:
+   * milliseconds since the first of them, the resource name and BUSY or IDLE, tab separated.
+   */
+  public void export(long fromMark, Writer out) throws IOException {
+    checkNotNull(out);
+    List<Transition> transitions = snapshot(fromMark);
+    if (transitions.isEmpty()) {
+      return;
+    }
+    // taken after the transitions, so it names every resource they refer to.
+    List<String> resourceNames = getNames();
+    long first = transitions.get(0).nanos;
+    for (Transition transition : transitions) {
+      out.write(String.format("%.3f\t%s\t%s\n", millis(transition.nanos - first),
+          resourceNames.get(transition.resourceId), transition.busy ? "BUSY" : "IDLE"));
+    }
+    out.flush();
+  }
+
+  /**
+   * Describes which resources were busy the longest since the given mark, busiest first.
+   */
+  public String describe(long fromMark, int maxResources) {
+    return describe(fromMark, maxResources, System.nanoTime());
+  }
+
+  @VisibleForTesting
+  String describe(long fromMark, int maxResources, long nowNanos) {
+    checkArgument(maxResources > 0);
+    List<Transition> transitions = snapshot(fromMark);
+    if (transitions.isEmpty()) {
+      return "IdlingResource timeline: no transitions.";
+    }
+    List<String> resourceNames = getNames();
+    int resourceCount = resourceNames.size();
+    long[] busyNanos = new long[resourceCount];
+    long[] since = new long[resourceCount];
+    int[] intervals = new int[resourceCount];
+    for (Transition transition : transitions) {
+      int id = transition.resourceId;
+      if (transition.busy) {
+        since[id] = transition.nanos;
+        intervals[id]++;
+      } else if (since[id] != 0) {
+        busyNanos[id] += transition.nanos - since[id];
+        since[id] = 0;
+      }
+    }
+    for (int id = 0; id < resourceCount; id++) {
+      if (since[id] != 0) {
+        busyNanos[id] += nowNanos - since[id];
+      }
+    }
+    StringBuilder description = new StringBuilder(String.format(
+        "IdlingResource timeline (%s transitions over %.1fms):", transitions.size(),
+        millis(nowNanos - transitions.get(0).nanos)));
+    appendBusiest(description, resourceNames, busyNanos, intervals, since, nowNanos, maxResources);
+    return description.toString();
+  }
+
+  /**
+   * Describes which resources were busy the longest since the process started, busiest first.
+   */
+  public String describeTotals(int maxResources) {
+    checkArgument(maxResources > 0);
+    List<String> resourceNames;
+    long[] since;
+    long[] busyNanos;
+    int[] intervals;
+    long now;
+    synchronized (this) {
+      now = System.nanoTime();
+      resourceNames = getNames();
+      since = busySinceNanos.clone();
+      busyNanos = totalBusyNanos.clone();
+      intervals = busyIntervals.clone();
+    }
+    int resourceCount = resourceNames.size();
+    for (int id = 0; id < resourceCount; id++) {
+      if (since[id] != 0) {
+        busyNanos[id] += now - since[id];
+      }
+    }
+    StringBuilder description = new StringBuilder("IdlingResource busy time since start:");
+    appendBusiest(description, resourceNames, busyNanos, intervals, since, now, maxResources);
+    return description.toString();
+  }
+
+  private static void appendBusiest(StringBuilder description, List<String> resourceNames,
+      final long[] busyNanos, int[] intervals, long[] since, long nowNanos, int maxResources) {
+    List<Integer> ids = Lists.newArrayList();
+    for (int id = 0; id < busyNanos.length; id++) {
+      if (intervals[id] > 0) {
+        ids.add(id);
+      }
+    }
+    Collections.sort(ids, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.valueOf(busyNanos[b]).compareTo(busyNanos[a]);
+      }
+    });
+    for (int id : ids.subList(0, Math.min(maxResources, ids.size()))) {
+      description.append(String.format("\n  %s: busy %.1fms in %s intervals",
+          resourceNames.get(id), millis(busyNanos[id]), intervals[id]));
+      if (since[id] != 0) {
+        description.append(
+            String.format(", busy for the last %.1fms", millis(nowNanos - since[id])));
+      }
+    }
+  }
+
+  private synchronized List<Transition> snapshot(long fromMark) {
+    long start = Math.max(Math.max(0, fromMark), nextSequence - (mask + 1));
+    List<Transition> transitions = Lists.newArrayList();
+    for (long sequence = start; sequence < nextSequence; sequence++) {
+      int slot = (int) sequence & mask;
+      transitions.add(new Transition(timestamps[slot], resourceIds[slot], busy[slot]));
+    }
+    return transitions;
+  }
+
+  private synchronized List<String> getNames() {
+    return ImmutableList.copyOf(names);
+  }
+
+  private static double millis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static final class Transition {
+    private final long nanos;
+    private final int resourceId;
+    private final boolean busy;
+
+    Transition(long nanos, int resourceId, boolean busy) {
+      this.nanos = nanos;
+      this.resourceId = resourceId;
+      this.busy = busy;
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingResource;
+import com.google.android.apps.common.testing.ui.espresso.base.QueueInterrogator.QueueState;
+import com.google.common.collect.ImmutableSet;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue.IdleHandler;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An Idling Resource Adapter for a group of Loopers, which is idle when all of them are.
+ *
+ * Each looper has a bit in a busy bitmap. A single IdleHandler per looper clears its bit from the
+ * looper's own thread once its queue is empty (or only holds messages due long from now), so going
+ * idle is reported without polling, and a looper known to be busy is not looked at until then.
+ *
+ * Becoming busy has no such hook: nothing tells a looper's thread that a message was enqueued (a
+ * logging Printer only sees messages as they are dispatched). Asking whether the group is idle
+ * therefore still interrogates the queue of every looper whose bit is clear - reflectively, holding
+ * the queue's lock - and sets the bit of any with a message due soon or a sync barrier. Compared
+ * to a {@link LooperIdlingResource} per looper this saves the registrations and the thread state
+ * checks, but an idle group costs one queue interrogation per looper on every poll.
+ *
+ * As with {@link LooperIdlingResource}, a looper dispatching its last message counts as idle
+ * unless it was seen with the message still queued.
+ */
+final class LooperGroupIdlingResource implements IdlingResource {
+
+  private final String name;
+  private final List<Looper> monitoredLoopers;
+  // bit i of word i / 64 is set while looper i is busy.
+  private final AtomicLongArray busy;
+  // only assigned from the main thread, on registration. A looper which exited meanwhile has no
+  // interrogator.
+  private volatile Handler[] monitoredHandlers;
+  private volatile QueueInterrogator[] queueInterrogators;
+
+  private volatile ResourceCallback resourceCallback;
+  // set once the resource is not used any more, so its idle handlers remove themselves.
+  private volatile boolean released;
+
+  LooperGroupIdlingResource(String name, List<Looper> monitoredLoopers) {
+    this.name = checkNotNull(name);
+    this.monitoredLoopers = ImmutableSet.copyOf(monitoredLoopers).asList();
+    checkArgument(!this.monitoredLoopers.isEmpty(), "No loopers to monitor.");
+    for (Looper looper : this.monitoredLoopers) {
+      checkState(Looper.getMainLooper() != looper, "Not for use with main looper.");
+    }
+    int words = (this.monitoredLoopers.size() + Long.SIZE - 1) / Long.SIZE;
+    busy = new AtomicLongArray(words);
+    // busy until each looper went idle with our idle handler installed.
+    for (int i = 0; i < this.monitoredLoopers.size(); i++) {
+      markBusy(i);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean isIdleNow() {
+    // on main thread here.
+    boolean idle = true;
+    for (int i = 0; i < monitoredLoopers.size(); i++) {
+      if (isBusy(i)) {
+        idle = false;
+        continue;
+      }
+      if (null == queueInterrogators[i]) {
+        continue;
+      }
+      QueueState queueState = queueInterrogators[i].determineQueueState();
+      if (queueState == QueueState.TASK_DUE_SOON || queueState == QueueState.BARRIER) {
+        markBusy(i);
+        // the looper may have gone idle since we looked - make sure its idle handler runs again.
+        monitoredHandlers[i].sendEmptyMessage(-1);
+        idle = false;
+      }
+    }
+    return idle;
+  }
+
+  @Override
+  public void registerIdleTransitionCallback(ResourceCallback resourceCallback) {
+    this.resourceCallback = checkNotNull(resourceCallback);
+    Handler[] handlers = new Handler[monitoredLoopers.size()];
+    QueueInterrogator[] interrogators = new QueueInterrogator[monitoredLoopers.size()];
+    for (int i = 0; i < monitoredLoopers.size(); i++) {
+      handlers[i] = new Handler(monitoredLoopers.get(i));
+      interrogators[i] = new QueueInterrogator(monitoredLoopers.get(i));
+    }
+    monitoredHandlers = handlers;
+    queueInterrogators = interrogators;
+    for (int i = 0; i < monitoredLoopers.size(); i++) {
+      // must load idle handlers from monitored looper thread.
+      if (!handlers[i].postAtFrontOfQueue(
+          new Initializer(new BitmapIdleHandler(i, interrogators[i], handlers[i])))) {
+        // the looper is exiting, and never has work again - nor answers for its queue.
+        interrogators[i] = null;
+        markIdle(i);
+      }
+    }
+  }
+
+  /**
+   * Removes the idle handlers of this resource from its loopers as they next go idle. To be called
+   * once the resource was unregistered.
+   */
+  void release() {
+    released = true;
+  }
+
+  private boolean allIdle() {
+    for (int word = 0; word < busy.length(); word++) {
+      if (0 != busy.get(word)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isBusy(int index) {
+    return 0 != (busy.get(index / Long.SIZE) & (1L << (index % Long.SIZE)));
+  }
+
+  private void markBusy(int index) {
+    int word = index / Long.SIZE;
+    long bit = 1L << (index % Long.SIZE);
+    long bits;
+    do {
+      bits = busy.get(word);
+      if (0 != (bits & bit)) {
+        return;
+      }
+    } while (!busy.compareAndSet(word, bits, bits | bit));
+  }
+
+  private void markIdle(int index) {
+    int word = index / Long.SIZE;
+    long bit = 1L << (index % Long.SIZE);
+    long bits;
+    do {
+      bits = busy.get(word);
+      if (0 == (bits & bit)) {
+        return;
+      }
+    } while (!busy.compareAndSet(word, bits, bits & ~bit));
+    if (allIdle()) {
+      ResourceCallback callback = resourceCallback;
+      if (null != callback) {
+        callback.onTransitionToIdle();
+      }
+    }
+  }
+
+  private static class Initializer implements Runnable {
+    private final IdleHandler myIdleHandler;
+
+    Initializer(IdleHandler myIdleHandler) {
+      this.myIdleHandler = checkNotNull(myIdleHandler);
+    }
+
+    @Override
+    public void run() {
+      // on monitored looper thread. The idle handler looks at the queue from here before it first
+      // clears the busy bit, so isIdleNow never waits on the looper to find its queue.
+      Looper.myQueue().addIdleHandler(myIdleHandler);
+    }
+  }
+
+  private class BitmapIdleHandler implements IdleHandler {
+    private final int index;
+    private final QueueInterrogator myInterrogator;
+    private final Handler myHandler;
+
+    BitmapIdleHandler(int index, QueueInterrogator myInterrogator, Handler myHandler) {
+      this.index = index;
+      this.myInterrogator = myInterrogator;
+      this.myHandler = myHandler;
+    }
+
+    @Override
+    public boolean queueIdle() {
+      // invoked on the monitored looper thread.
+      if (released) {
+        return false;
+      }
+      QueueState queueState = myInterrogator.determineQueueState();
+      if (queueState == QueueState.EMPTY || queueState == QueueState.TASK_DUE_LONG) {
+        // no block and no task coming 'shortly'.
+        markIdle(index);
+      } else if (queueState == QueueState.BARRIER) {
+        // send a sentinal message that'll cause us to queueIdle again once the
+        // block is lifted.
+        myHandler.sendEmptyMessage(-1);
+      }
+      return true;
+    }
+  }
+}
@@ -29,7 +29,12 @@ final class QueueInterrogator {
 
   private static final Method messageQueueNextMethod;
   private static final Field messageQueueHeadField;
-  private static final int LOOKAHEAD_MILLIS = 15;
+  // optional - only needed to move messages forward in virtual time.
+  private static final Field messageNextField;
+  private static final Field messageWhenField;
+  static final int LOOKAHEAD_MILLIS = 15;
+  // passed explicitly so invoking next() does not allocate a varargs array per message.
+  private static final Object[] NO_ARGS = new Object[0];
 
   private final Looper interrogatedLooper;
   private volatile MessageQueue interrogatedQueue;
@@ -65,6 +70,29 @@ final class QueueInterrogator {
     }
   }
 
+  static {
+    Field nextField = null;
+    Field whenField = null;
+    try {
+      nextField = Message.class.getDeclaredField("next");
+      nextField.setAccessible(true);
+
+      whenField = Message.class.getDeclaredField("when");
+      whenField.setAccessible(true);
+    } catch (NoSuchFieldException e) {
+      nextField = null;
+      whenField = null;
+      Log.w(TAG, "Virtual time unavailable.", e);
+    } catch (SecurityException e) {
+      nextField = null;
+      whenField = null;
+      Log.w(TAG, "Virtual time unavailable.", e);
+    } finally {
+      messageNextField = nextField;
+      messageWhenField = whenField;
+    }
+  }
+
   QueueInterrogator(Looper interrogatedLooper) {
     this.interrogatedLooper = checkNotNull(interrogatedLooper);
     checkNotNull(messageQueueHeadField);
@@ -80,7 +108,7 @@ final class QueueInterrogator {
     }
 
     try {
-      return (Message) messageQueueNextMethod.invoke(Looper.myQueue());
+      return (Message) messageQueueNextMethod.invoke(Looper.myQueue(), NO_ARGS);
     } catch (IllegalAccessException e) {
       throw propagate(e);
     } catch (IllegalArgumentException e) {
@@ -124,6 +152,46 @@ final class QueueInterrogator {
     }
   }
 
+  /**
+   * Moves the messages at the head of the queue forward in time so the first of them is due now.
+   *
+   * Only messages due no later than the given deadline are moved, and all of them by the same
+   * amount, so the order of the queue is preserved. Nothing is moved if the head is already due,
+   * is a sync barrier or is due after the deadline.
+   *
+   * @param deadlineUptimeMillis the latest due time (in uptimeMillis) a message may have to be moved.
+   * @return the number of millis the head of the queue was moved forward by.
+   */
+  long advanceTo(long deadlineUptimeMillis) {
+    checkThread();
+
+    if (null == messageNextField || null == messageWhenField) {
+      return 0;
+    }
+    if (null == interrogatedQueue) {
+      initializeQueue();
+    }
+    synchronized (interrogatedQueue) {
+      try {
+        Message head = (Message) messageQueueHeadField.get(interrogatedQueue);
+        if (null == head || null == head.getTarget()) {
+          return 0;
+        }
+        long delta = head.getWhen() - SystemClock.uptimeMillis();
+        if (delta <= 0 || head.getWhen() > deadlineUptimeMillis) {
+          return 0;
+        }
+        for (Message message = head; null != message && message.getWhen() <= deadlineUptimeMillis;
+            message = (Message) messageNextField.get(message)) {
+          messageWhenField.setLong(message, message.getWhen() - delta);
+        }
+        return delta;
+      } catch (IllegalAccessException e) {
+        throw propagate(e);
+      }
+    }
+  }
+
   private void initializeQueue() {
     if (interrogatedLooper == Looper.myLooper()) {
       interrogatedQueue = Looper.myQueue();
@@ -0,0 +1,447 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.Lists;
+
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A work queue for a ThreadPoolExecutor which counts the tasks submitted to the pool and the ones
+ * which completed, so that idleness can be told from counters instead of by occupying the pool.
+ *
+ * Each task offered to the queue is wrapped, and counts as completed once it ran (or left the
+ * queue without running - removed, drained or rejected). Pool threads come back to the queue
+ * after every task they run, at which point the queue tells its listener.
+ *
+ * Tasks are handed to pool threads wrapped (by take and timed poll); every other way out of the
+ * queue gives back the task as it was submitted.
+ *
+ * A pool which is below its core size hands a task straight to the thread it starts for it,
+ * without queueing it. The pool's ThreadFactory is therefore replaced as well: a new pool thread
+ * counts as running a task from the moment it is created until it first comes to the queue (or
+ * ends). A thread created but never started - the pool shutting down meanwhile - stays counted.
+ *
+ * Threads the pool had before the factory was replaced may be running a task nobody counted, so
+ * until each of them came to this queue once the counts alone cannot tell idleness:
+ * {@link #allWorkersCounted} says when they can.
+ *
+ * The delayed work queue of a ScheduledThreadPoolExecutor only holds the pool's own scheduled
+ * futures, so its tasks are not wrapped: a task counts as running from the moment a pool thread
+ * takes it until that thread comes back to the queue.
+ */
+final class TaskCountingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+  private static final String TAG = TaskCountingQueue.class.getSimpleName();
+  private static final String WORK_QUEUE_FIELD_NAME = "workQueue";
+
+  private final BlockingQueue<Runnable> delegate;
+  private final boolean wrapTasks;
+  private final AtomicLong submitted = new AtomicLong(0);
+  private final AtomicLong completed = new AtomicLong(0);
+  private final CopyOnWriteArrayList<Runnable> workerWaitingListeners =
+      new CopyOnWriteArrayList<Runnable>();
+  // only used if tasks are not wrapped.
+  private final AtomicInteger running = new AtomicInteger(0);
+  private final ThreadLocal<Boolean> holdsTask = new ThreadLocal<Boolean>();
+  // pool threads created by the counting ThreadFactory which did not come to the queue yet.
+  private final AtomicInteger startingWorkers = new AtomicInteger(0);
+  private final ThreadLocal<Boolean> startingWorker = new ThreadLocal<Boolean>();
+  // pool threads whose tasks are counted: created by the counting ThreadFactory, or came to the
+  // queue since the factory was replaced.
+  private final ThreadLocal<Boolean> countedWorker = new ThreadLocal<Boolean>();
+  // pool threads created by the counting ThreadFactory which did not end yet.
+  private final AtomicInteger createdWorkers = new AtomicInteger(0);
+  private final AtomicInteger returnedWorkers = new AtomicInteger(0);
+  // the pool's threads which existed when the factory was replaced. Unknown until then.
+  private volatile int uncountedWorkers = Integer.MAX_VALUE;
+
+  TaskCountingQueue(BlockingQueue<Runnable> delegate) {
+    this(delegate, true);
+  }
+
+  TaskCountingQueue(BlockingQueue<Runnable> delegate, boolean wrapTasks) {
+    this.delegate = checkNotNull(delegate);
+    this.wrapTasks = wrapTasks;
+  }
+
+  /**
+   * Makes the given pool queue its work through a TaskCountingQueue wrapping its current queue.
+   *
+   * Pool threads already waiting on the current queue keep waiting on it and pick up the counted
+   * tasks from there; tasks already queued are not counted.
+   *
+   * Pool threads which already exist are not counted until they first come back to the queue -
+   * see {@link #allWorkersCounted}. A pool created with a TaskCountingQueue gets its thread factory
+   * replaced here as well.
+   *
+   * @return true if the pool's queue counts its tasks, false if it could not be replaced.
+   */
+  static boolean install(ThreadPoolExecutor pool) {
+    checkNotNull(pool);
+    if (pool.getQueue() instanceof TaskCountingQueue) {
+      ((TaskCountingQueue) pool.getQueue()).countWorkersOf(pool);
+      return true;
+    }
+    try {
+      Field workQueueField = ThreadPoolExecutor.class.getDeclaredField(WORK_QUEUE_FIELD_NAME);
+      workQueueField.setAccessible(true);
+      @SuppressWarnings("unchecked")
+      BlockingQueue<Runnable> current = (BlockingQueue<Runnable>) workQueueField.get(pool);
+      TaskCountingQueue countingQueue =
+          new TaskCountingQueue(current, !(pool instanceof ScheduledThreadPoolExecutor));
+      workQueueField.set(pool, countingQueue);
+      // the queue first: a thread counted while the old queue is in place might wait on it, and
+      // never come to this one until a task arrives.
+      countingQueue.countWorkersOf(pool);
+      return true;
+    } catch (NoSuchFieldException nsfe) {
+      Log.w(TAG, "No reflective access to " + WORK_QUEUE_FIELD_NAME, nsfe);
+    } catch (IllegalAccessException iae) {
+      Log.w(TAG, "No reflective access to " + WORK_QUEUE_FIELD_NAME, iae);
+    } catch (RuntimeException re) {
+      // e.g. SecurityException - the field cannot be made accessible on this platform.
+      Log.w(TAG, "Could not replace the work queue of " + pool, re);
+    }
+    return false;
+  }
+
+  private void countWorkersOf(ThreadPoolExecutor pool) {
+    ThreadFactory current = pool.getThreadFactory();
+    if (current instanceof WorkerCountingThreadFactory
+        && ((WorkerCountingThreadFactory) current).queue == this) {
+      return;
+    }
+    pool.setThreadFactory(new WorkerCountingThreadFactory(this, current));
+    // every thread the pool creates from here on is counted, so the ones it has now but did not
+    // create through the factory are the uncounted ones. Threads only come to the queue counted
+    // from here on, so no more of them than that can be counted as returned.
+    int created = createdWorkers.get();
+    uncountedWorkers = Math.max(0, pool.getPoolSize() - created);
+  }
+
+  /**
+   * Checks whether every pool thread which may be running a task is known to the counts: each
+   * thread the pool had when it got the counting ThreadFactory came to the queue since.
+   *
+   * Until then idleness also needs the pool's active count. A thread which ends without ever
+   * coming to the queue keeps this false.
+   */
+  boolean allWorkersCounted() {
+    return returnedWorkers.get() >= uncountedWorkers;
+  }
+
+  /**
+   * Adds something to run (on a pool thread) whenever a pool thread is done with its task, if
+   * any, and asks for the next one.
+   */
+  void addWorkerWaitingListener(Runnable listener) {
+    workerWaitingListeners.add(checkNotNull(listener));
+  }
+
+  /**
+   * Like {@link #addWorkerWaitingListener}, unless the listener was added before.
+   *
+   * @return true if the listener was added.
+   */
+  boolean addWorkerWaitingListenerIfAbsent(Runnable listener) {
+    return workerWaitingListeners.addIfAbsent(checkNotNull(listener));
+  }
+
+  /**
+   * Checks whether every task submitted through this queue completed and nothing is queued (tasks
+   * queued before the queue was installed are not counted).
+   */
+  boolean allTasksCompleted() {
+    return allTasksCompleted(Long.MAX_VALUE);
+  }
+
+  /**
+   * Checks whether every task submitted through this queue completed, ignoring delayed tasks
+   * which are not due within the given time.
+   */
+  boolean allTasksCompleted(long dueWithinMillis) {
+    if (0 != startingWorkers.get()) {
+      return false;
+    }
+    if (!wrapTasks) {
+      if (0 != running.get()) {
+        return false;
+      }
+      Runnable next = delegate.peek();
+      return null == next
+          || (next instanceof Delayed
+              && ((Delayed) next).getDelay(TimeUnit.MILLISECONDS) > dueWithinMillis);
+    }
+    // read completed first: a task submitted in between makes the counts differ, never match early.
+    long completedCount = completed.get();
+    return completedCount == submitted.get() && delegate.isEmpty();
+  }
+
+  long getSubmittedCount() {
+    return submitted.get();
+  }
+
+  long getCompletedCount() {
+    return completed.get();
+  }
+
+  @Override
+  public boolean offer(Runnable task) {
+    checkNotNull(task);
+    submitted.incrementAndGet();
+    if (delegate.offer(wrap(task))) {
+      return true;
+    }
+    completed.incrementAndGet();
+    return false;
+  }
+
+  @Override
+  public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+    checkNotNull(task);
+    submitted.incrementAndGet();
+    boolean offered = false;
+    try {
+      offered = delegate.offer(wrap(task), timeout, unit);
+      return offered;
+    } finally {
+      if (!offered) {
+        completed.incrementAndGet();
+      }
+    }
+  }
+
+  @Override
+  public void put(Runnable task) throws InterruptedException {
+    checkNotNull(task);
+    submitted.incrementAndGet();
+    boolean put = false;
+    try {
+      delegate.put(wrap(task));
+      put = true;
+    } finally {
+      if (!put) {
+        completed.incrementAndGet();
+      }
+    }
+  }
+
+  @Override
+  public Runnable take() throws InterruptedException {
+    workerWaiting();
+    return taken(delegate.take());
+  }
+
+  @Override
+  public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    workerWaiting();
+    return taken(delegate.poll(timeout, unit));
+  }
+
+  private void workerWaiting() {
+    workerStarted();
+    if (!Boolean.TRUE.equals(countedWorker.get()) && Integer.MAX_VALUE != uncountedWorkers) {
+      countedWorker.set(true);
+      returnedWorkers.incrementAndGet();
+    }
+    if (!wrapTasks && Boolean.TRUE.equals(holdsTask.get())) {
+      holdsTask.set(false);
+      running.decrementAndGet();
+      completed.incrementAndGet();
+    }
+    for (Runnable listener : workerWaitingListeners) {
+      listener.run();
+    }
+  }
+
+  private void workerStarted() {
+    if (Boolean.TRUE.equals(startingWorker.get())) {
+      startingWorker.set(false);
+      startingWorkers.decrementAndGet();
+    }
+  }
+
+  private Runnable taken(Runnable task) {
+    if (!wrapTasks && null != task) {
+      running.incrementAndGet();
+      holdsTask.set(true);
+    }
+    return task;
+  }
+
+  @Override
+  public Runnable poll() {
+    return settle(delegate.poll());
+  }
+
+  @Override
+  public Runnable peek() {
+    return unwrap(delegate.peek());
+  }
+
+  @Override
+  public boolean remove(Object task) {
+    for (Iterator<Runnable> it = delegate.iterator(); it.hasNext(); ) {
+      Runnable queued = it.next();
+      if (unwrap(queued).equals(task)) {
+        if (delegate.remove(queued)) {
+          settle(queued);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> out) {
+    return drainTo(out, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> out, int maxElements) {
+    checkNotNull(out);
+    List<Runnable> drained = Lists.newArrayList();
+    int count = delegate.drainTo(drained, maxElements);
+    for (Runnable task : drained) {
+      out.add(settle(task));
+    }
+    return count;
+  }
+
+  @Override
+  public int size() {
+    return delegate.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return delegate.isEmpty();
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return delegate.remainingCapacity();
+  }
+
+  @Override
+  public Iterator<Runnable> iterator() {
+    final Iterator<Runnable> delegateIterator = delegate.iterator();
+    return new Iterator<Runnable>() {
+      private Runnable last;
+
+      @Override
+      public boolean hasNext() {
+        return delegateIterator.hasNext();
+      }
+
+      @Override
+      public Runnable next() {
+        last = delegateIterator.next();
+        return unwrap(last);
+      }
+
+      @Override
+      public void remove() {
+        delegateIterator.remove();
+        settle(last);
+      }
+    };
+  }
+
+  /**
+   * Counts a task that leaves the queue other than to run as completed and unwraps it.
+   */
+  private Runnable settle(Runnable task) {
+    if (task instanceof CountedTask || (!wrapTasks && null != task)) {
+      completed.incrementAndGet();
+    }
+    return unwrap(task);
+  }
+
+  private Runnable wrap(Runnable task) {
+    return wrapTasks ? new CountedTask(task) : task;
+  }
+
+  private static Runnable unwrap(Runnable task) {
+    if (task instanceof CountedTask) {
+      return ((CountedTask) task).task;
+    }
+    return task;
+  }
+
+  private final class CountedTask implements Runnable {
+    private final Runnable task;
+
+    private CountedTask(Runnable task) {
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      try {
+        task.run();
+      } finally {
+        completed.incrementAndGet();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return task.toString();
+    }
+  }
+
+  /**
+   * Creates pool threads which count as running a task until they first come to the queue.
+   */
+  private static final class WorkerCountingThreadFactory implements ThreadFactory {
+    private final TaskCountingQueue queue;
+    private final ThreadFactory delegate;
+
+    private WorkerCountingThreadFactory(TaskCountingQueue queue, ThreadFactory delegate) {
+      this.queue = queue;
+      this.delegate = checkNotNull(delegate);
+    }
+
+    @Override
+    public Thread newThread(final Runnable worker) {
+      // called by execute before a task is handed to the new thread.
+      Thread thread = delegate.newThread(new Runnable() {
+        @Override
+        public void run() {
+          queue.startingWorker.set(true);
+          queue.countedWorker.set(true);
+          try {
+            worker.run();
+          } finally {
+            // no-op unless the thread ends without having come to the queue, e.g. its first task
+            // threw.
+            queue.workerStarted();
+            queue.createdWorkers.decrementAndGet();
+          }
+        }
+      });
+      if (null != thread) {
+        queue.createdWorkers.incrementAndGet();
+        queue.startingWorkers.incrementAndGet();
+      }
+      return thread;
+    }
+  }
+}
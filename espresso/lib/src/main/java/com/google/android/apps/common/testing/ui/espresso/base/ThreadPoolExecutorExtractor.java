@@ -22,6 +22,9 @@ import javax.inject.Singleton;
  * We do some work to ensure that we load the classes containing these thread pools
  * on the main thread, since they may have static initialization that assumes access
  * to the main looper.
+ *
+ * The extracted pools get a {@link TaskCountingQueue} installed, so that their monitors can
+ * tell idleness from task counts. Where that fails the monitors prove idleness with barriers.
  */
 @Singleton
 final class ThreadPoolExecutorExtractor {
@@ -47,7 +50,7 @@ final class ThreadPoolExecutorExtractor {
     }
 
     try {
-      return runOnMainThread(getTask).get().get();
+      return installTaskCounting(runOnMainThread(getTask).get().get());
     } catch (InterruptedException ie) {
       throw new RuntimeException("Interrupted while trying to get the async task executor!", ie);
     } catch (ExecutionException ee) {
@@ -57,8 +60,12 @@ final class ThreadPoolExecutorExtractor {
 
   public Optional<ThreadPoolExecutor> getCompatAsyncTaskThreadPool() {
     try {
-      return runOnMainThread(
+      Optional<ThreadPoolExecutor> compatPool = runOnMainThread(
           new FutureTask<Optional<ThreadPoolExecutor>>(MODERN_ASYNC_TASK_EXTRACTOR)).get();
+      if (compatPool.isPresent()) {
+        installTaskCounting(compatPool.get());
+      }
+      return compatPool;
     } catch (InterruptedException ie) {
       throw new RuntimeException("Interrupted while trying to get the compat async executor!", ie);
     } catch (ExecutionException ee) {
@@ -66,6 +73,12 @@ final class ThreadPoolExecutorExtractor {
     }
   }
 
+  private static ThreadPoolExecutor installTaskCounting(ThreadPoolExecutor pool) {
+    // on failure the pool is left untouched and gets monitored with barriers.
+    TaskCountingQueue.install(pool);
+    return pool;
+  }
+
   private <T> FutureTask<T> runOnMainThread(final FutureTask<T> futureToRun) {
     if (Looper.myLooper() != Looper.getMainLooper()) {
       final CountDownLatch latch = new CountDownLatch(1);
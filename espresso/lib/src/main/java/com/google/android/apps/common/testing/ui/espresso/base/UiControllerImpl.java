@@ -1,27 +1,37 @@
 package com.google.android.apps.common.testing.ui.espresso.base;
 
 import android.annotation.SuppressLint;
+import android.app.Activity;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue.IdleHandler;
 import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
+import com.google.android.apps.common.testing.testrunner.ActivityLifecycleMonitorRegistry;
+import com.google.android.apps.common.testing.testrunner.Stage;
+import com.google.android.apps.common.testing.ui.espresso.IdlingCondition;
 import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
 import com.google.android.apps.common.testing.ui.espresso.IdlingPolicy;
 import com.google.android.apps.common.testing.ui.espresso.InjectEventSecurityException;
+import com.google.android.apps.common.testing.ui.espresso.InteractionIdlingPolicy;
 import com.google.android.apps.common.testing.ui.espresso.UiController;
 import com.google.android.apps.common.testing.ui.espresso.base.IdlingResourceRegistry.IdleNotificationCallback;
 import com.google.android.apps.common.testing.ui.espresso.base.QueueInterrogator.QueueState;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceBuffer;
+import com.google.android.apps.common.testing.ui.espresso.util.TraceEvent;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.collect.Lists;
 
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -29,6 +39,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -46,23 +58,45 @@ final class UiControllerImpl implements UiController, Handler.Callback {
 
     private static final String TAG = UiControllerImpl.class.getSimpleName();
 
-    private static final Callable<Void> NO_OP = new Callable<Void>() {
-        @Override
-        public Void call() {
-            return null;
-        }
-    };
+    // Raised by the main queue's IdleHandler. Kept outside the range of IdleCondition ordinals.
+    private static final int QUEUE_HAS_DRAINED = -1;
+    // Sent to the front of the main queue once the app has been confirmed idle. The looper
+    // dispatches it before anything else, so while it is pending nothing has run on main.
+    private static final int IDLE_EPOCH_ENDED = -2;
+    // Raised once the frame a sync barrier was waiting for has been drawn.
+    private static final int FRAME_HAS_DRAWN = -3;
+    // Raised by the signal handed to a registered IdlingCondition, arg2 holds its slot in
+    // awaitedIdlingConditions.
+    private static final int IDLING_CONDITION_HAS_IDLED = -4;
+    // Wakes loopUntil when an awaited condition's own timeout (see InteractionIdlingPolicy) runs
+    // out.
+    private static final int CONDITION_DEADLINE_REACHED = -5;
+
+    // how many of the most expensive dispatch targets to describe on a timeout.
+    private static final int PROFILE_REPORT_SIZE = 5;
+    // how many of the most recent trace records to log on a timeout.
+    private static final int TRACE_DUMP_SIZE = 200;
 
     /**
      * Responsible for signaling a particular condition is met / verifying that signal.
      */
     enum IdleCondition {
-        DELAY_HAS_PAST,
-        ASYNC_TASKS_HAVE_IDLED,
-        COMPAT_TASKS_HAVE_IDLED,
-        KEY_INJECT_HAS_COMPLETED,
-        MOTION_INJECTION_HAS_COMPLETED,
-        DYNAMIC_TASKS_HAVE_IDLED;
+        DELAY_HAS_PAST(null),
+        ASYNC_TASKS_HAVE_IDLED(InteractionIdlingPolicy.Condition.ASYNC_TASKS),
+        COMPAT_TASKS_HAVE_IDLED(InteractionIdlingPolicy.Condition.COMPAT_ASYNC_TASKS),
+        KEY_INJECT_HAS_COMPLETED(null),
+        MOTION_INJECTION_HAS_COMPLETED(null),
+        // IdlingResources time out in the IdlingResourceRegistry, not in loopUntil.
+        DYNAMIC_TASKS_HAVE_IDLED(null),
+        // raised once every awaited IdlingCondition has signaled.
+        IDLING_CONDITIONS_HAVE_IDLED(InteractionIdlingPolicy.Condition.IDLING_CONDITIONS);
+
+        // the InteractionIdlingPolicy condition whose timeout applies, if any.
+        private final InteractionIdlingPolicy.Condition timedAs;
+
+        private IdleCondition(InteractionIdlingPolicy.Condition timedAs) {
+            this.timedAs = timedAs;
+        }
 
         /**
          * Checks whether this condition has been signaled.
@@ -82,7 +116,15 @@ final class UiControllerImpl implements UiController, Handler.Callback {
          * Creates a message that when sent will raise the signal of this condition.
          */
         public Message createSignal(Handler handler, int myGeneration) {
-            return Message.obtain(handler, ordinal(), myGeneration, 0, null);
+            return createSignal(handler, myGeneration, null);
+        }
+
+        /**
+         * Creates a message that when sent will raise the signal of this condition and hand
+         * the given token back to the handler.
+         */
+        Message createSignal(Handler handler, int myGeneration, Object token) {
+            return Message.obtain(handler, ordinal(), myGeneration, 0, token);
         }
 
         /**
@@ -91,7 +133,7 @@ final class UiControllerImpl implements UiController, Handler.Callback {
          */
         public static boolean handleMessage(Message message, BitSet conditionSet,
                                             int currentGeneration) {
-            IdleCondition [] allConditions = values();
+            IdleCondition [] allConditions = ALL_CONDITIONS;
             if (message.what < 0 || message.what >= allConditions.length) {
                 return false;
             } else {
@@ -107,7 +149,7 @@ final class UiControllerImpl implements UiController, Handler.Callback {
         }
 
         public static BitSet createConditionSet() {
-            return new BitSet(values().length);
+            return new BitSet(ALL_CONDITIONS.length);
         }
 
         /**
@@ -119,19 +161,70 @@ final class UiControllerImpl implements UiController, Handler.Callback {
         }
     }
 
+    // values() clones its array on every call, keep one around for the idle loop.
+    private static final IdleCondition[] ALL_CONDITIONS = IdleCondition.values();
+
     private final EventInjector eventInjector;
     private final BitSet conditionSet;
     private final AsyncTaskPoolMonitor asyncTaskMonitor;
     private final Optional<AsyncTaskPoolMonitor> compatTaskMonitor;
     private final IdlingResourceRegistry idlingResourceRegistry;
+    private final IdlingConditionRegistry idlingConditionRegistry;
     private final ExecutorService keyEventExecutor = Executors.newSingleThreadExecutor();
     private final QueueInterrogator queueInterrogator;
     private final Looper mainLooper;
+    private final DispatchProfiler dispatchProfiler = new DispatchProfiler();
+    private final TraceBuffer trace = TraceBuffer.getInstance();
+
+    private final IdleHandler queueIdleHandler = new QueueDrainedIdleHandler();
+    private final DynamicResourcesIdleCallback dynamicIdleCallback =
+            new DynamicResourcesIdleCallback();
+    // only accessed on main thread - the conditions loopUntil is currently waiting for.
+    private final EnumSet<IdleCondition> awaitedConditions = EnumSet.noneOf(IdleCondition.class);
+    // only accessed on main thread - signals whose message has been handled and can be reused.
+    private final ConditionSignal[] spareSignals = new ConditionSignal[ALL_CONDITIONS.length];
+    // only accessed on main thread - the registered IdlingConditions which were not met when the
+    // current wait began, and which of them have signaled since.
+    private IdlingCondition[] awaitedIdlingConditions = new IdlingCondition[0];
+    private int awaitedIdlingConditionCount = 0;
+    private final BitSet idlingConditionSet = new BitSet();
+    // only accessed on main thread - what the current loopMainThreadUntilIdle waits for, as
+    // decided by the master and interaction idling policies.
+    private boolean idleForAsyncTasks = true;
+    private boolean idleForCompatTasks = true;
+    private boolean idleForResources = true;
+    private boolean idleForConditions = true;
+    // only accessed on main thread - per condition deadlines of the current loopUntil, 0 if none.
+    private final long[] conditionDeadlines = new long[ALL_CONDITIONS.length];
+    // only accessed on main thread - the timeout learned for the screen the current
+    // loopMainThreadUntilIdle waits on, 0 if none applies.
+    private long adaptiveTimeoutMillis = 0;
+    private String adaptiveTimeoutKey = null;
 
     private Handler controllerHandler;
     // only updated on main thread.
     private boolean looping = false;
     private int generation = 0;
+    // set when a signal could have changed the outcome of the idle check, only on main thread.
+    private boolean conditionsChanged = false;
+    private boolean queueDrained = false;
+    private boolean drainSignalPending = false;
+    private boolean eventDrivenIdling = true;
+    // true from the moment a wait confirmed the app idle until the main looper dispatches again.
+    private boolean idleEpochOpen = false;
+    private long idleWaitCount = 0;
+    private long shortCircuitedIdleWaitCount = 0;
+    // only set while loopMainThreadForAtLeast is waiting in virtual time.
+    private boolean advancingTime = false;
+    private long advanceDeadline = 0;
+    private long virtualMillisAdvanced = 0;
+    // JB+ only: traversals hide behind a sync barrier until the next vsync.
+    private FrameWatcher frameWatcher;
+    private boolean frameAwareIdling = true;
+    // set while loopUntil waits for the frame behind a sync barrier to be drawn.
+    private boolean framePending = false;
+    private long loopIterationCount = 0;
+    private long queueInspectionCount = 0;
 
     @VisibleForTesting
     @Inject
@@ -139,12 +232,14 @@ final class UiControllerImpl implements UiController, Handler.Callback {
                      @SdkAsyncTask AsyncTaskPoolMonitor asyncTaskMonitor,
                      @CompatAsyncTask Optional<AsyncTaskPoolMonitor> compatTaskMonitor,
                      IdlingResourceRegistry registry,
+                     IdlingConditionRegistry conditionRegistry,
                      Looper mainLooper) {
         this.eventInjector = checkNotNull(eventInjector);
         this.asyncTaskMonitor = checkNotNull(asyncTaskMonitor);
         this.compatTaskMonitor = checkNotNull(compatTaskMonitor);
         this.conditionSet = IdleCondition.createConditionSet();
         this.idlingResourceRegistry = checkNotNull(registry);
+        this.idlingConditionRegistry = checkNotNull(conditionRegistry);
         this.mainLooper = checkNotNull(mainLooper);
         this.queueInterrogator = new QueueInterrogator(mainLooper);
     }
@@ -198,17 +293,19 @@ final class UiControllerImpl implements UiController, Handler.Callback {
                 new Callable<Boolean>() {
                     @Override
                     public Boolean call() throws Exception {
-                        Log.d(TAG, String.format("Began executing %s.injectMotionEvent in %s", eventInjector, this));
+                        trace.record(TraceEvent.MOTION_INJECTION_STARTED, event.getAction(), 0);
+                        boolean injected = false;
                         try {
-                            return eventInjector.injectMotionEvent(event);
+                            injected = eventInjector.injectMotionEvent(event);
+                            return injected;
                         } finally {
-                            Log.d(TAG, String.format("Finished executing injectMotionEvent in %s", this));
+                            trace.record(TraceEvent.MOTION_INJECTION_FINISHED, injected ? 1 : 0, 0);
                         }
                     }
                 },
                 IdleCondition.MOTION_INJECTION_HAS_COMPLETED,
                 generation);
-        Log.d(TAG, String.format("Submitting injectTask %s for %s", injectTask, event));
+        trace.record(TraceEvent.MOTION_INJECTION_SUBMITTED, event.getAction(), event.getEventTime());
         keyEventExecutor.submit(injectTask);
         loopUntil(IdleCondition.MOTION_INJECTION_HAS_COMPLETED);
         try {
@@ -299,72 +396,252 @@ final class UiControllerImpl implements UiController, Handler.Callback {
     public void loopMainThreadUntilIdle() {
         initialize();
         checkState(Looper.myLooper() == mainLooper, "Expecting to be on main thread!");
-        // TODO: figure out how to break each of these conditions apart and make them settable via defaults and per interaction
-        final boolean idleForAsyncTasks = IdlingPolicies.getMasterIdlingPolicy().shouldWaitForAsyncTasks();
-        Log.d(TAG, "idleForAsyncTasks: " + idleForAsyncTasks);
-        do {
-            EnumSet<IdleCondition> condChecks = EnumSet.noneOf(IdleCondition.class);
-            if (idleForAsyncTasks) {
-                if (!asyncTaskMonitor.isIdleNow()) {
-                    asyncTaskMonitor.notifyWhenIdle(new SignalingTask<Void>(NO_OP,
-                            IdleCondition.ASYNC_TASKS_HAVE_IDLED, generation));
-
-                    condChecks.add(IdleCondition.ASYNC_TASKS_HAVE_IDLED);
-                }
+        applyIdlingPolicies();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "idleForAsyncTasks: " + idleForAsyncTasks + " idleForCompatTasks: "
+                    + idleForCompatTasks + " idleForResources: " + idleForResources
+                    + " idleForConditions: " + idleForConditions);
+        }
+        idleWaitCount++;
+        if (idleEpochOpen && stillIdle()) {
+            shortCircuitedIdleWaitCount++;
+            openIdleEpoch();
+            return;
+        }
+        closeIdleEpoch();
+        Optional<IdleWaitStatistics> statistics = IdlingPolicies.getIdleWaitStatistics();
+        String screenKey = statistics.isPresent() ? currentScreenKey() : null;
+        long waitStart = SystemClock.uptimeMillis();
+        if (null != screenKey) {
+            IdlingPolicy masterIdlePolicy = IdlingPolicies.getMasterIdlingPolicy();
+            adaptiveTimeoutKey = screenKey;
+            adaptiveTimeoutMillis = statistics.get().getTimeoutMillis(screenKey,
+                    masterIdlePolicy.getIdleTimeoutUnit().toMillis(masterIdlePolicy.getIdleTimeout()));
+        }
+        try {
+            awaitBackgroundWork();
+        } finally {
+            adaptiveTimeoutMillis = 0;
+            adaptiveTimeoutKey = null;
+        }
+        if (null != screenKey) {
+            statistics.get().record(screenKey, SystemClock.uptimeMillis() - waitStart);
+        }
+        openIdleEpoch();
+    }
 
-                if (!compatIdle()) {
-                    compatTaskMonitor.get().notifyWhenIdle(new SignalingTask<Void>(NO_OP,
-                            IdleCondition.COMPAT_TASKS_HAVE_IDLED, generation));
-                    condChecks.add(IdleCondition.COMPAT_TASKS_HAVE_IDLED);
-                }
+    private void awaitBackgroundWork() {
+        do {
+            // The condition set, signals and callback below are reused across calls so that
+            // waiting on an idle app does not allocate.
+            EnumSet<IdleCondition> condChecks = awaitedConditions;
+            condChecks.clear();
+            if (idleForAsyncTasks && !asyncTaskMonitor.isIdleNow()) {
+                asyncTaskMonitor.notifyWhenIdle(
+                        obtainSignal(IdleCondition.ASYNC_TASKS_HAVE_IDLED));
+
+                condChecks.add(IdleCondition.ASYNC_TASKS_HAVE_IDLED);
             }
 
-            if (!idlingResourceRegistry.allResourcesAreIdle()) {
-                final IdlingPolicy warning = IdlingPolicies.getDynamicIdlingResourceWarningPolicy();
-                final IdlingPolicy error = IdlingPolicies.getDynamicIdlingResourceErrorPolicy();
-                final SignalingTask<Void> idleSignal = new SignalingTask<Void>(NO_OP,
-                        IdleCondition.DYNAMIC_TASKS_HAVE_IDLED, generation);
-                idlingResourceRegistry.notifyWhenAllResourcesAreIdle(new IdleNotificationCallback() {
-                    @Override
-                    public void resourcesStillBusyWarning(List<String> busyResourceNames) {
-                        warning.handleTimeout(busyResourceNames, "IdlingResources are still busy!");
-                    }
-
-                    @Override
-                    public void resourcesHaveTimedOut(List<String> busyResourceNames) {
-                        error.handleTimeout(busyResourceNames, "IdlingResources have timed out!");
-                        controllerHandler.post(idleSignal);
-                    }
+            if (idleForCompatTasks && !compatTaskMonitor.get().isIdleNow()) {
+                compatTaskMonitor.get().notifyWhenIdle(
+                        obtainSignal(IdleCondition.COMPAT_TASKS_HAVE_IDLED));
+                condChecks.add(IdleCondition.COMPAT_TASKS_HAVE_IDLED);
+            }
 
-                    @Override
-                    public void allResourcesIdle() {
-                        controllerHandler.post(idleSignal);
-                    }
-                });
+            if (idleForResources && !idlingResourceRegistry.allResourcesAreIdle()) {
+                dynamicIdleCallback.arm(obtainSignal(IdleCondition.DYNAMIC_TASKS_HAVE_IDLED));
+                idlingResourceRegistry.notifyWhenAllResourcesAreIdle(dynamicIdleCallback);
                 condChecks.add(IdleCondition.DYNAMIC_TASKS_HAVE_IDLED);
             }
 
+            if (idleForConditions && !armIdlingConditions()) {
+                condChecks.add(IdleCondition.IDLING_CONDITIONS_HAVE_IDLED);
+            }
+
             try {
                 loopUntil(condChecks);
             } finally {
                 if (idleForAsyncTasks) {
                     asyncTaskMonitor.cancelIdleMonitor();
-                    if (compatTaskMonitor.isPresent()) {
-                        compatTaskMonitor.get().cancelIdleMonitor();
-                    }
                 }
-                idlingResourceRegistry.cancelIdleMonitor();
+                if (idleForCompatTasks) {
+                    compatTaskMonitor.get().cancelIdleMonitor();
+                }
+                if (idleForResources) {
+                    idlingResourceRegistry.cancelIdleMonitor();
+                }
+                cancelIdlingConditions();
             }
-        } while (((!asyncTaskMonitor.isIdleNow() || !compatIdle()) && idleForAsyncTasks) || !idlingResourceRegistry.allResourcesAreIdle());
+        } while (!backgroundWorkIdle());
+    }
 
+    /**
+     * Returns the statistics key of the resumed activity, or null if it cannot be told.
+     */
+    private static String currentScreenKey() {
+        Collection<Activity> resumed;
+        try {
+            resumed = ActivityLifecycleMonitorRegistry.getInstance()
+                    .getActivitiesInStage(Stage.RESUMED);
+        } catch (IllegalStateException ise) {
+            // not run by an instrumentation which monitors activities.
+            return null;
+        }
+        if (resumed.isEmpty()) {
+            return null;
+        }
+        return IdleWaitStatistics.screenKey(resumed.iterator().next().getClass().getName());
     }
 
-    private boolean compatIdle() {
-        if (compatTaskMonitor.isPresent()) {
-            return compatTaskMonitor.get().isIdleNow();
-        } else {
-            return true;
+    /**
+     * Decides what loopMainThreadUntilIdle waits for from the master policy and the calling
+     * interaction's policy. Skipped work is not looked at at all - no checks, no monitors.
+     */
+    private void applyIdlingPolicies() {
+        InteractionIdlingPolicy interactionPolicy = IdlingPolicies.getInteractionIdlingPolicy();
+        boolean waitForAsyncTasks =
+                IdlingPolicies.getMasterIdlingPolicy().shouldWaitForAsyncTasks();
+        idleForAsyncTasks = waitForAsyncTasks
+                && !interactionPolicy.skips(InteractionIdlingPolicy.Condition.ASYNC_TASKS);
+        idleForCompatTasks = waitForAsyncTasks && compatTaskMonitor.isPresent()
+                && !interactionPolicy.skips(InteractionIdlingPolicy.Condition.COMPAT_ASYNC_TASKS);
+        idleForResources =
+                !interactionPolicy.skips(InteractionIdlingPolicy.Condition.IDLING_RESOURCES);
+        idleForConditions =
+                !interactionPolicy.skips(InteractionIdlingPolicy.Condition.IDLING_CONDITIONS);
+    }
+
+    /**
+     * Checks everything off the main thread which the current wait is for once, without arming
+     * any monitors.
+     */
+    private boolean backgroundWorkIdle() {
+        return (!idleForAsyncTasks || asyncTaskMonitor.isIdleNow())
+                && (!idleForCompatTasks || compatTaskMonitor.get().isIdleNow())
+                && (!idleForResources || idlingResourceRegistry.allResourcesAreIdle())
+                && (!idleForConditions || idlingConditionRegistry.allConditionsAreIdle());
+    }
+
+    /**
+     * Checks whether an app that was confirmed idle in the current idle epoch is still idle.
+     *
+     * Nothing has been dispatched on the main thread since the epoch opened, so the only things
+     * that can have changed are messages enqueued by the caller and work the pools or idling
+     * resources picked up from other threads. Those are checked once without arming any
+     * monitors; none of these checks block or allocate.
+     */
+    private boolean stillIdle() {
+        // the epoch marker itself sits at the head of the queue - look past it.
+        controllerHandler.removeMessages(IDLE_EPOCH_ENDED);
+        QueueState queueState = queueInterrogator.determineQueueState();
+        if (queueState != QueueState.EMPTY && queueState != QueueState.TASK_DUE_LONG) {
+            return false;
+        }
+        return backgroundWorkIdle();
+    }
+
+    /**
+     * Hands a signal to every registered IdlingCondition which is not met yet.
+     *
+     * Conditions are never polled: each is asked isIdleNow() once here and after that only its
+     * signal can raise IDLING_CONDITIONS_HAVE_IDLED. Signals are bound to the current generation
+     * just like SignalingTask, so a signal run late (or twice) cannot satisfy a later wait.
+     *
+     * @return true if every condition is met already.
+     */
+    private boolean armIdlingConditions() {
+        int count = idlingConditionRegistry.size();
+        if (awaitedIdlingConditions.length < count) {
+            awaitedIdlingConditions = new IdlingCondition[count];
+        }
+        idlingConditionSet.clear();
+        awaitedIdlingConditionCount = 0;
+        for (int i = 0; i < count; i++) {
+            IdlingCondition condition = idlingConditionRegistry.get(i);
+            if (!condition.isIdleNow()) {
+                int slot = awaitedIdlingConditionCount++;
+                awaitedIdlingConditions[slot] = condition;
+                condition.notifyWhenIdle(new IdlingConditionSignal(slot, generation));
+            }
         }
+        return awaitedIdlingConditionCount == 0;
+    }
+
+    private void cancelIdlingConditions() {
+        for (int slot = 0; slot < awaitedIdlingConditionCount; slot++) {
+            awaitedIdlingConditions[slot].cancelIdleNotification();
+            awaitedIdlingConditions[slot] = null;
+        }
+        awaitedIdlingConditionCount = 0;
+        idlingConditionSet.clear();
+    }
+
+    private void handleIdlingConditionSignal(Message msg) {
+        if (msg.arg1 != generation) {
+            Log.w(TAG, "ignoring signal of IdlingCondition in slot: " + msg.arg2
+                    + " from previous generation: " + msg.arg1 + " current generation: "
+                    + generation);
+            return;
+        }
+        idlingConditionSet.set(msg.arg2);
+        if (idlingConditionSet.cardinality() == awaitedIdlingConditionCount) {
+            IdleCondition.IDLING_CONDITIONS_HAVE_IDLED.signal(conditionSet);
+            conditionsChanged = true;
+        }
+    }
+
+    /**
+     * Adds the names of the given unmet conditions, IDLING_CONDITIONS_HAVE_IDLED is broken down
+     * into the IdlingConditions which have not signaled yet.
+     */
+    private void addUnmetConditionName(IdleCondition condition, List<String> names) {
+        if (condition != IdleCondition.IDLING_CONDITIONS_HAVE_IDLED) {
+            names.add(condition.name());
+            return;
+        }
+        for (int slot = 0; slot < awaitedIdlingConditionCount; slot++) {
+            if (!idlingConditionSet.get(slot)) {
+                names.add(awaitedIdlingConditions[slot].getName());
+            }
+        }
+    }
+
+    private void openIdleEpoch() {
+        controllerHandler.removeMessages(IDLE_EPOCH_ENDED);
+        controllerHandler.sendMessageAtFrontOfQueue(
+                controllerHandler.obtainMessage(IDLE_EPOCH_ENDED));
+        idleEpochOpen = true;
+    }
+
+    private void closeIdleEpoch() {
+        controllerHandler.removeMessages(IDLE_EPOCH_ENDED);
+        idleEpochOpen = false;
+    }
+
+    /**
+     * Returns how many times loopMainThreadUntilIdle has been called.
+     */
+    @VisibleForTesting
+    long getIdleWaitCount() {
+        return idleWaitCount;
+    }
+
+    /**
+     * Returns how many calls to loopMainThreadUntilIdle found nothing had changed since the app
+     * was last confirmed idle and returned without looping.
+     */
+    @VisibleForTesting
+    long getShortCircuitedIdleWaitCount() {
+        return shortCircuitedIdleWaitCount;
+    }
+
+    /**
+     * Returns the total number of millis loopMainThreadForAtLeast skipped in virtual time.
+     */
+    @VisibleForTesting
+    long getVirtualMillisAdvanced() {
+        return virtualMillisAdvanced;
     }
 
     @Override
@@ -374,25 +651,119 @@ final class UiControllerImpl implements UiController, Handler.Callback {
         checkState(!IdleCondition.DELAY_HAS_PAST.isSignaled(conditionSet), "recursion detected!");
 
         checkArgument(millisDelay > 0);
-        controllerHandler.postDelayed(new SignalingTask(NO_OP, IdleCondition.DELAY_HAS_PAST,
-                        generation),
+        controllerHandler.sendMessageDelayed(
+                IdleCondition.DELAY_HAS_PAST.createSignal(controllerHandler, generation),
                 millisDelay);
+        if (IdlingPolicies.isVirtualTimeEnabled()) {
+            // the signal is due at the deadline - it is the last message that may be moved.
+            advancingTime = true;
+            advanceDeadline = SystemClock.uptimeMillis() + millisDelay;
+        }
         loopUntil(IdleCondition.DELAY_HAS_PAST);
         loopMainThreadUntilIdle();
     }
 
     @Override
     public boolean handleMessage(Message msg) {
-        if (!IdleCondition.handleMessage(msg, conditionSet, generation)) {
+        if (msg.what == QUEUE_HAS_DRAINED) {
+            drainSignalPending = false;
+            queueDrained = true;
+            return true;
+        } else if (msg.what == IDLE_EPOCH_ENDED) {
+            idleEpochOpen = false;
+            return true;
+        } else if (msg.what == FRAME_HAS_DRAWN) {
+            framePending = false;
+            queueDrained = true;
+            return true;
+        } else if (msg.what == IDLING_CONDITION_HAS_IDLED) {
+            handleIdlingConditionSignal(msg);
+            return true;
+        } else if (msg.what == CONDITION_DEADLINE_REACHED) {
+            conditionsChanged = true;
+            return true;
+        } else if (!IdleCondition.handleMessage(msg, conditionSet, generation)) {
             Log.i(TAG, "Unknown message type: " + msg);
             return false;
         } else {
+            if (msg.obj instanceof ConditionSignal) {
+                // the signal has fired and will never fire again, it is safe to hand out anew.
+                spareSignals[msg.what] = (ConditionSignal) msg.obj;
+            }
+            conditionsChanged = true;
             return true;
         }
     }
 
+    /**
+     * Returns a signal for the given condition bound to the current generation.
+     */
+    private ConditionSignal obtainSignal(IdleCondition condition) {
+        ConditionSignal signal = spareSignals[condition.ordinal()];
+        if (null == signal) {
+            signal = new ConditionSignal(condition);
+        } else {
+            spareSignals[condition.ordinal()] = null;
+        }
+        signal.arm(generation);
+        return signal;
+    }
+
+    /**
+     * Switches between the event driven idle engine (the default) and re-checking the idle
+     * conditions and the reflective queue state after every dispatched message.
+     */
+    @VisibleForTesting
+    void setEventDrivenIdling(boolean eventDrivenIdling) {
+        checkState(!looping, "Cannot switch idle engines while looping.");
+        this.eventDrivenIdling = eventDrivenIdling;
+    }
+
+    /**
+     * Switches between waiting for the frame behind a sync barrier to be drawn (the default on
+     * JB+) and re-examining the queue whenever it goes idle while the barrier is in place.
+     */
+    @VisibleForTesting
+    void setFrameAwareIdling(boolean frameAwareIdling) {
+        checkState(!looping, "Cannot switch idle engines while looping.");
+        this.frameAwareIdling = frameAwareIdling;
+    }
+
+    /**
+     * Returns the number of messages loopUntil has dispatched.
+     */
+    @VisibleForTesting
+    long getLoopIterationCount() {
+        return loopIterationCount;
+    }
+
+    /**
+     * Returns how many times the idle loop has reflectively inspected the main queue.
+     */
+    @VisibleForTesting
+    long getQueueInspectionCount() {
+        return queueInspectionCount;
+    }
+
+    /**
+     * Describes the main thread dispatch targets which took the most time since this controller
+     * was created (or the profile was last reset).
+     */
+    @VisibleForTesting
+    String getDispatchProfileReport(int topN) {
+        return dispatchProfiler.report(topN, IdlingPolicies.getMainThreadFrameBudgetNanos());
+    }
+
+    @VisibleForTesting
+    void resetDispatchProfile() {
+        dispatchProfiler.reset();
+    }
+
     private void loopUntil(IdleCondition condition) {
-        loopUntil(EnumSet.of(condition));
+        checkState(!looping, "Recursive looping detected!");
+        awaitedConditions.clear();
+        awaitedConditions.add(condition);
+        loopUntil(awaitedConditions);
     }
 
     /**
@@ -418,86 +789,245 @@ final class UiControllerImpl implements UiController, Handler.Callback {
      *  }
      * })
      * loopUntil(IdleCondition.MY_IDLE_CONDITION);
+     *
+     * The conditions and the queue state are only re-examined when something could have
+     * changed the outcome: a signal was handled, or the main queue's IdleHandler found every
+     * condition met and the queue drained. The reflective queue check after every message is
+     * kept as a fallback (see setEventDrivenIdling) and as a periodic safety net.
+     *
+     * Waiting on an idle app must not allocate: conditions are walked through ALL_CONDITIONS
+     * rather than the EnumSet's iterator and every dispatch is traced into the binary
+     * TraceBuffer, which is only formatted (and logged) if the loop times out.
+     *
+     * On JB+ a sync barrier at the head of the queue means a traversal is waiting for the next
+     * vsync. Rather than re-examining the queue until the barrier is gone, the loop asks the
+     * Choreographer to tell it when that frame has been drawn (see FrameWatcher).
+     *
+     * Every dispatch is timed and recorded in the DispatchProfiler. Dispatches over the main
+     * thread frame budget are logged as they happen and the most expensive targets are
+     * described if the loop times out.
+     *
+     * The calling interaction's InteractionIdlingPolicy may shorten the overall timeout and give
+     * awaited conditions timeouts of their own; the loop gives up as soon as any of them passes.
      */
     private void loopUntil(EnumSet<IdleCondition> conditions) {
         checkState(!looping, "Recursive looping detected!");
+        checkState(conditions == awaitedConditions, "Only awaitedConditions can be looped on.");
+        closeIdleEpoch();
         looping = true;
+        conditionsChanged = false;
+        queueDrained = false;
+        framePending = false;
+        if (eventDrivenIdling) {
+            Looper.myQueue().addIdleHandler(queueIdleHandler);
+        }
         IdlingPolicy masterIdlePolicy = IdlingPolicies.getMasterIdlingPolicy();
+        InteractionIdlingPolicy interactionPolicy = IdlingPolicies.getInteractionIdlingPolicy();
+        long frameBudgetNanos = IdlingPolicies.getMainThreadFrameBudgetNanos();
+        trace.record(TraceEvent.LOOP_STARTED, generation, 0);
+        int loopCount = 0;
         try {
-            int loopCount = 0;
+            long timeout = masterIdlePolicy.getIdleTimeout();
+            TimeUnit timeoutUnit = masterIdlePolicy.getIdleTimeoutUnit();
+            boolean adaptiveTimeout = false;
+            if (interactionPolicy.getMainThreadTimeoutNanos() > 0) {
+                timeout = TimeUnit.NANOSECONDS.toMillis(interactionPolicy.getMainThreadTimeoutNanos());
+                timeoutUnit = TimeUnit.MILLISECONDS;
+            } else if (adaptiveTimeoutMillis > 0) {
+                timeout = adaptiveTimeoutMillis;
+                timeoutUnit = TimeUnit.MILLISECONDS;
+                adaptiveTimeout = true;
+            }
             long start = SystemClock.uptimeMillis();
-            long end = start + masterIdlePolicy.getIdleTimeoutUnit().toMillis(
-                    masterIdlePolicy.getIdleTimeout());
+            long end = start + timeoutUnit.toMillis(timeout);
+            armConditionDeadlines(conditions, interactionPolicy, start);
+            boolean conditionTimedOut = false;
             while (SystemClock.uptimeMillis() < end) {
-                boolean conditionsMet = true;
                 boolean shouldLogConditionState = loopCount > 0 && loopCount % 100 == 0;
-
-                for (IdleCondition condition : conditions) {
-                    if (!condition.isSignaled(conditionSet)) {
-                        conditionsMet = false;
-                        if (shouldLogConditionState) {
-                            Log.w(TAG, "Waiting for: " + condition.name() + " for " + loopCount + " iterations.");
-                        } else {
-                            break;
+                // conditions cannot be unmet once signaled, so nothing is worth a look until the
+                // pending frame has been drawn.
+                boolean recheck = loopCount == 0 || shouldLogConditionState
+                        || (!framePending && (conditionsChanged || queueDrained || !eventDrivenIdling));
+
+                if (recheck) {
+                    conditionsChanged = false;
+                    queueDrained = false;
+                    boolean conditionsMet = true;
+
+                    for (IdleCondition condition : ALL_CONDITIONS) {
+                        if (conditions.contains(condition) && !condition.isSignaled(conditionSet)) {
+                            conditionsMet = false;
+                            if (shouldLogConditionState) {
+                                Log.w(TAG, "Waiting for: " + condition.name() + " for " + loopCount + " iterations.");
+                            } else {
+                                break;
+                            }
                         }
                     }
-                }
-
-                if (conditionsMet) {
-                    QueueState queueState = queueInterrogator.determineQueueState();
-                    if (queueState == QueueState.EMPTY || queueState == QueueState.TASK_DUE_LONG) {
-                        return;
-                    } else {
-                        Log.v(
-                                "ESP_TRACE",
 
-                                "Barrier detected or task avaliable for running shortly.");
+                    if (conditionsMet) {
+                        QueueState queueState = inspectQueue();
+                        if (queueState == QueueState.EMPTY || queueState == QueueState.TASK_DUE_LONG) {
+                            return;
+                        } else if (queueState == QueueState.BARRIER) {
+                            awaitFrame();
+                        }
+                        trace.record(TraceEvent.QUEUE_NOT_IDLE, queueState.ordinal(), 0);
+                    } else if (conditionDeadlinePassed()) {
+                        conditionTimedOut = true;
+                        break;
+                    } else if (canAdvanceTime()) {
+                        // nothing is left to wait for but time - move the next delayed message
+                        // forward so next() hands it out immediately.
+                        virtualMillisAdvanced += queueInterrogator.advanceTo(advanceDeadline);
                     }
                 }
 
                 Message message = queueInterrogator.getNextMessage();
-                String callbackString = "unknown";
-                String messageString = "unknown";
-                try {
-                    if (null == message.getCallback()) {
-                        callbackString = "no callback.";
-                    } else {
-                        callbackString = message.getCallback().toString();
-                    }
-                    messageString = message.toString();
-                } catch (NullPointerException e) {
-          /*
-           * Ignore. android.app.ActivityThread$ActivityClientRecord#toString() fails for API level
-           * 15.
-           */
+                // the message is recycled once dispatched, note what it was first.
+                Handler target = message.getTarget();
+                Runnable callback = message.getCallback();
+                long dispatchStart = System.nanoTime();
+                target.dispatchMessage(message);
+                long dispatchNanos = System.nanoTime() - dispatchStart;
+                Class<?> callbackClass = null == callback ? null : callback.getClass();
+                trace.record(TraceEvent.MESSAGE_DISPATCHED, target.getClass(), callbackClass,
+                        dispatchNanos, message.what);
+                if (dispatchProfiler.record(target.getClass(), callbackClass, dispatchNanos,
+                        frameBudgetNanos)) {
+                    logOverBudget(target, callback, dispatchNanos, frameBudgetNanos);
                 }
-
-                Log.v(
-                        "ESP_TRACE",
-                        String.format("%s: MessageQueue.next(): %s, with target: %s, callback: %s", TAG,
-                                messageString, message.getTarget().getClass().getCanonicalName(), callbackString));
-                message.getTarget().dispatchMessage(message);
                 message.recycle();
                 loopCount++;
+                loopIterationCount++;
             }
             List<String> idleConditions = Lists.newArrayList();
-            for (IdleCondition condition : conditions) {
-                if (!condition.isSignaled(conditionSet)) {
-                    idleConditions.add(condition.name());
+            for (IdleCondition condition : ALL_CONDITIONS) {
+                if (conditions.contains(condition) && !condition.isSignaled(conditionSet)) {
+                    addUnmetConditionName(condition, idleConditions);
                 }
             }
+            Log.e(TAG, trace.dump(TRACE_DUMP_SIZE));
+            String waited = conditionTimedOut
+                    ? String.format("%s MILLISECONDS (an awaited condition's own timeout)",
+                            SystemClock.uptimeMillis() - start)
+                    : adaptiveTimeout
+                    ? String.format("%s MILLISECONDS (learned from past waits on %s)", timeout,
+                            adaptiveTimeoutKey)
+                    : timeout + " " + timeoutUnit.name();
+            String resourceTimeline = conditions.contains(IdleCondition.DYNAMIC_TASKS_HAVE_IDLED)
+                    ? idlingResourceRegistry.describeTimeline() + "\n"
+                    : "";
             masterIdlePolicy.handleTimeout(idleConditions, String.format(
-                    "Looped for %s iterations over %s %s.", loopCount, masterIdlePolicy.getIdleTimeout(),
-                    masterIdlePolicy.getIdleTimeoutUnit().name()));
+                    "Looped for %s iterations over %s.\n%s\n%s", loopCount, waited,
+                    dispatchProfiler.report(PROFILE_REPORT_SIZE, frameBudgetNanos),
+                    resourceTimeline));
         } finally {
+            if (eventDrivenIdling) {
+                Looper.myQueue().removeIdleHandler(queueIdleHandler);
+            }
+            controllerHandler.removeMessages(QUEUE_HAS_DRAINED);
+            drainSignalPending = false;
+            if (null != frameWatcher) {
+                frameWatcher.cancel();
+            }
+            controllerHandler.removeMessages(FRAME_HAS_DRAWN);
+            framePending = false;
+            controllerHandler.removeMessages(CONDITION_DEADLINE_REACHED);
+            advancingTime = false;
             looping = false;
+            trace.record(TraceEvent.LOOP_FINISHED, loopCount, generation);
             generation++;
-            for (IdleCondition condition : conditions) {
-                condition.reset(conditionSet);
+            for (IdleCondition condition : ALL_CONDITIONS) {
+                if (conditions.contains(condition)) {
+                    condition.reset(conditionSet);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes when each awaited condition with a timeout of its own runs out of time, and makes
+     * sure loopUntil is woken at that point.
+     */
+    private void armConditionDeadlines(EnumSet<IdleCondition> conditions,
+                                       InteractionIdlingPolicy interactionPolicy, long start) {
+        for (IdleCondition condition : ALL_CONDITIONS) {
+            long deadline = 0;
+            if (null != condition.timedAs && conditions.contains(condition)) {
+                long timeoutNanos = interactionPolicy.getTimeoutNanos(condition.timedAs);
+                if (timeoutNanos > 0) {
+                    deadline = start + TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+                    controllerHandler.sendEmptyMessageAtTime(CONDITION_DEADLINE_REACHED, deadline);
+                }
             }
+            conditionDeadlines[condition.ordinal()] = deadline;
         }
     }
 
+    private boolean conditionDeadlinePassed() {
+        long now = SystemClock.uptimeMillis();
+        for (IdleCondition condition : ALL_CONDITIONS) {
+            long deadline = conditionDeadlines[condition.ordinal()];
+            if (deadline != 0 && now >= deadline && !condition.isSignaled(conditionSet)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private QueueState inspectQueue() {
+        queueInspectionCount++;
+        return queueInterrogator.determineQueueState();
+    }
+
+    /**
+     * Stops examining the queue until the frame the sync barrier at its head is waiting for has
+     * been drawn. Traversals are plain messages before JB, there the barrier is simply looped
+     * through.
+     */
+    private void awaitFrame() {
+        if (!frameAwareIdling || Build.VERSION.SDK_INT < 16) {
+            return;
+        }
+        if (null == frameWatcher) {
+            frameWatcher = new FrameWatcher(controllerHandler);
+        }
+        framePending = true;
+        frameWatcher.arm();
+    }
+
+    private boolean awaitedConditionsMet() {
+        return awaitedConditionsMetExcept(null);
+    }
+
+    private boolean awaitedConditionsMetExcept(IdleCondition ignored) {
+        for (IdleCondition condition : ALL_CONDITIONS) {
+            if (condition != ignored && awaitedConditions.contains(condition)
+                    && !condition.isSignaled(conditionSet)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Virtual time only moves while the delay is the one thing loopUntil is still waiting for.
+     * Stale DELAY_HAS_PAST signals from earlier generations may be moved along with everything
+     * else, they are ignored when handled just as they would be in real time.
+     */
+    private boolean canAdvanceTime() {
+        return advancingTime && awaitedConditionsMetExcept(IdleCondition.DELAY_HAS_PAST);
+    }
+
+    private static void logOverBudget(Handler target, Runnable callback, long dispatchNanos,
+                                      long frameBudgetNanos) {
+        Log.w(TAG, String.format("Main thread dispatch to %s (callback: %s) took %sms, over the "
+                + "frame budget of %sms.", target.getClass().getName(),
+                null == callback ? "none" : callback.getClass().getName(),
+                TimeUnit.NANOSECONDS.toMillis(dispatchNanos),
+                TimeUnit.NANOSECONDS.toMillis(frameBudgetNanos)));
+    }
 
     private void initialize() {
         if (controllerHandler == null) {
@@ -506,6 +1036,171 @@ final class UiControllerImpl implements UiController, Handler.Callback {
     }
 
 
+    /**
+     * Wakes loopUntil once the main queue has nothing left to run shortly and every awaited
+     * condition has been signaled.
+     *
+     * MessageQueue.next() calls this on the main thread right before it would block, so the
+     * queue is only inspected once per drain rather than after every dispatched message. In
+     * virtual time it also wakes loopUntil when the delay is all that is left to wait for.
+     */
+    private class QueueDrainedIdleHandler implements IdleHandler {
+        @Override
+        public boolean queueIdle() {
+            if (looping && !drainSignalPending && !framePending) {
+                if (awaitedConditionsMet()) {
+                    QueueState queueState = inspectQueue();
+                    if (queueState == QueueState.EMPTY || queueState == QueueState.TASK_DUE_LONG) {
+                        drainSignalPending = true;
+                        controllerHandler.sendEmptyMessage(QUEUE_HAS_DRAINED);
+                    } else if (queueState == QueueState.BARRIER) {
+                        awaitFrame();
+                    }
+                } else if (canAdvanceTime()) {
+                    // the queue is about to block on a delayed message, wake loopUntil so it can
+                    // move time forward instead.
+                    if (inspectQueue() != QueueState.BARRIER) {
+                        drainSignalPending = true;
+                        controllerHandler.sendEmptyMessage(QUEUE_HAS_DRAINED);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Raises FRAME_HAS_DRAWN after the Choreographer's next frame.
+     *
+     * Frame callbacks run in the animation phase of Choreographer.doFrame, before the traversal
+     * which removes the sync barrier. The message sent from here is therefore only dispatched
+     * once doFrame - and with it the traversal and draw - has completed. If the traversal is
+     * rescheduled the loop simply finds a barrier again and waits for the following frame.
+     *
+     * Only ever instantiated on JB+.
+     */
+    private static final class FrameWatcher implements Choreographer.FrameCallback {
+        private final Handler handler;
+        private boolean armed = false;
+
+        private FrameWatcher(Handler handler) {
+            this.handler = checkNotNull(handler);
+        }
+
+        // main thread only.
+        private void arm() {
+            if (!armed) {
+                armed = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        // main thread only.
+        private void cancel() {
+            if (armed) {
+                armed = false;
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            armed = false;
+            handler.sendEmptyMessage(FRAME_HAS_DRAWN);
+        }
+    }
+
+    /**
+     * A reusable signal for a condition which has no result to hand back.
+     *
+     * The generation is bound when the signal is handed out (just like SignalingTask) and the
+     * signal fires at most once per arming. It only returns to spareSignals once its message has
+     * been handled - a signal given to a monitor which is later cancelled is simply dropped, so a
+     * late run() can never raise a condition for a newer generation.
+     */
+    private final class ConditionSignal implements Runnable {
+        private final IdleCondition condition;
+        private final AtomicBoolean fired = new AtomicBoolean(true);
+        private volatile int myGeneration;
+
+        private ConditionSignal(IdleCondition condition) {
+            this.condition = checkNotNull(condition);
+        }
+
+        // main thread only.
+        private void arm(int generation) {
+            myGeneration = generation;
+            fired.set(false);
+        }
+
+        @Override
+        public void run() {
+            if (fired.compareAndSet(false, true)) {
+                controllerHandler.sendMessage(
+                        condition.createSignal(controllerHandler, myGeneration, this));
+            }
+        }
+    }
+
+    /**
+     * The signal handed to a registered IdlingCondition.
+     *
+     * Unlike ConditionSignal these are not reused: user code may hold on to (and run) a signal
+     * long after its wait is over, a fresh instance per wait keeps such a run harmless.
+     */
+    private final class IdlingConditionSignal implements Runnable {
+        private final int slot;
+        private final int myGeneration;
+        private final AtomicBoolean fired = new AtomicBoolean(false);
+
+        private IdlingConditionSignal(int slot, int myGeneration) {
+            this.slot = slot;
+            this.myGeneration = myGeneration;
+        }
+
+        @Override
+        public void run() {
+            if (fired.compareAndSet(false, true)) {
+                controllerHandler.sendMessage(Message.obtain(
+                        controllerHandler, IDLING_CONDITION_HAS_IDLED, myGeneration, slot));
+            }
+        }
+    }
+
+    /**
+     * Raises DYNAMIC_TASKS_HAVE_IDLED once the registry reports all resources idle (or timed out).
+     * A single instance is re-armed for each wait.
+     */
+    private final class DynamicResourcesIdleCallback implements IdleNotificationCallback {
+        private IdlingPolicy warning;
+        private IdlingPolicy error;
+        private ConditionSignal idleSignal;
+
+        // main thread only.
+        private void arm(ConditionSignal idleSignal) {
+            this.warning = IdlingPolicies.getDynamicIdlingResourceWarningPolicy();
+            this.error = IdlingPolicies.getDynamicIdlingResourceErrorPolicy();
+            this.idleSignal = checkNotNull(idleSignal);
+        }
+
+        @Override
+        public void resourcesStillBusyWarning(List<String> busyResourceNames) {
+            warning.handleTimeout(busyResourceNames, "IdlingResources are still busy!");
+        }
+
+        @Override
+        public void resourcesHaveTimedOut(List<String> busyResourceNames) {
+            error.handleTimeout(busyResourceNames, "IdlingResources have timed out!\n"
+                    + idlingResourceRegistry.describeTimeline());
+            idleSignal.run();
+        }
+
+        @Override
+        public void allResourcesIdle() {
+            idleSignal.run();
+        }
+    }
+
     /**
      * Encapsulates posting a signal message to update the conditions set after a task has
      * executed.
@@ -7,7 +7,8 @@ import android.widget.AdapterView;
 import com.google.android.apps.common.testing.ui.espresso.AmbiguousViewMatcherException;
 import com.google.android.apps.common.testing.ui.espresso.NoMatchingViewException;
 import com.google.android.apps.common.testing.ui.espresso.ViewFinder;
-import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers;
+import com.google.android.apps.common.testing.ui.espresso.matcher.MatcherPlanner;
+import com.google.android.apps.common.testing.ui.espresso.matcher.RequiredViewId;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
@@ -37,73 +38,108 @@ import static com.google.common.base.Preconditions.checkState;
 public final class ViewFinderImpl implements ViewFinder {
 
     private final Matcher<View> viewMatcher;
+    // the same matcher, trying its cheap parts first. It describes itself as the original.
+    private final Matcher<View> plannedMatcher;
+    private final Optional<Integer> requiredId;
     private final Provider<List<View>> rootViewsProvider;
+    private final ViewIndex viewIndex;
 
     @Inject
-    ViewFinderImpl(Matcher<View> viewMatcher, Provider<List<View>> rootViewsProvider) {
-        this.viewMatcher = viewMatcher;
+    ViewFinderImpl(Matcher<View> viewMatcher, Provider<List<View>> rootViewsProvider,
+            ViewIndex viewIndex) {
+        this.viewMatcher = checkNotNull(viewMatcher);
+        // planned once - a finder is asked again and again while a check waits for its view.
+        this.plannedMatcher = MatcherPlanner.plan(viewMatcher);
+        this.requiredId = RequiredViewId.of(viewMatcher);
         this.rootViewsProvider = rootViewsProvider;
+        this.viewIndex = viewIndex;
     }
 
     @Override
     public View getView() throws AmbiguousViewMatcherException, NoMatchingViewException {
         checkMainThread();
-        final Predicate<View> matcherPredicate = new MatcherPredicateAdapter<View>(
-                checkNotNull(viewMatcher));
 
-        View matchedView = null;
         List<View> roots = rootViewsProvider.get();
-        Iterator<View> matchedViewIterator = Iterables.filter(
-                Iterables.concat(Lists.transform(roots, new Function<View, Iterable<View>>() {
+        if (requiredId.isPresent() && View.NO_ID != requiredId.get()) {
+            View indexedView = findIndexedView(roots, requiredId.get());
+            if (null != indexedView) {
+                return indexedView;
+            }
+        }
+
+        Iterator<View> viewIterator = Iterables.concat(
+                Lists.transform(roots, new Function<View, Iterable<View>>() {
                     @Nullable @Override
                     public Iterable<View> apply(@Nullable View root) {
                         return breadthFirstViewTraversal(root);
                     }
-                })), matcherPredicate).iterator();
-
-
-        while (matchedViewIterator.hasNext()) {
-            if (matchedView != null) {
-                // Ambiguous!
-                throw new AmbiguousViewMatcherException.Builder()
-                        .withViewMatcher(viewMatcher)
-                        .withRootViews(roots)
-                        .withView1(matchedView)
-                        .withView2(matchedViewIterator.next())
-                        .withOtherAmbiguousViews(Iterators.toArray(matchedViewIterator, View.class))
-                        .build();
-            } else {
-                matchedView = matchedViewIterator.next();
-            }
-        }
-        if (null == matchedView) {
-            final Predicate<View> adapterViewPredicate = new MatcherPredicateAdapter<View>(
-                    ViewMatchers.isAssignableFrom(AdapterView.class));
-            List<View> adapterViews = Lists.newArrayList(Iterables.concat(Lists.transform(roots, new Function<View, Iterable<View>>() {
-                @Nullable @Override
-                public Iterable<View> apply(@Nullable View root) {
-                    return Iterables.filter(breadthFirstViewTraversal(root), adapterViewPredicate);
+                })).iterator();
+
+        // one pass both matches the views and, until something matched, collects the AdapterViews
+        // for the onData hint.
+        View matchedView = null;
+        List<View> adapterViews = null;
+        while (viewIterator.hasNext()) {
+            View view = viewIterator.next();
+            if (plannedMatcher.matches(view)) {
+                if (matchedView != null) {
+                    // Ambiguous! The rest of the hierarchy is only matched for the error message.
+                    throw new AmbiguousViewMatcherException.Builder()
+                            .withViewMatcher(viewMatcher)
+                            .withRootViews(roots)
+                            .withView1(matchedView)
+                            .withView2(view)
+                            .withOtherAmbiguousViews(Iterators.toArray(Iterators.filter(
+                                    viewIterator, new MatcherPredicateAdapter<View>(plannedMatcher)),
+                                    View.class))
+                            .build();
                 }
-            })));
-            if (adapterViews.isEmpty()) {
-                throw new NoMatchingViewException.Builder()
-                        .withViewMatcher(viewMatcher)
-                        .withRootView(roots)
-                        .build();
+                matchedView = view;
+                adapterViews = null;
+            } else if (null == matchedView && view instanceof AdapterView) {
+                if (null == adapterViews) {
+                    adapterViews = Lists.newArrayList();
+                }
+                adapterViews.add(view);
             }
+        }
+        if (null != matchedView) {
+            return matchedView;
+        }
 
-            String warning = String.format("\nIf the target view is not part of the view hierarchy, you "
-                    + "may need to use Espresso.onData to load it from one of the following AdapterViews:%s"
-                    , Joiner.on("\n- ").join(adapterViews));
+        if (null == adapterViews) {
             throw new NoMatchingViewException.Builder()
                     .withViewMatcher(viewMatcher)
                     .withRootView(roots)
-                    .withAdapterViews(adapterViews)
-                    .withAdapterViewWarning(Optional.of(warning))
                     .build();
-        } else {
-            return matchedView;
         }
+
+        String warning = String.format("\nIf the target view is not part of the view hierarchy, you "
+                + "may need to use Espresso.onData to load it from one of the following AdapterViews:%s"
+                , Joiner.on("\n- ").join(adapterViews));
+        throw new NoMatchingViewException.Builder()
+                .withViewMatcher(viewMatcher)
+                .withRootView(roots)
+                .withAdapterViews(adapterViews)
+                .withAdapterViewWarning(Optional.of(warning))
+                .build();
+    }
+
+    /**
+     * Returns the only view with the given id which matches, or null if there is none or more than
+     * one - the full traversal then makes sure and reports why.
+     */
+    private View findIndexedView(List<View> roots, int id) {
+        View matchedView = null;
+        for (View view : viewIndex.viewsWithId(roots, id)) {
+            if (plannedMatcher.matches(view)) {
+                if (null != matchedView) {
+                    return null;
+                }
+                matchedView = view;
+            }
+        }
+        return matchedView;
     }
 
     private void checkMainThread() {
@@ -0,0 +1,207 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.depthFirstViewTraversal;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import android.os.Build;
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Indexes the views under each root by their id, so a view with a given id can be found without
+ * walking the whole hierarchy.
+ *
+ * The index of a root records every view under it along with the id the view had, and is only
+ * trusted while it still describes the tree: it is rebuilt when the root has a layout pending or
+ * just laid out - which views being added, removed, shown or hidden all cause - and when any view
+ * it recorded has changed its id since, as setId does not lay anything out. The views it returns
+ * are therefore exactly the views under the root which have the id now.
+ *
+ * The index of a root is dropped as soon as the root is detached from its window, so finished
+ * activities are not kept alive by this singleton. Before Honeycomb MR1 views cannot report being
+ * detached; there roots are only dropped by the next lookup which is not given them.
+ *
+ * This class can only be accessed from the main thread.
+ */
+@Singleton
+public final class ViewIndex {
+
+  // guarded by the main thread.
+  private final Map<View, RootIndex> rootIndexes = Maps.newHashMap();
+
+  @Inject
+  ViewIndex() {}
+
+  /**
+   * Returns the views under the given roots which have the given id. Indexes of roots not among
+   * the given ones are dropped.
+   */
+  List<View> viewsWithId(List<View> roots, int id) {
+    checkMainThread();
+    for (Iterator<Map.Entry<View, RootIndex>> it = rootIndexes.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<View, RootIndex> entry = it.next();
+      if (!roots.contains(entry.getKey())) {
+        entry.getValue().release();
+        it.remove();
+      }
+    }
+    List<View> views = Lists.newArrayList();
+    for (View root : roots) {
+      RootIndex rootIndex = rootIndexes.get(root);
+      if (null == rootIndex) {
+        rootIndex = new RootIndex(root);
+        rootIndexes.put(root, rootIndex);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+          root.addOnAttachStateChangeListener(rootIndex);
+        }
+      }
+      rootIndex.addViewsWithId(id, views);
+    }
+    return views;
+  }
+
+  private static boolean isUnder(View view, View root) {
+    if (view == root) {
+      return true;
+    }
+    for (ViewParent parent = view.getParent(); null != parent; parent = parent.getParent()) {
+      if (parent == root) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void checkMainThread() {
+    checkState(Thread.currentThread().equals(Looper.getMainLooper().getThread()),
+        "Accessing the view index outside of the main thread (on: %s)",
+        Thread.currentThread().getName());
+  }
+
+  /**
+   * The views under a single root and the ids they had, valid while no view changed its id and
+   * the root neither laid out nor has a layout pending.
+   */
+  private final class RootIndex
+      implements ViewTreeObserver.OnGlobalLayoutListener, View.OnAttachStateChangeListener {
+    private final View root;
+    // the observer this index listens to, replaced when the root is attached to another window.
+    private ViewTreeObserver observer;
+    // reused across builds - only the first size entries are used.
+    private View[] views;
+    private int[] ids;
+    private int size;
+    private boolean stale = true;
+
+    private RootIndex(View root) {
+      this.root = root;
+    }
+
+    private void addViewsWithId(int id, List<View> out) {
+      ViewTreeObserver current = root.getViewTreeObserver();
+      if (current != observer) {
+        detach();
+        current.addOnGlobalLayoutListener(this);
+        observer = current;
+      }
+      // a pending layout means views may have been added which are not indexed yet.
+      if (stale || root.isLayoutRequested() || !collect(id, out)) {
+        build();
+        collect(id, out);
+      }
+    }
+
+    /**
+     * Adds the indexed views with the given id, or returns false and adds nothing if a view
+     * changed its id since the index was built.
+     */
+    private boolean collect(int id, List<View> out) {
+      int start = out.size();
+      for (int i = 0; i < size; i++) {
+        View view = views[i];
+        if (view.getId() != ids[i]) {
+          out.subList(start, out.size()).clear();
+          return false;
+        }
+        // views removed from the tree since keep their id, but are not under the root any more.
+        if (id == ids[i] && isUnder(view, root)) {
+          out.add(view);
+        }
+      }
+      return true;
+    }
+
+    private void build() {
+      List<View> all = Lists.newArrayList(depthFirstViewTraversal(root));
+      size = all.size();
+      if (null == views || views.length < size) {
+        views = new View[size];
+        ids = new int[size];
+      }
+      for (int i = 0; i < size; i++) {
+        View view = all.get(i);
+        views[i] = view;
+        ids[i] = view.getId();
+      }
+      // drop references to views a larger tree left behind.
+      for (int i = size; i < views.length; i++) {
+        views[i] = null;
+      }
+      stale = false;
+    }
+
+    @Override
+    public void onGlobalLayout() {
+      stale = true;
+    }
+
+    @Override
+    public void onViewAttachedToWindow(View view) {}
+
+    @Override
+    public void onViewDetachedFromWindow(View view) {
+      // called on the main thread, like every other access to the index.
+      if (rootIndexes.get(root) == this) {
+        rootIndexes.remove(root);
+      }
+      release();
+    }
+
+    /** Stops listening to the root and forgets its views. */
+    private void release() {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+        root.removeOnAttachStateChangeListener(this);
+      }
+      detach();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void detach() {
+      if (null != observer && observer.isAlive()) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+          observer.removeGlobalOnLayoutListener(this);
+        } else {
+          observer.removeOnGlobalLayoutListener(this);
+        }
+      }
+      observer = null;
+      views = null;
+      ids = null;
+      size = 0;
+      stale = true;
+    }
+  }
+}
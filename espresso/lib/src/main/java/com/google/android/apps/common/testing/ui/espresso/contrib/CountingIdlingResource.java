@@ -4,6 +4,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.android.apps.common.testing.ui.espresso.IdlingResource;
+import com.google.android.apps.common.testing.ui.espresso.TransitionAwareIdlingResource;
 
 import android.os.SystemClock;
 import android.util.Log;
@@ -19,6 +20,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * (like counter less than zero) it will throw an IllegalStateException.
  * </p>
  * <p>
+ * Espresso is told about both transitions - to busy and to idle - so it never needs to ask this
+ * resource whether it is idle.
+ * </p>
+ * <p>
  * This class can then be used to wrap up operations that while in progress should block tests from
  * accessing the UI.
  * </p>
@@ -76,7 +81,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  */
 @SuppressWarnings("javadoc")
-public final class CountingIdlingResource implements IdlingResource {
+public final class CountingIdlingResource implements TransitionAwareIdlingResource {
   private static final String TAG = "CountingIdlingResource";
   private final String resourceName;
   private final AtomicInteger counter = new AtomicInteger(0);
@@ -84,6 +89,9 @@ public final class CountingIdlingResource implements IdlingResource {
 
   // written from main thread, read from any thread.
   private volatile ResourceCallback resourceCallback;
+  private volatile TransitionCallback transitionCallback;
+  // held while reporting a transition, so the last one reported matches the counter.
+  private final Object transitionLock = new Object();
 
   // read/written from any thread - used for debugging messages.
   private volatile long becameBusyAt = 0;
@@ -124,6 +132,12 @@ public final class CountingIdlingResource implements IdlingResource {
     this.resourceCallback = resourceCallback;
   }
 
+  @Override
+  public void registerTransitionCallback(TransitionCallback transitionCallback) {
+    this.transitionCallback = transitionCallback;
+    this.resourceCallback = transitionCallback;
+  }
+
   /**
    * Increments the count of in-flight transactions to the resource being monitored.
    *
@@ -133,6 +147,7 @@ public final class CountingIdlingResource implements IdlingResource {
     int counterVal = counter.getAndIncrement();
     if (0 == counterVal) {
       becameBusyAt = SystemClock.uptimeMillis();
+      reportTransition();
     }
 
     if (debugCounting) {
@@ -152,9 +167,7 @@ public final class CountingIdlingResource implements IdlingResource {
 
     if (counterVal == 0) {
       // we've gone from non-zero to zero. That means we're idle now! Tell espresso.
-      if (null != resourceCallback) {
-        resourceCallback.onTransitionToIdle();
-      }
+      reportTransition();
       becameIdleAt = SystemClock.uptimeMillis();
     }
 
@@ -169,6 +182,22 @@ public final class CountingIdlingResource implements IdlingResource {
     checkState(counterVal > -1, "Counter has been corrupted!");
   }
 
+  /**
+   * Tells Espresso whether the counter is zero. Increments and decrements on other threads may race
+   * with this, but whichever report comes last reads the counter after every transition before it.
+   */
+  private void reportTransition() {
+    synchronized (transitionLock) {
+      if (0 == counter.get()) {
+        if (null != resourceCallback) {
+          resourceCallback.onTransitionToIdle();
+        }
+      } else if (null != transitionCallback) {
+        transitionCallback.onTransitionToBusy();
+      }
+    }
+  }
+
   /**
    * Prints the current state of this resource to the logcat at info level.
    */
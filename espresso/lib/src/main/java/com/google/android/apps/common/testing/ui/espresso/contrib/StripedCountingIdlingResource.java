@@ -0,0 +1,245 @@
+package com.google.android.apps.common.testing.ui.espresso.contrib;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.android.apps.common.testing.ui.espresso.TransitionAwareIdlingResource;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link CountingIdlingResource} for counters which are incremented and decremented from many
+ * threads at once. It is idle when the counter is 0, and reports both transitions to Espresso.
+ * <p>
+ * The counter is split into stripes, each thread incrementing its own one, so threads do not
+ * contend on a single value while the resource stays busy. Only a stripe going from 0 to non-zero
+ * or back touches the shared root count (as in a scalable non-zero indicator), and only the root
+ * going from 0 to 1 or back reports a transition - under a lock, so the transitions reach Espresso
+ * in order and each exactly once.
+ * </p>
+ * <p>
+ * A thread decrements its own stripe if that holds an increment, and otherwise one that does, so
+ * increments and decrements may still come from different threads. Unlike CountingIdlingResource
+ * this class never logs from increment or decrement.
+ * </p>
+ */
+public final class StripedCountingIdlingResource implements TransitionAwareIdlingResource {
+  private static final String TAG = "StripedCountingIdlingResource";
+  // each stripe gets a cache line of its own.
+  private static final int PADDING = 8;
+  private static final int MAX_STRIPES = 64;
+  // the count of a stripe whose first increment is still being announced to the root.
+  private static final int ANNOUNCING = -1;
+
+  private final String resourceName;
+  private final int stripeMask;
+  // per stripe: a version in the high 32 bits, the count in the low 32 bits.
+  private final AtomicLongArray stripes;
+
+  // held while changing the root count, so the last transition reported matches it.
+  private final Object transitionLock = new Object();
+  // the number of stripes announced as non-zero, written under transitionLock.
+  private volatile int rootCount = 0;
+
+  // written from main thread, read from any thread.
+  private volatile ResourceCallback resourceCallback;
+  private volatile TransitionCallback transitionCallback;
+
+  // written under transitionLock - used for debugging messages.
+  private volatile long becameBusyAt = 0;
+  private volatile long becameIdleAt = 0;
+
+  /**
+   * Creates a StripedCountingIdlingResource with a stripe per available processor.
+   *
+   * @param resourceName the resource name this resource should report to Espresso.
+   */
+  public StripedCountingIdlingResource(String resourceName) {
+    this(resourceName, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a StripedCountingIdlingResource.
+   *
+   * @param resourceName the resource name this resource should report to Espresso.
+   * @param stripes how many threads may count without contending, rounded up to a power of 2.
+   */
+  public StripedCountingIdlingResource(String resourceName, int stripes) {
+    this.resourceName = checkNotNull(resourceName);
+    int stripeCount =
+        Integer.highestOneBit(Math.min(MAX_STRIPES, Math.max(1, stripes)) * 2 - 1);
+    this.stripeMask = stripeCount - 1;
+    this.stripes = new AtomicLongArray(stripeCount * PADDING);
+  }
+
+  @Override
+  public String getName() {
+    return resourceName;
+  }
+
+  @Override
+  public boolean isIdleNow() {
+    return rootCount == 0;
+  }
+
+  @Override
+  public void registerIdleTransitionCallback(ResourceCallback resourceCallback) {
+    this.resourceCallback = resourceCallback;
+  }
+
+  @Override
+  public void registerTransitionCallback(TransitionCallback transitionCallback) {
+    this.transitionCallback = transitionCallback;
+    this.resourceCallback = transitionCallback;
+  }
+
+  /**
+   * Increments the count of in-flight transactions to the resource being monitored.
+   *
+   * This method can be called from any thread.
+   */
+  public void increment() {
+    int index = stripeOf(Thread.currentThread());
+    int failedAnnouncements = 0;
+    boolean incremented = false;
+    while (!incremented) {
+      long stripe = stripes.get(index);
+      int count = count(stripe);
+      int version = version(stripe);
+      if (count >= 1) {
+        incremented = stripes.compareAndSet(index, stripe, pack(count + 1, version));
+      } else if (count == 0) {
+        long announcing = pack(ANNOUNCING, version + 1);
+        if (stripes.compareAndSet(index, stripe, announcing)) {
+          incremented = true;
+          stripe = announcing;
+          count = ANNOUNCING;
+          version++;
+        }
+      }
+      if (count == ANNOUNCING) {
+        // announce the stripe (or help whoever started to), then make the increment count.
+        rootArrive();
+        if (!stripes.compareAndSet(index, stripe, pack(1, version))) {
+          failedAnnouncements++;
+        }
+      }
+    }
+    for (int i = 0; i < failedAnnouncements; i++) {
+      rootDepart();
+    }
+  }
+
+  /**
+   * Decrements the count of in-flight transactions to the resource being monitored.
+   *
+   * If this operation results in the counter falling below 0 - an exception is raised.
+   *
+   * @throws IllegalStateException if the counter is below 0.
+   */
+  public void decrement() {
+    int first = stripeOf(Thread.currentThread());
+    while (true) {
+      for (int i = 0; i <= stripeMask; i++) {
+        if (tryDecrement(((first + i) & stripeMask) * PADDING)) {
+          return;
+        }
+      }
+      // no stripe held an increment while we looked. The root is only 0 if none does at all.
+      checkState(rootCount != 0, "Counter has been corrupted!");
+      Thread.yield();
+    }
+  }
+
+  private boolean tryDecrement(int index) {
+    while (true) {
+      long stripe = stripes.get(index);
+      int count = count(stripe);
+      if (count < 1) {
+        return false;
+      }
+      if (stripes.compareAndSet(index, stripe, pack(count - 1, version(stripe)))) {
+        if (count == 1) {
+          rootDepart();
+        }
+        return true;
+      }
+    }
+  }
+
+  private void rootArrive() {
+    synchronized (transitionLock) {
+      rootCount++;
+      if (1 == rootCount) {
+        becameBusyAt = SystemClock.uptimeMillis();
+        TransitionCallback callback = transitionCallback;
+        if (null != callback) {
+          callback.onTransitionToBusy();
+        }
+      }
+    }
+  }
+
+  private void rootDepart() {
+    synchronized (transitionLock) {
+      rootCount--;
+      if (0 == rootCount) {
+        // we've gone from non-zero to zero. That means we're idle now! Tell espresso.
+        becameIdleAt = SystemClock.uptimeMillis();
+        ResourceCallback callback = resourceCallback;
+        if (null != callback) {
+          callback.onTransitionToIdle();
+        }
+      }
+    }
+  }
+
+  private int stripeOf(Thread thread) {
+    long id = thread.getId();
+    // spread consecutive thread ids over the stripes.
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return ((hash >>> 16) & stripeMask) * PADDING;
+  }
+
+  private static int count(long stripe) {
+    return (int) stripe;
+  }
+
+  private static int version(long stripe) {
+    return (int) (stripe >>> 32);
+  }
+
+  private static long pack(int count, int version) {
+    return ((long) version << 32) | (count & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Prints the current state of this resource to the logcat at info level.
+   */
+  public void dumpStateToLogs() {
+    long inflight = 0;
+    for (int i = 0; i <= stripeMask; i++) {
+      inflight += Math.max(0, count(stripes.get(i * PADDING)));
+    }
+    StringBuilder message = new StringBuilder("Resource: ")
+        .append(resourceName)
+        .append(" inflight transaction count: ")
+        .append(inflight);
+    if (0 == becameBusyAt) {
+      Log.i(TAG, message.append(" and has never been busy!").toString());
+    } else {
+      message.append(" and was last busy at: ")
+          .append(becameBusyAt);
+      if (0 == becameIdleAt) {
+        Log.w(TAG, message.append(" AND NEVER WENT IDLE!").toString());
+      } else {
+        message.append(" and last went idle at: ")
+            .append(becameIdleAt);
+        Log.i(TAG, message.toString());
+      }
+    }
+  }
+}
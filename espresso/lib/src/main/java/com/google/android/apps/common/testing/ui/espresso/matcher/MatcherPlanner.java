@@ -0,0 +1,211 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import android.util.Log;
+
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.Cost;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.Costed;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.core.AllOf;
+import org.hamcrest.core.AnyOf;
+
+import java.lang.reflect.Field;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Rewrites allOf and anyOf matchers so their parts are tried from the cheapest to the most
+ * expensive, by {@link ViewMatchers#costOf}.
+ *
+ * A matcher like allOf(isDisplayed(), withText("x"), withId(y)) then only measures the views on
+ * screen whose id already matched, instead of every view in the hierarchy. Parts of equal cost
+ * keep their order, nested allOf and anyOf matchers are rewritten as well, and a rewritten matcher
+ * describes itself exactly as the original one did.
+ *
+ * Only parts the planner knows about - {@link Costed} matchers, and allOf and anyOf matchers made
+ * of them only - are moved, as they accept any item. Any other part may rely on the parts before
+ * it, like a custom matcher casting the parent of a view which withParent(isAssignableFrom(...))
+ * checked first, so it still runs after every part given before it, unknown ones included. Known
+ * parts given after it may still run first.
+ *
+ * Matchers are expected not to have side effects. The rewrite changes which parts run; the result
+ * only changes if a part given before a known one would have thrown on the item.
+ */
+public final class MatcherPlanner {
+    private static final String TAG = MatcherPlanner.class.getSimpleName();
+    // hamcrest's AllOf and AnyOf do not expose their parts.
+    private static final String MATCHERS_FIELD_NAME = "matchers";
+    private static final Field ALL_OF_MATCHERS_FIELD = matchersField(AllOf.class);
+    private static final Field ANY_OF_MATCHERS_FIELD = matchersField(AnyOf.class);
+
+    private static final Comparator<Matcher<?>> CHEAPEST_FIRST = new Comparator<Matcher<?>>() {
+        @Override
+        public int compare(Matcher<?> left, Matcher<?> right) {
+            return ViewMatchers.costOf(left).compareTo(ViewMatchers.costOf(right));
+        }
+    };
+
+    private MatcherPlanner() {}
+
+    /**
+     * Returns a matcher which matches the same items as the given one and describes itself the
+     * same way, but tries the parts of its allOf and anyOf matchers cheapest first.
+     */
+    public static <T> Matcher<T> plan(Matcher<T> matcher) {
+        checkNotNull(matcher);
+        Optional<List<Matcher<?>>> parts = conjunctionParts(matcher);
+        if (parts.isPresent()) {
+            return new PlannedMatcher<T>(matcher, true, planParts(parts.get()));
+        }
+        parts = disjunctionParts(matcher);
+        if (parts.isPresent()) {
+            return new PlannedMatcher<T>(matcher, false, planParts(parts.get()));
+        }
+        return matcher;
+    }
+
+    /**
+     * Returns the parts of an allOf matcher, planned or not, in the order they were given.
+     */
+    static Optional<List<Matcher<?>>> conjunctionParts(Matcher<?> matcher) {
+        if (matcher instanceof PlannedMatcher && ((PlannedMatcher<?>) matcher).all) {
+            return conjunctionParts(((PlannedMatcher<?>) matcher).original);
+        }
+        if (matcher instanceof AllOf) {
+            return parts(ALL_OF_MATCHERS_FIELD, matcher);
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Returns the parts of an anyOf matcher, planned or not, in the order they were given.
+     */
+    static Optional<List<Matcher<?>>> disjunctionParts(Matcher<?> matcher) {
+        if (matcher instanceof PlannedMatcher && !((PlannedMatcher<?>) matcher).all) {
+            return disjunctionParts(((PlannedMatcher<?>) matcher).original);
+        }
+        if (matcher instanceof AnyOf) {
+            return parts(ANY_OF_MATCHERS_FIELD, matcher);
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Orders the parts cheapest first, except that a part which is not {@link #isKnown known}
+     * never runs before a part which was given before it.
+     */
+    private static List<Matcher<?>> planParts(List<Matcher<?>> parts) {
+        List<Matcher<?>> remaining = Lists.newArrayListWithCapacity(parts.size());
+        for (Matcher<?> part : parts) {
+            remaining.add(plan(part));
+        }
+        List<Matcher<?>> planned = Lists.newArrayListWithCapacity(parts.size());
+        while (!remaining.isEmpty()) {
+            // known parts and the first remaining one may run next; of equal costs the earliest.
+            int next = 0;
+            for (int i = 1; i < remaining.size(); i++) {
+                Matcher<?> part = remaining.get(i);
+                if (isKnown(part) && CHEAPEST_FIRST.compare(part, remaining.get(next)) < 0) {
+                    next = i;
+                }
+            }
+            planned.add(remaining.remove(next));
+        }
+        return ImmutableList.copyOf(planned);
+    }
+
+    /**
+     * Returns whether the planner may run the given part before the parts given before it.
+     */
+    private static boolean isKnown(Matcher<?> part) {
+        if (part instanceof PlannedMatcher) {
+            return ((PlannedMatcher<?>) part).known;
+        }
+        return part instanceof Costed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Optional<List<Matcher<?>>> parts(Field matchersField, Matcher<?> matcher) {
+        if (null == matchersField) {
+            return Optional.absent();
+        }
+        try {
+            return Optional.<List<Matcher<?>>>of(ImmutableList.copyOf(
+                    (Iterable<Matcher<?>>) matchersField.get(matcher)));
+        } catch (IllegalAccessException iae) {
+            Log.w(TAG, "No reflective access to " + MATCHERS_FIELD_NAME, iae);
+            return Optional.absent();
+        }
+    }
+
+    private static Field matchersField(Class<?> clazz) {
+        try {
+            Field field = clazz.getDeclaredField(MATCHERS_FIELD_NAME);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException nsfe) {
+            Log.w(TAG, "No reflective access to " + MATCHERS_FIELD_NAME, nsfe);
+        } catch (RuntimeException re) {
+            // e.g. SecurityException - the field cannot be made accessible on this platform.
+            Log.w(TAG, "No reflective access to " + MATCHERS_FIELD_NAME, re);
+        }
+        return null;
+    }
+
+    /**
+     * An allOf or anyOf matcher which tries its parts in a planned order and describes itself as
+     * the matcher it was planned from.
+     */
+    private static final class PlannedMatcher<T> extends BaseMatcher<T> implements Costed {
+        private final Matcher<T> original;
+        private final boolean all;
+        private final List<Matcher<?>> parts;
+        private final Cost cost;
+        // whether every part is known, so this matcher can be moved as a whole.
+        private final boolean known;
+
+        private PlannedMatcher(Matcher<T> original, boolean all, List<Matcher<?>> parts) {
+            this.original = original;
+            this.all = all;
+            this.parts = parts;
+            Cost cost = Cost.CHEAP;
+            boolean known = true;
+            for (Matcher<?> part : parts) {
+                Cost partCost = ViewMatchers.costOf(part);
+                if (partCost.compareTo(cost) > 0) {
+                    cost = partCost;
+                }
+                known &= isKnown(part);
+            }
+            this.cost = cost;
+            this.known = known;
+        }
+
+        @Override
+        public boolean matches(Object item) {
+            for (Matcher<?> part : parts) {
+                if (part.matches(item) != all) {
+                    return !all;
+                }
+            }
+            return all;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            original.describeTo(description);
+        }
+
+        @Override
+        public Cost getCost() {
+            return cost;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.WithIdMatcher;
+import com.google.common.base.Optional;
+
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+/**
+ * Finds the id a view must have to match a view matcher, for the matchers which make it plain:
+ * {@link ViewMatchers#withId(int)}, and allOf conjunctions - planned or not - with such a matcher
+ * among their parts.
+ *
+ * The view finder uses it to look views up by id. Any other matcher - including withId with an
+ * arbitrary integer matcher - has no required id, and its views are found by matching every view.
+ */
+public final class RequiredViewId {
+    private RequiredViewId() {}
+
+    /**
+     * Returns the id every view matched by the given matcher has, or absent if it is not known.
+     */
+    public static Optional<Integer> of(Matcher<?> matcher) {
+        if (matcher instanceof WithIdMatcher) {
+            return Optional.of(((WithIdMatcher) matcher).getId());
+        }
+        Optional<List<Matcher<?>>> parts = MatcherPlanner.conjunctionParts(matcher);
+        if (parts.isPresent()) {
+            for (Matcher<?> part : parts.get()) {
+                Optional<Integer> id = of(part);
+                if (id.isPresent()) {
+                    return id;
+                }
+            }
+        }
+        return Optional.absent();
+    }
+}
@@ -11,6 +11,7 @@ import android.widget.Checkable;
 import android.widget.TextView;
 
 import com.google.android.apps.common.testing.ui.espresso.util.HumanReadables;
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -47,7 +48,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> isAssignableFrom(final Class<? extends View> clazz) {
         checkNotNull(clazz);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is assignable from class: " + clazz);
@@ -65,7 +66,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withClassName(final Matcher<String> classNameMatcher) {
         checkNotNull(classNameMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.MODERATE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with class name: ");
@@ -88,7 +89,7 @@ public final class ViewMatchers {
      * entire rectangle this view draws is displayed to the user use isCompletelyDisplayed.
      */
     public static Matcher<View> isDisplayed() {
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is displayed on the screen to the user");
@@ -123,7 +124,7 @@ public final class ViewMatchers {
     public static Matcher<View> isDisplayingAtLeast(final int areaPercentage) {
         checkState(areaPercentage <= 100, "Cannot have over 100 percent: %s", areaPercentage);
         checkState(areaPercentage > 0, "Must have a positive, non-zero value: %s", areaPercentage);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText(String.format(
@@ -267,7 +268,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches {@link View}s that are enabled.
      */
     public static Matcher<View> isEnabled() {
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is enabled");
@@ -284,7 +285,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches {@link View}s that are focusable.
      */
     public static Matcher<View> isFocusable() {
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is focusable");
@@ -301,7 +302,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches {@link View}s currently have focus.
      */
     public static Matcher<View> hasFocus() {
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has focus on the screen to the user");
@@ -326,7 +327,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> hasSibling(final Matcher<View> siblingMatcher) {
         checkNotNull(siblingMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has sibling: ");
@@ -389,7 +390,7 @@ public final class ViewMatchers {
      * @param id the resource id.
      */
     public static Matcher<View> withId(int id) {
-        return withId(is(id));
+        return new WithIdMatcher(id);
     }
 
     /**
@@ -401,7 +402,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withId(final Matcher<Integer> integerMatcher) {
         checkNotNull(integerMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.MODERATE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with id: ");
@@ -432,7 +433,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withTagKey(final int key, final Matcher<Object> objectMatcher) {
         checkNotNull(objectMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.MODERATE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with key: " + key);
@@ -453,7 +454,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withTagValue(final Matcher<Object> tagValueMatcher) {
         checkNotNull(tagValueMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.MODERATE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("with tag value: ");
@@ -600,7 +601,7 @@ public final class ViewMatchers {
      * Returns an {@link Matcher} that matches {@link View}s with any content description.
      */
     public static Matcher<View> hasContentDescription() {
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has content description");
@@ -621,7 +622,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> hasDescendant(final Matcher<View> descendantMatcher) {
         checkNotNull(descendantMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has descendant: ");
@@ -649,7 +650,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches {@link View}s that are clickable.
      */
     public static Matcher<View> isClickable() {
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.CHEAP) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is clickable");
@@ -669,7 +670,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> isDescendantOfA(final Matcher<View> ancestorMatcher) {
         checkNotNull(ancestorMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is descendant of a: ");
@@ -710,7 +711,7 @@ public final class ViewMatchers {
      * value with your test, use isDisplayed.
      */
     public static Matcher<View> withEffectiveVisibility(final Visibility visibility) {
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText(
@@ -746,6 +747,58 @@ public final class ViewMatchers {
         };
     }
 
+    /**
+     * Returns roughly what matching a single view with the given matcher costs. allOf and anyOf
+     * cost as much as their most expensive part, and matchers which do not say cost
+     * {@link Cost#MODERATE}.
+     */
+    public static Cost costOf(Matcher<?> matcher) {
+        checkNotNull(matcher);
+        if (matcher instanceof Costed) {
+            return ((Costed) matcher).getCost();
+        }
+        Optional<List<Matcher<?>>> parts = MatcherPlanner.conjunctionParts(matcher);
+        if (!parts.isPresent()) {
+            parts = MatcherPlanner.disjunctionParts(matcher);
+        }
+        if (!parts.isPresent()) {
+            return Cost.MODERATE;
+        }
+        Cost cost = Cost.CHEAP;
+        for (Matcher<?> part : parts.get()) {
+            Cost partCost = costOf(part);
+            if (partCost.compareTo(cost) > 0) {
+                cost = partCost;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Roughly what matching a single view costs, used by {@link MatcherPlanner} to run cheap
+     * matchers before expensive ones.
+     */
+    public enum Cost {
+        /** Reads a field of the view: its id, class or a flag. */
+        CHEAP,
+        /**
+         * Does a little more work on the view itself, like comparing its text, or runs a matcher
+         * given by the caller on one of its fields.
+         */
+        MODERATE,
+        /** Looks beyond the view: its geometry on screen, its ancestors or its descendants. */
+        EXPENSIVE
+    }
+
+    /**
+     * Implemented by matchers which know their {@link Cost}. Custom matchers may implement it too,
+     * if they accept any item: the {@link MatcherPlanner} may run them before the parts of an allOf
+     * or anyOf matcher which were given before them.
+     */
+    public interface Costed {
+        Cost getCost();
+    }
+
     /**
      * Enumerates the possible list of values for View.getVisibility().
      */
@@ -771,7 +824,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withParent(final Matcher<View> parentMatcher) {
         checkNotNull(parentMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has parent matching: ");
@@ -793,7 +846,7 @@ public final class ViewMatchers {
      */
     public static Matcher<View> withChild(final Matcher<View> childMatcher) {
         checkNotNull(childMatcher);
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("has child: ");
@@ -823,7 +876,7 @@ public final class ViewMatchers {
      * Returns a matcher that matches root {@link View}.
      */
     public static Matcher<View> isRoot() {
-        return new TypeSafeMatcher<View>() {
+        return new CostedViewMatcher(Cost.EXPENSIVE) {
             @Override
             public void describeTo(Description description) {
                 description.appendText("is a root view.");
@@ -927,5 +980,48 @@ public final class ViewMatchers {
             throw new AssertionFailedError(description.toString());
         }
     }
-}
 
+    /**
+     * Matches views with a given id, which {@link RequiredViewId} can read back - so that views
+     * can be looked up by their id instead of matched one by one.
+     */
+    static final class WithIdMatcher extends CostedViewMatcher {
+        private final int id;
+        private final Matcher<Integer> integerMatcher;
+
+        private WithIdMatcher(int id) {
+            super(Cost.CHEAP);
+            this.id = id;
+            this.integerMatcher = is(id);
+        }
+
+        int getId() {
+            return id;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            description.appendText("with id: ");
+            integerMatcher.describeTo(description);
+        }
+
+        @Override
+        public boolean matchesSafely(View view) {
+            return id == view.getId();
+        }
+    }
+
+    private abstract static class CostedViewMatcher extends TypeSafeMatcher<View>
+            implements Costed {
+        private final Cost cost;
+
+        private CostedViewMatcher(Cost cost) {
+            this.cost = cost;
+        }
+
+        @Override
+        public Cost getCost() {
+            return cost;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import android.os.Process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the records of a {@link TraceBuffer} in the Chrome trace event format, which can be
+ * loaded into chrome://tracing (or any other viewer understanding that format).
+ */
+public final class ChromeTraceExporter {
+
+  private static final ExecutorService EXPORT_EXECUTOR = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "EspressoTraceExport");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private ChromeTraceExporter() { }
+
+  /**
+   * Exports the records currently held by the buffer.
+   *
+   * The records are copied out on the calling thread, formatting and writing happens on a
+   * background thread so the caller (often the main thread) is not held up.
+   *
+   * @param buffer the buffer to export.
+   * @param file the file to write the JSON trace to.
+   * @return a future which yields the file once it has been written.
+   */
+  public static Future<File> exportInBackground(TraceBuffer buffer, final File file) {
+    checkNotNull(file);
+    final List<TraceBuffer.Record> records = buffer.snapshot();
+    final int pid = Process.myPid();
+    return EXPORT_EXECUTOR.submit(new Callable<File>() {
+      @Override
+      public File call() throws IOException {
+        Writer out = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+          write(records, pid, out);
+        } finally {
+          out.close();
+        }
+        return file;
+      }
+    });
+  }
+
+  @VisibleForTesting
+  static void write(List<TraceBuffer.Record> records, int pid, Writer out) throws IOException {
+    out.write("{\"traceEvents\":[");
+    boolean first = true;
+    for (TraceBuffer.Record record : records) {
+      if (!first) {
+        out.write(",");
+      }
+      first = false;
+      out.write("\n{\"name\":\"");
+      out.write(escape(record.event.getShortName()));
+      out.write("\",\"cat\":\"espresso\",\"ph\":\"");
+      long timestampNanos = record.timestampNanos;
+      switch (record.event.getPhase()) {
+        case BEGIN:
+          out.write("B\"");
+          break;
+        case END:
+          out.write("E\"");
+          break;
+        case COMPLETE:
+          timestampNanos -= record.arg0;
+          out.write("X\",\"dur\":");
+          out.write(toMicros(record.arg0));
+          break;
+        case INSTANT:
+        default:
+          out.write("i\",\"s\":\"t\"");
+          break;
+      }
+      out.write(",\"ts\":");
+      out.write(toMicros(timestampNanos));
+      out.write(",\"pid\":");
+      out.write(String.valueOf(pid));
+      out.write(",\"tid\":");
+      out.write(String.valueOf(record.threadId));
+      out.write(",\"args\":{\"event\":\"");
+      out.write(record.event.name());
+      out.write("\",\"details\":\"");
+      out.write(escape(record.describe()));
+      out.write("\"}}");
+    }
+    out.write("\n]}\n");
+  }
+
+  private static String toMicros(long nanos) {
+    // the format takes fractional microseconds.
+    return String.format(Locale.US, "%.3f", nanos / (double) TimeUnit.MICROSECONDS.toNanos(1));
+  }
+
+  private static String escape(String value) {
+    StringBuilder escaped = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          escaped.append("\\\"");
+          break;
+        case '\\':
+          escaped.append("\\\\");
+          break;
+        case '\n':
+          escaped.append("\\n");
+          break;
+        default:
+          if (c < 0x20) {
+            escaped.append(String.format("\\u%04x", (int) c));
+          } else {
+            escaped.append(c);
+          }
+      }
+    }
+    return escaped.toString();
+  }
+}
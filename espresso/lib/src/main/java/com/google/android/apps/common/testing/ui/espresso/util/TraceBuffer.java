@@ -0,0 +1,246 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size, lock free ring buffer of binary trace records.
+ *
+ * Recording takes the next sequence number with a single atomic increment, claims that
+ * sequence's slot and fills in preallocated arrays - it neither locks nor allocates nor formats,
+ * so it is cheap enough to leave on in the idle loop and the event injection paths. Once the
+ * buffer is full the oldest records are overwritten. A writer which finds its slot claimed by a
+ * writer a lap ahead of it, or still being written, drops its record.
+ *
+ * Records are only turned into text when somebody asks: {@link #dump(int)} on timeouts,
+ * {@link #capture(int)} on failures, or {@link ChromeTraceExporter} to look at a run in
+ * chrome://tracing.
+ *
+ * Any thread may record. Reading is best effort: a record which is overwritten while being read
+ * is skipped.
+ */
+public final class TraceBuffer {
+
+  private static final int DEFAULT_CAPACITY = 4096;
+  // marks a slot whose record is being written.
+  private static final long WRITING = Long.MIN_VALUE;
+  // marks a slot which never held a record.
+  private static final long EMPTY = -1;
+
+  private static final TraceBuffer INSTANCE = new TraceBuffer(DEFAULT_CAPACITY);
+
+  private final int mask;
+  private final AtomicLong nextSequence = new AtomicLong(0);
+  // the sequence number of the record each slot currently holds.
+  private final AtomicLongArray published;
+  // atomic arrays, so that a reader which sees a field written after its slot was claimed also
+  // sees the claim.
+  private final AtomicReferenceArray<TraceEvent> events;
+  private final AtomicLongArray timestamps;
+  private final AtomicLongArray threadIds;
+  private final AtomicReferenceArray<Class<?>> subjects0;
+  private final AtomicReferenceArray<Class<?>> subjects1;
+  private final AtomicLongArray args0;
+  private final AtomicLongArray args1;
+  private volatile boolean enabled = true;
+
+  /**
+   * Returns the buffer Espresso records into.
+   */
+  public static TraceBuffer getInstance() {
+    return INSTANCE;
+  }
+
+  @VisibleForTesting
+  TraceBuffer(int capacity) {
+    checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "capacity must be a power of 2: %s", capacity);
+    this.mask = capacity - 1;
+    this.published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      published.set(i, EMPTY);
+    }
+    this.events = new AtomicReferenceArray<TraceEvent>(capacity);
+    this.timestamps = new AtomicLongArray(capacity);
+    this.threadIds = new AtomicLongArray(capacity);
+    this.subjects0 = new AtomicReferenceArray<Class<?>>(capacity);
+    this.subjects1 = new AtomicReferenceArray<Class<?>>(capacity);
+    this.args0 = new AtomicLongArray(capacity);
+    this.args1 = new AtomicLongArray(capacity);
+  }
+
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public void record(TraceEvent event, long arg0, long arg1) {
+    record(event, null, null, arg0, arg1);
+  }
+
+  /**
+   * Records an event.
+   *
+   * Subjects are stored by reference: pass classes, never instances, so the buffer does not
+   * keep app objects alive.
+   */
+  public void record(TraceEvent event, Class<?> subject0, Class<?> subject1, long arg0,
+      long arg1) {
+    if (!enabled) {
+      return;
+    }
+    long sequence = nextSequence.getAndIncrement();
+    int slot = (int) sequence & mask;
+    long held;
+    do {
+      held = published.get(slot);
+      if (WRITING == held || held > sequence) {
+        return;
+      }
+    } while (!published.compareAndSet(slot, held, WRITING));
+    // the slot is this writer's until published.
+    events.lazySet(slot, event);
+    timestamps.lazySet(slot, System.nanoTime());
+    threadIds.lazySet(slot, Thread.currentThread().getId());
+    subjects0.lazySet(slot, subject0);
+    subjects1.lazySet(slot, subject1);
+    args0.lazySet(slot, arg0);
+    args1.lazySet(slot, arg1);
+    published.lazySet(slot, sequence);
+  }
+
+  /**
+   * Copies out the records currently held, oldest first.
+   */
+  List<Record> snapshot() {
+    return snapshot(getCapacity());
+  }
+
+  private List<Record> snapshot(int maxRecords) {
+    long end = nextSequence.get();
+    long start = Math.max(0, end - Math.min(maxRecords, getCapacity()));
+    List<Record> records = new ArrayList<Record>((int) (end - start));
+    for (long sequence = start; sequence < end; sequence++) {
+      int slot = (int) sequence & mask;
+      if (published.get(slot) != sequence) {
+        continue;
+      }
+      Record record = new Record(events.get(slot), timestamps.get(slot), threadIds.get(slot),
+          subjects0.get(slot), subjects1.get(slot), args0.get(slot), args1.get(slot));
+      if (published.get(slot) == sequence) {
+        records.add(record);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Formats the most recent records, oldest first, one per line. Timestamps are relative to the
+   * newest record.
+   *
+   * @param maxRecords the maximum number of records to describe.
+   */
+  public String dump(int maxRecords) {
+    checkArgument(maxRecords > 0);
+    List<Record> records = snapshot();
+    return format(records.subList(Math.max(0, records.size() - maxRecords), records.size()),
+        records.size());
+  }
+
+  /**
+   * Copies the most recent records into a throwable, to be attached to a failure. The records are
+   * only formatted, as by {@link #dump(int)}, once its message is read - a failure which is caught
+   * and retried costs a copy of the records, not their description.
+   *
+   * @param maxRecords the maximum number of records to keep.
+   */
+  public Throwable capture(int maxRecords) {
+    checkArgument(maxRecords > 0);
+    long held = Math.min(nextSequence.get(), getCapacity());
+    return new CapturedTrace(snapshot(maxRecords), (int) held);
+  }
+
+  private static String format(List<Record> recent, int held) {
+    if (recent.isEmpty()) {
+      return "Espresso trace: no records.";
+    }
+    long newest = recent.get(recent.size() - 1).timestampNanos;
+    StringBuilder dump = new StringBuilder(String.format(
+        "Espresso trace (last %s of %s records):", recent.size(), held));
+    for (Record record : recent) {
+      dump.append(String.format("\n%+.3fms [%s] %s: %s",
+          (record.timestampNanos - newest) / (double) TimeUnit.MILLISECONDS.toNanos(1),
+          record.threadId,
+          record.event.getShortName(),
+          record.describe()));
+    }
+    return dump.toString();
+  }
+
+  /**
+   * The records copied by {@link #capture(int)}. It has no stack trace of its own.
+   */
+  private static final class CapturedTrace extends Throwable {
+    private final List<Record> records;
+    private final int held;
+    private String message;
+
+    CapturedTrace(List<Record> records, int held) {
+      this.records = records;
+      this.held = held;
+    }
+
+    @Override
+    public synchronized String getMessage() {
+      if (null == message) {
+        message = format(records, held);
+      }
+      return message;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  /**
+   * A copy of a single record.
+   */
+  static final class Record {
+    final TraceEvent event;
+    final long timestampNanos;
+    final long threadId;
+    final Class<?> subject0;
+    final Class<?> subject1;
+    final long arg0;
+    final long arg1;
+
+    Record(TraceEvent event, long timestampNanos, long threadId, Class<?> subject0,
+        Class<?> subject1, long arg0, long arg1) {
+      this.event = checkNotNull(event);
+      this.timestampNanos = timestampNanos;
+      this.threadId = threadId;
+      this.subject0 = subject0;
+      this.subject1 = subject1;
+      this.arg0 = arg0;
+      this.arg1 = arg1;
+    }
+
+    String describe() {
+      return event.describe(subject0, subject1, arg0, arg1);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The events Espresso records into its {@link TraceBuffer}.
+ *
+ * Every record carries up to two subject classes and two long arguments. Each event knows how
+ * to describe its record - the description is only formatted when the trace is dumped or
+ * exported, never while recording.
+ *
+ * Format strings receive the subjects' names first (%1$s, %2$s) and the arguments after them
+ * (%3$d, %4$d).
+ */
+public enum TraceEvent {
+  LOOP_STARTED(Phase.BEGIN, "loopUntil", "generation %3$d"),
+  LOOP_FINISHED(Phase.END, "loopUntil", "generation %4$d after %3$d messages"),
+  // arg0 holds the duration in nanos, the record's timestamp is taken when dispatch finished.
+  MESSAGE_DISPATCHED(Phase.COMPLETE, "dispatch", "to %1$s, callback: %2$s, what: %4$d"),
+  QUEUE_NOT_IDLE(Phase.INSTANT, "queue not idle", "barrier or task due shortly (state %3$d)"),
+  MOTION_INJECTION_SUBMITTED(
+      Phase.INSTANT, "motion event submitted", "action %3$d at event time %4$d"),
+  MOTION_INJECTION_STARTED(Phase.BEGIN, "injectMotionEvent", "action %3$d"),
+  MOTION_INJECTION_FINISHED(Phase.END, "injectMotionEvent", "succeeded: %3$d"),
+  DOWN_INJECTED(Phase.INSTANT, "down injected", "succeeded: %3$d, should be a tap at %4$d"),
+  TAP_DELAY_SKIPPED(Phase.INSTANT, "tap delay skipped", "only %3$dms to go"),
+  TAP_DELAY_LOOPING(Phase.INSTANT, "tap delay", "looping for at least %3$dms"),
+  UP_SENT(Phase.INSTANT, "up sent", "at %3$d"),
+  TAP_SENT(Phase.INSTANT, "tap sent", "to %3$d, %4$d"),
+  TAP_STATUS(Phase.INSTANT, "tap status",
+      "status ordinal %3$d, looping main thread for at least %4$dms"),
+  WEBVIEW_TAP_DELAY(Phase.INSTANT, "webview tap delay", "looping for at least %3$dms"),
+  SWIPE_MOVE_SENT(Phase.INSTANT, "swipe move sent", "to %3$d, %4$d"),
+  SWIPE_UP_SENT(Phase.INSTANT, "swipe up sent", "at %3$d, %4$d");
+
+  /**
+   * How an event maps onto a timeline.
+   */
+  public enum Phase {
+    INSTANT,
+    BEGIN,
+    END,
+    // a span ending at the record's timestamp whose duration (in nanos) is the first argument.
+    COMPLETE
+  }
+
+  private final Phase phase;
+  private final String shortName;
+  private final String format;
+
+  private TraceEvent(Phase phase, String shortName, String format) {
+    this.phase = checkNotNull(phase);
+    this.shortName = checkNotNull(shortName);
+    this.format = checkNotNull(format);
+  }
+
+  public Phase getPhase() {
+    return phase;
+  }
+
+  /**
+   * The name of the event on a timeline. BEGIN and END events of a span share it.
+   */
+  public String getShortName() {
+    return shortName;
+  }
+
+  /**
+   * Formats the details of a record of this event.
+   */
+  public String describe(Class<?> subject0, Class<?> subject1, long arg0, long arg1) {
+    return String.format(format, nameOf(subject0), nameOf(subject1), arg0, arg1);
+  }
+
+  private static String nameOf(Class<?> subject) {
+    return null == subject ? "none" : subject.getName();
+  }
+}
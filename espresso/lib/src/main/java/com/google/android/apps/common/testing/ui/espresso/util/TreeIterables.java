@@ -1,23 +1,21 @@
 package com.google.android.apps.common.testing.ui.espresso.util;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.collect.AbstractIterator;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Utility methods for iterating over tree structured items.
@@ -31,32 +29,42 @@ import java.util.Map;
  * Only public methods of this utility class are considered public API of the test framework.
  */
 public final class TreeIterables {
-  private static final TreeViewer<View> VIEW_TREE_VIEWER = new ViewTreeViewer();
+  private static final IndexedTreeViewer<View> INDEXED_VIEW_TREE_VIEWER =
+      new IndexedViewTreeViewer();
+  // the traversal arrays start this big and double as needed.
+  private static final int INITIAL_CAPACITY = 32;
 
   private TreeIterables() { }
 
   /**
    * Creates an iterable that traverses the tree formed by the given root.
    *
-   * Along with iteration order, the distance from the root element is also tracked.
+   * Along with iteration order, the distance from the root element is also tracked - on a stack
+   * kept next to the traversal's own, so no view is hashed or remembered once it was visited.
    *
    * @param root the root view to track from.
    * @return An iterable of ViewAndDistance containing the view tree in a depth first order with
    *   the distance of a given node from the root.
    */
-  public static Iterable<ViewAndDistance> depthFirstViewTraversalWithDistance(View root) {
-    final DistanceRecordingTreeViewer<View> distanceRecorder =
-        new DistanceRecordingTreeViewer<View>(root, VIEW_TREE_VIEWER);
-
-
-    return Iterables.transform(
-        depthFirstTraversal(root, distanceRecorder),
-        new Function<View, ViewAndDistance>() {
+  public static Iterable<ViewAndDistance> depthFirstViewTraversalWithDistance(final View root) {
+    checkNotNull(root);
+    return new Iterable<ViewAndDistance>() {
+      @Override
+      public Iterator<ViewAndDistance> iterator() {
+        final DepthFirstIterator<View> views =
+            new DepthFirstIterator<View>(root, INDEXED_VIEW_TREE_VIEWER);
+        return new AbstractIterator<ViewAndDistance>() {
           @Override
-          public ViewAndDistance apply(View view) {
-            return new ViewAndDistance(view, distanceRecorder.getDistance(view));
+          public ViewAndDistance computeNext() {
+            if (!views.hasNext()) {
+              return endOfData();
+            }
+            View view = views.next();
+            return new ViewAndDistance(view, views.getDistance());
           }
-        });
+        };
+      }
+    };
   }
 
   /**
@@ -72,7 +80,7 @@ public final class TreeIterables {
    * @param root the non-null, root view.
    */
   public static Iterable<View> depthFirstViewTraversal(View root) {
-    return depthFirstTraversal(root, VIEW_TREE_VIEWER);
+    return depthFirstIndexedTraversal(root, INDEXED_VIEW_TREE_VIEWER);
   }
 
   /**
@@ -88,12 +96,15 @@ public final class TreeIterables {
    * @param root the non-null, root view.
    */
   public static Iterable<View> breadthFirstViewTraversal(View root) {
-    return breadthFirstTraversal(root, VIEW_TREE_VIEWER);
+    return breadthFirstIndexedTraversal(root, INDEXED_VIEW_TREE_VIEWER);
   }
 
   /**
    * Creates a depth first traversing iterator of the tree rooted at root.
    *
+   * Only used by tests, as the reference the indexed traversals are checked and measured against:
+   * it collects the children of every node it visits.
+   *
    * @param root the root of the tree
    * @param viewer a TreeViewer which can determine leafiness of any instance of T and generate
    *   Iterables for the direct children of any instance of T.
@@ -108,6 +119,8 @@ public final class TreeIterables {
   /**
    * Creates a breadth first traversing iterator of the tree rooted at root.
    *
+   * Only used by tests, like {@link #depthFirstTraversal}.
+   *
    * @param root the root of the tree
    * @param viewer a TreeViewer which can determine leafiness of any instance of T and generate
    *   Iterables for the direct children of any instance of T.
@@ -119,8 +132,41 @@ public final class TreeIterables {
     return new TreeTraversalIterable<T>(root, TraversalStrategy.BREADTH_FIRST, viewer);
   }
 
+  /**
+   * Creates a depth first traversing iterator of the tree rooted at root, which visits the
+   * children of each node by index instead of through a collection of them.
+   *
+   * @param root the root of the tree
+   * @param viewer an IndexedTreeViewer which can count and get the direct children of any instance
+   *   of T.
+   */
+  @VisibleForTesting
+  static <T> Iterable<T> depthFirstIndexedTraversal(final T root,
+      final IndexedTreeViewer<T> viewer) {
+    checkNotNull(root);
+    checkNotNull(viewer);
+    return new IndexedTraversalIterable<T>(root, TraversalStrategy.DEPTH_FIRST, viewer);
+  }
+
+  /**
+   * Creates a breadth first traversing iterator of the tree rooted at root, which visits the
+   * children of each node by index instead of through a collection of them.
+   *
+   * @param root the root of the tree
+   * @param viewer an IndexedTreeViewer which can count and get the direct children of any instance
+   *   of T.
+   */
+  @VisibleForTesting
+  static <T> Iterable<T> breadthFirstIndexedTraversal(final T root,
+      final IndexedTreeViewer<T> viewer) {
+    checkNotNull(root);
+    checkNotNull(viewer);
+    return new IndexedTraversalIterable<T>(root, TraversalStrategy.BREADTH_FIRST, viewer);
+  }
+
   /**
    * Converts a tree into an Iterable of the tree's nodes presented in a given traversal order.
+   * Only used by tests.
    */
   private static class TreeTraversalIterable<T> implements Iterable<T> {
     private final T root;
@@ -153,6 +199,137 @@ public final class TreeIterables {
     }
   }
 
+  /**
+   * Converts a tree into an Iterable of the tree's nodes presented in a given traversal order,
+   * in the same order as a TreeTraversalIterable.
+   *
+   * Each iterator keeps the nodes it has yet to visit in a single array - used as a stack for depth
+   * first and as a circular queue for breadth first traversals - which is reused for the whole
+   * traversal and only reallocated when it fills up. Nothing else is allocated per node.
+   */
+  private static class IndexedTraversalIterable<T> implements Iterable<T> {
+    private final T root;
+    private final TraversalStrategy traversalStrategy;
+    private final IndexedTreeViewer<T> treeViewer;
+
+    private IndexedTraversalIterable(T root, TraversalStrategy traversalStrategy,
+        IndexedTreeViewer<T> treeViewer) {
+      this.root = checkNotNull(root);
+      this.traversalStrategy = checkNotNull(traversalStrategy);
+      this.treeViewer = checkNotNull(treeViewer);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      if (traversalStrategy == TraversalStrategy.DEPTH_FIRST) {
+        return new DepthFirstIterator<T>(root, treeViewer);
+      } else {
+        return new BreadthFirstIterator<T>(root, treeViewer);
+      }
+    }
+  }
+
+  /**
+   * Iterates depth first over a tree and tracks the distance of each node from the root, in a
+   * stack of distances parallel to the stack of nodes.
+   */
+  @VisibleForTesting
+  static class DepthFirstIterator<T> extends AbstractIterator<T> {
+    private final IndexedTreeViewer<T> treeViewer;
+    private Object[] stack = new Object[INITIAL_CAPACITY];
+    private int[] distances = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    private int distance = -1;
+
+    DepthFirstIterator(T root, IndexedTreeViewer<T> treeViewer) {
+      this.treeViewer = checkNotNull(treeViewer);
+      stack[size] = checkNotNull(root);
+      distances[size] = 0;
+      size++;
+    }
+
+    /**
+     * Returns the distance from the root of the node last returned by next.
+     */
+    int getDistance() {
+      checkState(distance >= 0, "next not called yet.");
+      return distance;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T computeNext() {
+      if (size == 0) {
+        return endOfData();
+      }
+      T nextItem = checkNotNull((T) stack[--size], "Null items not allowed!");
+      stack[size] = null;
+      distance = distances[size];
+      int childCount = treeViewer.childCount(nextItem);
+      if (size + childCount > stack.length) {
+        int capacity = Math.max(stack.length * 2, size + childCount);
+        stack = Arrays.copyOf(stack, capacity);
+        distances = Arrays.copyOf(distances, capacity);
+      }
+      // pushed last child first, so the first child is on top.
+      for (int i = childCount - 1; i >= 0; i--) {
+        stack[size] = treeViewer.childAt(nextItem, i);
+        distances[size] = distance + 1;
+        size++;
+      }
+      return nextItem;
+    }
+  }
+
+  private static class BreadthFirstIterator<T> extends AbstractIterator<T> {
+    private final IndexedTreeViewer<T> treeViewer;
+    // a circular queue, its length always a power of 2.
+    private Object[] queue = new Object[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+
+    private BreadthFirstIterator(T root, IndexedTreeViewer<T> treeViewer) {
+      this.treeViewer = treeViewer;
+      queue[size++] = root;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T computeNext() {
+      if (size == 0) {
+        return endOfData();
+      }
+      T nextItem = checkNotNull((T) queue[head], "Null items not allowed!");
+      queue[head] = null;
+      head = (head + 1) & (queue.length - 1);
+      size--;
+      int childCount = treeViewer.childCount(nextItem);
+      if (size + childCount > queue.length) {
+        grow(size + childCount);
+      }
+      int mask = queue.length - 1;
+      for (int i = 0; i < childCount; i++) {
+        queue[(head + size) & mask] = treeViewer.childAt(nextItem, i);
+        size++;
+      }
+      return nextItem;
+    }
+
+    private void grow(int minCapacity) {
+      int capacity = queue.length * 2;
+      while (capacity < minCapacity) {
+        capacity *= 2;
+      }
+      Object[] grown = new Object[capacity];
+      // unwrap the queue so it starts at 0 again.
+      int firstPart = Math.min(size, queue.length - head);
+      System.arraycopy(queue, head, grown, 0, firstPart);
+      System.arraycopy(queue, 0, grown, firstPart, size - firstPart);
+      queue = grown;
+      head = 0;
+    }
+  }
+
   private enum TraversalStrategy {
     BREADTH_FIRST() {
       @Override
@@ -177,7 +354,7 @@ public final class TreeIterables {
    * A TreeView providing access to the children of a given View.
    *
    * The only way views can have children is if they are a subclass of
-   * ViewGroup.
+   * ViewGroup. Only used by tests, to measure the indexed traversals against.
    */
   @VisibleForTesting
   static class ViewTreeViewer implements TreeViewer<View> {
@@ -199,46 +376,24 @@ public final class TreeIterables {
   }
 
   /**
-   * Provides a tree view of items of instance T and records their distance from
-   * a well known root.
-   *
-   * It is assumed that this TreeViewer will only be called with nodes that it
-   * has processed via its children method, or the root node itself. Otherwise it
-   * will not be able to determine distance from the root and an exception will be thrown.
-   *
-   * This class is stateful and only provides the correct distances after the underlying
-   * tree has been iterated over.
+   * An IndexedTreeViewer providing access to the children of a given View straight from its
+   * ViewGroup.
    */
   @VisibleForTesting
-  static class DistanceRecordingTreeViewer<T> implements TreeViewer<T> {
-    private final T root;
-    private final Map<T, Integer> nodeToDistance = Maps.newHashMap();
-    private final TreeViewer<T> delegateViewer;
-
-    DistanceRecordingTreeViewer(T root, TreeViewer<T> delegateViewer) {
-      this.root = checkNotNull(root);
-      this.delegateViewer = checkNotNull(delegateViewer);
-    }
-
-    int getDistance(T node) {
-      return checkNotNull(nodeToDistance.get(node), "Never seen %s before", node);
-    }
-
+  static class IndexedViewTreeViewer implements IndexedTreeViewer<View> {
     @Override
-    public Collection<T> children(final T node) {
-      if (node == root) {
-        // base case.
-        nodeToDistance.put(node, 0);
+    public int childCount(View view) {
+      checkNotNull(view);
+      if (view instanceof ViewGroup) {
+        return ((ViewGroup) view).getChildCount();
+      } else {
+        return 0;
       }
+    }
 
-      int myDistance = getDistance(node);
-      final int childDistance = myDistance + 1;
-      Collection<T> children = delegateViewer.children(node);
-
-      for (T child : children) {
-        nodeToDistance.put(child, childDistance);
-      }
-      return children;
+    @Override
+    public View childAt(View view, int index) {
+      return ((ViewGroup) view).getChildAt(index);
     }
   }
 
@@ -259,7 +414,24 @@ public final class TreeIterables {
     Collection<T> children(T instance);
   }
 
+  /**
+   * Provides a way of viewing any instance of T as a tree through the number of its direct
+   * children and access to each of them by index - which avoids collecting the children of every
+   * node during a traversal.
+   */
+  @VisibleForTesting
+  interface IndexedTreeViewer<T> {
+
+    /**
+     * Returns the number of direct children of this node.
+     */
+    int childCount(T instance);
 
+    /**
+     * Returns the direct child of this node at the given index.
+     */
+    T childAt(T instance, int index);
+  }
 
   /**
    * Represents the distance a given view is from the root view.
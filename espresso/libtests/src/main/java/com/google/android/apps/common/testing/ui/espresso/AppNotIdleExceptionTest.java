@@ -35,9 +35,10 @@ public class AppNotIdleExceptionTest extends ActivityInstrumentationTestCase2<Sy
 
   public void testAppIdleException() throws Exception {
     final AtomicBoolean continueBeingBusy = new AtomicBoolean(true);
+    Runnable runnable = null;
     try {
       final Handler handler = new Handler(Looper.getMainLooper());
-      Runnable runnable = new Runnable() {
+      runnable = new Runnable() {
         @Override
         public void run() {
           if (!continueBeingBusy.get()) {
@@ -54,8 +55,10 @@ public class AppNotIdleExceptionTest extends ActivityInstrumentationTestCase2<Sy
       onView(withId(R.id.request_button)).perform(click());
       fail("Espresso failed to throw AppNotIdleException");
     } catch (AppNotIdleException e) {
-      // Do Nothing. Test pass.
       continueBeingBusy.getAndSet(false);
+      // the runnable hogging the main thread should top the dispatch profile.
+      assertTrue(e.getMessage(), e.getMessage().contains("Main thread dispatches taking the most"));
+      assertTrue(e.getMessage(), e.getMessage().contains(runnable.getClass().getName()));
     }
   }
 }
@@ -0,0 +1,46 @@
+package com.google.android.apps.common.testing.ui.espresso.action;
+
+import static com.google.android.apps.common.testing.ui.espresso.Espresso.onView;
+import static com.google.android.apps.common.testing.ui.espresso.action.ViewActions.longClick;
+import static com.google.android.apps.common.testing.ui.espresso.assertion.ViewAssertions.matches;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isDisplayed;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
+import static org.hamcrest.Matchers.is;
+
+import com.google.android.apps.common.testing.testrunner.annotations.SdkSuppress;
+import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
+import com.google.android.apps.common.testing.ui.testapp.R;
+
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.view.ViewConfiguration;
+
+/**
+ * Runs the click, long click and double click tests with virtual time enabled.
+ */
+@LargeTest
+public class VirtualTimeEventActionIntegrationTest extends EventActionIntegrationTest {
+
+  @Override
+  public void setUp() throws Exception {
+    IdlingPolicies.setVirtualTimeEnabled(true);
+    super.setUp();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    IdlingPolicies.setVirtualTimeEnabled(false);
+    super.tearDown();
+  }
+
+  @SdkSuppress(bugId = -1, versions = {7, 8, 13})
+  public void testLongClickDoesNotWaitForTheLongPressTimeout() {
+    // in real time Tap.LONG alone loops for 1.5x the long press timeout.
+    long realTimeWait = (long) (ViewConfiguration.getLongPressTimeout() * 1.5f);
+    long start = SystemClock.uptimeMillis();
+    onView(withId(is(R.id.gesture_area))).perform(longClick());
+    long elapsed = SystemClock.uptimeMillis() - start;
+    onView(withId(is(R.id.text_long_click))).check(matches(isDisplayed()));
+    assertTrue("Long click took " + elapsed + "ms in virtual time.", elapsed < realTimeWait);
+  }
+}
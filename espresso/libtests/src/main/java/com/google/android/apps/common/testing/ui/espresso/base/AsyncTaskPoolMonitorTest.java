@@ -1,11 +1,15 @@
 package com.google.android.apps.common.testing.ui.espresso.base;
 
+import com.google.common.collect.Lists;
+
 import junit.framework.TestCase;
 
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -20,9 +24,17 @@ public class AsyncTaskPoolMonitorTest extends TestCase {
 
   private AsyncTaskPoolMonitor monitor = new AsyncTaskPoolMonitor(testThreadPool);
 
+  private final TaskCountingQueue countingQueue =
+      new TaskCountingQueue(new LinkedBlockingQueue<Runnable>());
+  private final ThreadPoolExecutor countedThreadPool = new ThreadPoolExecutor(
+      4, 4, 1, TimeUnit.SECONDS, countingQueue);
+
+  private AsyncTaskPoolMonitor countingMonitor = new AsyncTaskPoolMonitor(countedThreadPool);
+
   @Override
   public void tearDown() throws Exception {
     testThreadPool.shutdownNow();
+    countedThreadPool.shutdownNow();
     super.tearDown();
   }
 
@@ -160,4 +172,235 @@ public class AsyncTaskPoolMonitorTest extends TestCase {
     assertTrue(notificationLatch.await(1, TimeUnit.SECONDS));
     assertTrue(monitor.isIdleNow());
   }
+
+  public void testCountedIsIdle_onEmptyPool() throws Exception {
+    assertTrue(countingMonitor.isIdleNow());
+    final AtomicBoolean isIdle = new AtomicBoolean(false);
+    countingMonitor.notifyWhenIdle(new Runnable() {
+      @Override
+      public void run() {
+        isIdle.set(true);
+      }
+    });
+    assertTrue(isIdle.get());
+  }
+
+  public void testCountedIdleNotification_doesNotOccupyPool() throws Exception {
+    // fill the core threads so that the next tasks go through the queue.
+    final CountDownLatch runLatch = new CountDownLatch(4);
+    final CountDownLatch exitLatch = new CountDownLatch(1);
+    for (int i = 0; i < 5; i++) {
+      countedThreadPool.execute(new Runnable() {
+        @Override
+        public void run() {
+          runLatch.countDown();
+          try {
+            exitLatch.await();
+          } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+          }
+        }
+      });
+    }
+    assertTrue(runLatch.await(1, TimeUnit.SECONDS));
+    assertFalse(countingMonitor.isIdleNow());
+
+    final CountDownLatch notificationLatch = new CountDownLatch(1);
+    countingMonitor.notifyWhenIdle(new Runnable() {
+      @Override
+      public void run() {
+        notificationLatch.countDown();
+      }
+    });
+    assertFalse(notificationLatch.await(100, TimeUnit.MILLISECONDS));
+    // only the app's tasks are queued or running.
+    assertEquals(1, countedThreadPool.getQueue().size());
+    assertEquals(1, countingQueue.getSubmittedCount());
+    assertEquals(4, countedThreadPool.getActiveCount());
+
+    exitLatch.countDown();
+    assertTrue(notificationLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(countingMonitor.isIdleNow());
+    assertEquals(1, countingQueue.getCompletedCount());
+  }
+
+  public void testCountedIdleNotification_extraWork() throws Exception {
+    final CountDownLatch firstRunLatch = new CountDownLatch(1);
+    final CountDownLatch firstExitLatch = new CountDownLatch(1);
+    countedThreadPool.submit(new Runnable() {
+      @Override
+      public void run() {
+        firstRunLatch.countDown();
+        try {
+          firstExitLatch.await();
+        } catch (InterruptedException ie) {
+          throw new RuntimeException(ie);
+        }
+      }
+    });
+    assertTrue(firstRunLatch.await(1, TimeUnit.SECONDS));
+
+    final CountDownLatch notificationLatch = new CountDownLatch(1);
+    countingMonitor.notifyWhenIdle(new Runnable() {
+      @Override
+      public void run() {
+        notificationLatch.countDown();
+      }
+    });
+
+    final CountDownLatch secondExitLatch = new CountDownLatch(1);
+    countedThreadPool.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          secondExitLatch.await();
+        } catch (InterruptedException ie) {
+          throw new RuntimeException(ie);
+        }
+      }
+    });
+
+    firstExitLatch.countDown();
+    assertFalse(notificationLatch.await(500, TimeUnit.MILLISECONDS));
+    secondExitLatch.countDown();
+    assertTrue(notificationLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(countingMonitor.isIdleNow());
+  }
+
+  public void testCountedIdleNotification_cancelled() throws Exception {
+    final CountDownLatch exitLatch = new CountDownLatch(1);
+    countedThreadPool.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          exitLatch.await();
+        } catch (InterruptedException ie) {
+          throw new RuntimeException(ie);
+        }
+      }
+    });
+    final AtomicBoolean isIdle = new AtomicBoolean(false);
+    countingMonitor.notifyWhenIdle(new Runnable() {
+      @Override
+      public void run() {
+        isIdle.set(true);
+      }
+    });
+    countingMonitor.cancelIdleMonitor();
+    exitLatch.countDown();
+    Thread.sleep(200);
+    assertFalse(isIdle.get());
+    assertTrue(countingMonitor.isIdleNow());
+  }
+
+  public void testCountedIsIdle_taskHandedToNewThread() throws Exception {
+    // new threads are held back, so the task handed to one waits to start.
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    countedThreadPool.setThreadFactory(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable worker) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              startLatch.await();
+            } catch (InterruptedException ie) {
+              throw new RuntimeException(ie);
+            }
+            worker.run();
+          }
+        });
+      }
+    });
+    countingMonitor = new AsyncTaskPoolMonitor(countedThreadPool);
+
+    countedThreadPool.execute(new Runnable() {
+      @Override
+      public void run() {}
+    });
+    // never queued.
+    assertEquals(0, countingQueue.getSubmittedCount());
+    assertFalse(countingMonitor.isIdleNow());
+
+    final CountDownLatch notificationLatch = new CountDownLatch(1);
+    countingMonitor.notifyWhenIdle(new Runnable() {
+      @Override
+      public void run() {
+        notificationLatch.countDown();
+      }
+    });
+    assertFalse(notificationLatch.await(100, TimeUnit.MILLISECONDS));
+    startLatch.countDown();
+    assertTrue(notificationLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(countingMonitor.isIdleNow());
+  }
+
+  public void testCountedIsIdle_taskRunningBeforeInstall() throws Exception {
+    final CountDownLatch runLatch = new CountDownLatch(1);
+    final CountDownLatch exitLatch = new CountDownLatch(1);
+    testThreadPool.execute(new Runnable() {
+      @Override
+      public void run() {
+        runLatch.countDown();
+        try {
+          exitLatch.await();
+        } catch (InterruptedException ie) {
+          throw new RuntimeException(ie);
+        }
+      }
+    });
+    assertTrue(runLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(TaskCountingQueue.install(testThreadPool));
+    TaskCountingQueue installed = (TaskCountingQueue) testThreadPool.getQueue();
+    monitor = new AsyncTaskPoolMonitor(testThreadPool);
+    // nothing was counted, but the pool is busy.
+    assertTrue(installed.allTasksCompleted());
+    assertFalse(installed.allWorkersCounted());
+    assertFalse(monitor.isIdleNow());
+
+    final CountDownLatch notificationLatch = new CountDownLatch(1);
+    monitor.notifyWhenIdle(new Runnable() {
+      @Override
+      public void run() {
+        notificationLatch.countDown();
+      }
+    });
+    assertFalse(notificationLatch.await(100, TimeUnit.MILLISECONDS));
+    exitLatch.countDown();
+    assertTrue(notificationLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(monitor.isIdleNow());
+    // the pool's only thread came back to the queue.
+    assertTrue(installed.allWorkersCounted());
+  }
+
+  public void testCountingQueue_removedTaskCompletes() {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {}
+    };
+    assertTrue(countingQueue.offer(task));
+    assertFalse(countingQueue.allTasksCompleted());
+    assertSame(task, countingQueue.peek());
+    assertTrue(countingQueue.remove(task));
+    assertTrue(countingQueue.allTasksCompleted());
+
+    assertTrue(countingQueue.offer(task));
+    assertSame(task, countingQueue.poll());
+    assertTrue(countingQueue.allTasksCompleted());
+    assertEquals(2, countingQueue.getSubmittedCount());
+  }
+
+  public void testCountingQueue_listenerAddedOnce() {
+    List<Runnable> listeners = Lists.newArrayList();
+    for (int i = 0; i < 2; i++) {
+      // instances of the same class.
+      listeners.add(new Runnable() {
+        @Override
+        public void run() {}
+      });
+    }
+    assertTrue(countingQueue.addWorkerWaitingListenerIfAbsent(listeners.get(0)));
+    assertFalse(countingQueue.addWorkerWaitingListenerIfAbsent(listeners.get(0)));
+    assertTrue(countingQueue.addWorkerWaitingListenerIfAbsent(listeners.get(1)));
+  }
 }
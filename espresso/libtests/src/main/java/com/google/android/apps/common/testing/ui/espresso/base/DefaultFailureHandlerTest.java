@@ -81,6 +81,43 @@ public class DefaultFailureHandlerTest extends ActivityInstrumentationTestCase2<
     }
   }
 
+  public void testTraceAttachedToFailure() {
+    try {
+      onView(withMatchesThatReturns(false)).check(matches(not(isDisplayed())));
+      fail("Previous call expected to fail");
+    } catch (NoMatchingViewException e) {
+      assertTrue(e.getCause().getMessage().startsWith("Espresso trace"));
+    }
+  }
+
+  public void testTraceAppendedToAssertionMessage() {
+    try {
+      onView(isRoot()).check(matches(not(isDisplayed())));
+      fail("Previous call expected to fail");
+    } catch (AssertionFailedError e) {
+      assertTrue(e.getMessage().contains("\nEspresso trace"));
+      // the original assertion is unchanged.
+      assertNull(e.getCause().getCause());
+    }
+  }
+
+  public void testTraceNotAttachedToOtherExceptions() {
+    final IllegalStateException thrown = new IllegalStateException("from the test");
+    try {
+      onView(isRoot()).check(new ViewAssertion() {
+        @Override
+        public void check(
+            Optional<View> view, Optional<NoMatchingViewException> noViewFoundException) {
+          throw thrown;
+        }
+      });
+      fail("Previous call expected to fail");
+    } catch (IllegalStateException e) {
+      assertSame(thrown, e);
+      assertNull(e.getCause());
+    }
+  }
+
   private void assertFailureStackContainsThisClass(Throwable e) {
     assertTrue(getStackTraceAsString(e).contains(getClass().getSimpleName().toString()));
   }
@@ -0,0 +1,97 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import android.os.Handler;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link DispatchProfiler}.
+ */
+public class DispatchProfilerTest extends TestCase {
+
+  private static final long BUDGET = TimeUnit.MILLISECONDS.toNanos(16);
+
+  private DispatchProfiler profiler;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    profiler = new DispatchProfiler();
+  }
+
+  public void testEmpty() {
+    assertTrue(profiler.isEmpty());
+    assertTrue(profiler.report(5, BUDGET).endsWith("none recorded."));
+  }
+
+  public void testBucketFor() {
+    assertEquals(0, DispatchProfiler.bucketFor(TimeUnit.MICROSECONDS.toNanos(900)));
+    assertEquals(1, DispatchProfiler.bucketFor(TimeUnit.MILLISECONDS.toNanos(1)));
+    assertEquals(2, DispatchProfiler.bucketFor(TimeUnit.MILLISECONDS.toNanos(3)));
+    assertEquals(5, DispatchProfiler.bucketFor(TimeUnit.MILLISECONDS.toNanos(16)));
+    assertEquals(DispatchProfiler.HISTOGRAM_BUCKETS - 1,
+        DispatchProfiler.bucketFor(TimeUnit.MINUTES.toNanos(1)));
+  }
+
+  public void testOverBudget() {
+    assertFalse(profiler.record(Handler.class, null, BUDGET, BUDGET));
+    assertTrue(profiler.record(Handler.class, null, BUDGET + 1, BUDGET));
+    assertFalse(profiler.isEmpty());
+    assertTrue(profiler.report(1, BUDGET).contains("2 dispatches"));
+    assertTrue(profiler.report(1, BUDGET).contains("1 over budget"));
+  }
+
+  public void testReportRanksByTotalTime() {
+    profiler.record(Handler.class, null, TimeUnit.MILLISECONDS.toNanos(5), BUDGET);
+    profiler.record(Handler.class, null, TimeUnit.MILLISECONDS.toNanos(5), BUDGET);
+    profiler.record(Handler.class, Runnable.class, TimeUnit.MILLISECONDS.toNanos(40), BUDGET);
+    profiler.record(FakeHandler.class, Runnable.class, TimeUnit.MILLISECONDS.toNanos(1), BUDGET);
+
+    String report = profiler.report(2, BUDGET);
+    int first = report.indexOf("1. " + Handler.class.getName() + " / " + Runnable.class.getName());
+    int second = report.indexOf("2. " + Handler.class.getName() + " / no callback");
+    assertTrue(report, first > 0);
+    assertTrue(report, second > first);
+    assertFalse(report, report.contains(FakeHandler.class.getName()));
+    assertTrue(report, report.contains("[<64: 1]"));
+  }
+
+  public void testOverflow() {
+    // more distinct keys than the profiler keeps track of.
+    Class<?>[] classes = {Object.class, String.class, Integer.class, Long.class, Short.class,
+        Byte.class, Double.class, Float.class, Character.class, Boolean.class, Number.class,
+        Thread.class};
+    int recorded = 0;
+    for (Class<?> target : classes) {
+      for (Class<?> callback : classes) {
+        profiler.record(target, callback, 1, BUDGET);
+        recorded++;
+      }
+    }
+    String report = profiler.report(100, BUDGET);
+    assertTrue(report, report.contains("(other targets)"));
+    assertEquals(recorded, countDispatches(report));
+
+    profiler.reset();
+    assertTrue(profiler.isEmpty());
+  }
+
+  private static int countDispatches(String report) {
+    int total = 0;
+    String[] lines = report.split("\n");
+    // the first line is the report's header.
+    for (int i = 1; i < lines.length; i++) {
+      String line = lines[i];
+      int end = line.indexOf(" dispatches");
+      if (end > 0) {
+        int start = line.lastIndexOf(' ', end - 1) + 1;
+        total += Integer.parseInt(line.substring(start, end));
+      }
+    }
+    return total;
+  }
+
+  private static class FakeHandler extends Handler {}
+}
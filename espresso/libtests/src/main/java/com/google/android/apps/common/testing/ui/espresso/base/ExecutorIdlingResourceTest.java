@@ -0,0 +1,134 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingResource.ResourceCallback;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link ExecutorIdlingResource}.
+ */
+public class ExecutorIdlingResourceTest extends TestCase {
+
+  private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      2, 2, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+  private final ScheduledThreadPoolExecutor scheduledExecutor = new ScheduledThreadPoolExecutor(2);
+
+  @Override
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    scheduledExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testCountsTasks() {
+    ExecutorIdlingResource resource = new ExecutorIdlingResource(executor);
+    assertTrue(executor.getQueue() instanceof TaskCountingQueue);
+    assertTrue(resource.isIdleNow());
+  }
+
+  public void testReportsIdleWhenLastTaskCompletes() throws Exception {
+    ExecutorIdlingResource resource = new ExecutorIdlingResource(executor);
+    CountDownLatch idleLatch = registerLatch(resource);
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    for (int i = 0; i < 3; i++) {
+      executor.execute(new BlockingTask(exitLatch));
+    }
+    assertFalse(resource.isIdleNow());
+    assertFalse(idleLatch.await(100, TimeUnit.MILLISECONDS));
+
+    exitLatch.countDown();
+    assertTrue(idleLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+  }
+
+  public void testTwoResourcesOnOneExecutor_bothReported() throws Exception {
+    ExecutorIdlingResource first = new ExecutorIdlingResource(executor);
+    CountDownLatch firstIdleLatch = registerLatch(first);
+    ExecutorIdlingResource second = new ExecutorIdlingResource(executor);
+    CountDownLatch secondIdleLatch = registerLatch(second);
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    executor.execute(new BlockingTask(exitLatch));
+    assertFalse(first.isIdleNow());
+    assertFalse(second.isIdleNow());
+
+    exitLatch.countDown();
+    assertTrue(firstIdleLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(secondIdleLatch.await(1, TimeUnit.SECONDS));
+  }
+
+  public void testTaskRunningBeforeInstall_isBusy() throws Exception {
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    BlockingTask task = new BlockingTask(exitLatch);
+    executor.execute(task);
+    assertTrue(task.runLatch.await(1, TimeUnit.SECONDS));
+    ExecutorIdlingResource resource = new ExecutorIdlingResource(executor);
+    CountDownLatch idleLatch = registerLatch(resource);
+    assertFalse(resource.isIdleNow());
+
+    exitLatch.countDown();
+    assertTrue(idleLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+  }
+
+  public void testScheduledTaskDueLong_isIdle() throws Exception {
+    ExecutorIdlingResource resource = new ExecutorIdlingResource(scheduledExecutor);
+    CountDownLatch idleLatch = registerLatch(resource);
+    ScheduledFuture<?> later = scheduledExecutor.schedule(
+        new BlockingTask(new CountDownLatch(0)), 1, TimeUnit.HOURS);
+    // the pool thread started for the task counts as active until it first waits for work.
+    assertTrue(resource.isIdleNow() || idleLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+    later.cancel(false);
+  }
+
+  public void testScheduledTaskRunning_isBusy() throws Exception {
+    ExecutorIdlingResource resource = new ExecutorIdlingResource(scheduledExecutor);
+    CountDownLatch idleLatch = registerLatch(resource);
+    CountDownLatch exitLatch = new CountDownLatch(1);
+    BlockingTask task = new BlockingTask(exitLatch);
+    scheduledExecutor.schedule(task, 1, TimeUnit.MILLISECONDS);
+    assertTrue(task.runLatch.await(1, TimeUnit.SECONDS));
+    assertFalse(resource.isIdleNow());
+
+    exitLatch.countDown();
+    assertTrue(idleLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+  }
+
+  private static CountDownLatch registerLatch(ExecutorIdlingResource resource) {
+    final CountDownLatch idleLatch = new CountDownLatch(1);
+    resource.registerIdleTransitionCallback(new ResourceCallback() {
+      @Override
+      public void onTransitionToIdle() {
+        idleLatch.countDown();
+      }
+    });
+    return idleLatch;
+  }
+
+  private static class BlockingTask implements Runnable {
+    private final CountDownLatch runLatch = new CountDownLatch(1);
+    private final CountDownLatch exitLatch;
+
+    BlockingTask(CountDownLatch exitLatch) {
+      this.exitLatch = exitLatch;
+    }
+
+    @Override
+    public void run() {
+      runLatch.countDown();
+      try {
+        exitLatch.await();
+      } catch (InterruptedException ie) {
+        throw new RuntimeException(ie);
+      }
+    }
+  }
+}
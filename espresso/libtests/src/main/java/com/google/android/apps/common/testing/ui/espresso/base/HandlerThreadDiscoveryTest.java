@@ -0,0 +1,150 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.common.collect.Lists;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link HandlerThreadDiscovery}.
+ */
+public class HandlerThreadDiscoveryTest extends TestCase {
+
+  private final List<HandlerThread> threads = Lists.newArrayList();
+  private IdlingResourceRegistry registry;
+  private HandlerThreadDiscovery discovery;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    registry = new IdlingResourceRegistry(Looper.getMainLooper());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    if (null != discovery) {
+      discovery.stop();
+    }
+    for (HandlerThread thread : threads) {
+      thread.quit();
+    }
+    super.tearDown();
+  }
+
+  public void testIncludedNamesRequired() {
+    try {
+      new HandlerThreadDiscovery.Builder().build();
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException expected) {}
+  }
+
+  public void testIncludedAndExcludedNames() {
+    HandlerThreadDiscovery discovery = new HandlerThreadDiscovery.Builder()
+        .withIncludedNames("Image.*|Database")
+        .withExcludedNames(".*Decoder")
+        .build();
+    assertTrue(discovery.matches("ImageLoader"));
+    assertTrue(discovery.matches("Database"));
+    assertFalse(discovery.matches("ImageDecoder"));
+    // whole names only.
+    assertFalse(discovery.matches("DatabaseWriter"));
+    assertFalse(discovery.matches("Network"));
+  }
+
+  public void testNegativeRescanInterval() {
+    try {
+      new HandlerThreadDiscovery.Builder().withRescanInterval(-1, TimeUnit.SECONDS);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {}
+  }
+
+  @LargeTest
+  public void testDiscoversMatchingHandlerThreads() {
+    HandlerThread included = startThread("DiscoveryTestIncluded");
+    HandlerThread excluded = startThread("DiscoveryTestExcluded");
+    HandlerThread other = startThread("OtherThread");
+    discovery = new HandlerThreadDiscovery.Builder()
+        .withIncludedNames("DiscoveryTest.*")
+        .withExcludedNames(".*Excluded")
+        .build();
+    discovery.start(registry);
+
+    List<Thread> discovered = discovery.getDiscoveredThreads();
+    assertTrue(discovered.contains(included));
+    assertFalse(discovered.contains(excluded));
+    assertFalse(discovered.contains(other));
+    assertEquals(1, discovered.size());
+  }
+
+  @LargeTest
+  public void testRescanRegistersNewThreads() {
+    HandlerThread first = startThread("DiscoveryTest1");
+    discovery = new HandlerThreadDiscovery.Builder()
+        .withIncludedNames("DiscoveryTest.*")
+        .withRescanInterval(50, TimeUnit.MILLISECONDS)
+        .build();
+    discovery.start(registry);
+    assertEquals(1, discovery.getDiscoveredThreads().size());
+
+    HandlerThread second = startThread("DiscoveryTest2");
+    assertTrue("Not discovered by a rescan.", awaitDiscovered(second));
+    assertTrue(discovery.getDiscoveredThreads().contains(first));
+  }
+
+  @LargeTest
+  public void testDeadThreadsUnregistered() throws Exception {
+    HandlerThread staying = startThread("DiscoveryTestStaying");
+    HandlerThread dying = startThread("DiscoveryTestDying");
+    discovery = new HandlerThreadDiscovery.Builder()
+        .withIncludedNames("DiscoveryTest.*")
+        .build();
+    discovery.start(registry);
+    assertEquals(2, discovery.getDiscoveredThreads().size());
+
+    dying.quit();
+    dying.join(TimeUnit.SECONDS.toMillis(1));
+    assertFalse(dying.isAlive());
+    discovery.scan();
+    assertEquals(Lists.<Thread>newArrayList(staying), discovery.getDiscoveredThreads());
+  }
+
+  @LargeTest
+  public void testStopForgetsThreads() {
+    startThread("DiscoveryTest");
+    discovery = new HandlerThreadDiscovery.Builder()
+        .withIncludedNames("DiscoveryTest.*")
+        .build();
+    discovery.start(registry);
+    assertEquals(1, discovery.getDiscoveredThreads().size());
+    discovery.stop();
+    assertTrue(discovery.getDiscoveredThreads().isEmpty());
+    // scans after stopping do nothing.
+    discovery.scan();
+    assertTrue(discovery.getDiscoveredThreads().isEmpty());
+  }
+
+  private HandlerThread startThread(String name) {
+    HandlerThread thread = new HandlerThread(name);
+    thread.start();
+    threads.add(thread);
+    return thread;
+  }
+
+  private boolean awaitDiscovered(Thread thread) {
+    long deadline = SystemClock.uptimeMillis() + TimeUnit.SECONDS.toMillis(2);
+    while (SystemClock.uptimeMillis() < deadline) {
+      if (discovery.getDiscoveredThreads().contains(thread)) {
+        return true;
+      }
+      SystemClock.sleep(10);
+    }
+    return false;
+  }
+}
@@ -0,0 +1,141 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link IdleWaitStatistics}.
+ */
+public class IdleWaitStatisticsTest extends TestCase {
+
+  private static final String KEY = IdleWaitStatistics.screenKey("com.example.MainActivity");
+
+  private File file;
+  private IdleWaitStatistics statistics;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("idle-wait-statistics", ".txt");
+    assertTrue(file.delete());
+    statistics = new IdleWaitStatistics(file, 3, 100, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    file.delete();
+    super.tearDown();
+  }
+
+  public void testFixedTimeoutUntilSeenInEnoughRuns() throws Exception {
+    // plenty of waits in one run are not enough.
+    record(KEY, 200, 1000);
+    assertEquals(60000, statistics.getTimeoutMillis(KEY, 60000));
+    nextRun();
+    record(KEY, 200, 1000);
+    assertEquals(60000, statistics.getTimeoutMillis(KEY, 60000));
+    nextRun();
+    record(KEY, 200, 1);
+    // 200ms is in the bucket of waits up to 256ms.
+    assertEquals(768, statistics.getTimeoutMillis(KEY, 60000));
+  }
+
+  public void testFixedTimeoutUntilEnoughSamples() throws Exception {
+    for (int run = 0; run < 3; run++) {
+      record(KEY, 200, 10);
+      nextRun();
+    }
+    assertEquals(60000, statistics.getTimeoutMillis(KEY, 60000));
+    record(KEY, 200, 20);
+    assertEquals(768, statistics.getTimeoutMillis(KEY, 60000));
+  }
+
+  public void testRareLongWaitsKeepTheirTimeout() throws Exception {
+    learn(KEY, 2);
+    // one wait in this run legitimately takes seconds.
+    statistics.record(KEY, 2500);
+    assertEquals(12288, statistics.getTimeoutMillis(KEY, 60000));
+    // however many short waits follow.
+    record(KEY, 1, 1000);
+    assertEquals(12288, statistics.getTimeoutMillis(KEY, 60000));
+    nextRun();
+    assertEquals(12288, statistics.getTimeoutMillis(KEY, 60000));
+  }
+
+  public void testLongWaitsAreForgotten() throws Exception {
+    learn(KEY, 2);
+    statistics.record(KEY, 2500);
+    // the slow wait does not happen again.
+    for (int run = 0; run < 10; run++) {
+      nextRun();
+      record(KEY, 2, 50);
+    }
+    assertEquals(12288, statistics.getTimeoutMillis(KEY, 60000));
+    nextRun();
+    assertEquals(100, statistics.getTimeoutMillis(KEY, 60000));
+  }
+
+  public void testClampedToMinAndFixedTimeout() throws Exception {
+    learn(KEY, 1);
+    assertEquals(100, statistics.getTimeoutMillis(KEY, 60000));
+    statistics.record(KEY, 50000);
+    assertEquals(60000, statistics.getTimeoutMillis(KEY, 60000));
+  }
+
+  public void testKeysAreIndependent() throws Exception {
+    learn(KEY, 200);
+    String resource = IdleWaitStatistics.resourceKey("ImageLoader");
+    assertEquals(26000, statistics.getTimeoutMillis(resource, 26000));
+    assertEquals(768, statistics.getTimeoutMillis(KEY, 26000));
+  }
+
+  public void testSavedAndLoaded() throws Exception {
+    String resource = IdleWaitStatistics.resourceKey("Image\tLoader");
+    for (int run = 0; run < 3; run++) {
+      record(KEY, 200, 20);
+      record(resource, 1000, 20);
+      nextRun();
+    }
+    assertTrue(file.isFile());
+    assertEquals(768, statistics.getTimeoutMillis(KEY, 60000));
+    assertEquals(3072, statistics.getTimeoutMillis(resource, 60000));
+    // tabs in names are saved as spaces.
+    assertEquals(3072, statistics.getTimeoutMillis(
+        IdleWaitStatistics.resourceKey("Image Loader"), 60000));
+  }
+
+  public void testArguments() {
+    try {
+      new IdleWaitStatistics(file, 0.5, 100, TimeUnit.MILLISECONDS);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {}
+    try {
+      new IdleWaitStatistics(file, 3, 0, TimeUnit.MILLISECONDS);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {}
+  }
+
+  private void record(String key, long waitMillis, int times) {
+    for (int i = 0; i < times; i++) {
+      statistics.record(key, waitMillis);
+    }
+  }
+
+  /** Records enough runs of the given wait for the key's timeout to be learned. */
+  private void learn(String key, long waitMillis) throws IOException {
+    for (int run = 0; run < 3; run++) {
+      record(key, waitMillis, 20);
+      if (run < 2) {
+        nextRun();
+      }
+    }
+  }
+
+  private void nextRun() throws IOException {
+    statistics.save();
+    statistics = new IdleWaitStatistics(file, 3, 100, TimeUnit.MILLISECONDS);
+  }
+}
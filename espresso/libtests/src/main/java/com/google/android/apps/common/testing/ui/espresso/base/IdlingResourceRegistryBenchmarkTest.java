@@ -0,0 +1,96 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures what {@link IdlingResourceRegistry} costs the idle loop as more resources are
+ * registered.
+ *
+ * For each size the registry is filled with idle resources, asked whether all of them are idle
+ * (as the UiController does before each interaction) with none and with one of them busy, and
+ * emptied again. Registering and unregistering a resource must take constant time: going from
+ * 100 to 1000 resources may make each one at most {@link #MAX_GROWTH} times dearer, well below
+ * the tenfold of a linear scan.
+ */
+public class IdlingResourceRegistryBenchmarkTest extends InstrumentationTestCase {
+  private static final String TAG = IdlingResourceRegistryBenchmarkTest.class.getSimpleName();
+  private static final int[] SIZES = {10, 100, 1000};
+  private static final int WARMUP_CHECKS = 1000;
+  private static final int CHECKS = 10000;
+  private static final int MAX_GROWTH = 3;
+
+  private IdlingResourceRegistry registry;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    registry = new IdlingResourceRegistry(Looper.getMainLooper());
+  }
+
+  @LargeTest
+  public void testRegistryCostBySize() {
+    long[][] results = new long[SIZES.length][];
+    for (int i = 0; i < SIZES.length; i++) {
+      final int size = SIZES[i];
+      final long[] result = new long[4];
+      getInstrumentation().runOnMainSync(new Runnable() {
+        @Override
+        public void run() {
+          measure(size, result);
+        }
+      });
+      Log.i(TAG, String.format("%d resources - register: %dns/resource, all idle check: %dns, "
+          + "check with one busy: %dns, unregister: %dns/resource",
+          size, result[0], result[1], result[2], result[3]));
+      assertTrue(result[1] > 0);
+      results[i] = result;
+    }
+    long[] hundred = results[SIZES.length - 2];
+    long[] thousand = results[SIZES.length - 1];
+    String message = String.format("per resource at %d and %d resources - register: %dns, %dns, "
+        + "unregister: %dns, %dns", SIZES[SIZES.length - 2], SIZES[SIZES.length - 1], hundred[0],
+        thousand[0], hundred[3], thousand[3]);
+    assertTrue(message, thousand[0] <= Math.max(1, hundred[0]) * MAX_GROWTH);
+    assertTrue(message, thousand[3] <= Math.max(1, hundred[3]) * MAX_GROWTH);
+  }
+
+  private void measure(int size, long[] result) {
+    OnDemandIdlingResource[] resources = new OnDemandIdlingResource[size];
+    for (int i = 0; i < size; i++) {
+      resources[i] = new OnDemandIdlingResource("resource" + i);
+      resources[i].forceIdleNow();
+    }
+
+    long start = System.nanoTime();
+    for (OnDemandIdlingResource resource : resources) {
+      registry.register(resource);
+    }
+    result[0] = (System.nanoTime() - start) / size;
+    assertEquals(size, registry.size());
+
+    result[1] = measureChecks(true);
+    resources[size / 2].reset();
+    result[2] = measureChecks(false);
+
+    start = System.nanoTime();
+    for (OnDemandIdlingResource resource : resources) {
+      registry.unregister(resource);
+    }
+    result[3] = (System.nanoTime() - start) / size;
+    assertEquals(0, registry.size());
+  }
+
+  private long measureChecks(boolean expectIdle) {
+    for (int i = 0; i < WARMUP_CHECKS; i++) {
+      registry.allResourcesAreIdle();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < CHECKS; i++) {
+      assertEquals(expectIdle, registry.allResourcesAreIdle());
+    }
+    return (System.nanoTime() - start) / CHECKS;
+  }
+}
@@ -1,6 +1,9 @@
 package com.google.android.apps.common.testing.ui.espresso.base;
 
 import com.google.android.apps.common.testing.ui.espresso.IdlingResource;
+import com.google.android.apps.common.testing.ui.espresso.PolledIdlingResource;
+import com.google.android.apps.common.testing.ui.espresso.PolledIdlingResource.PollingPolicy;
+import com.google.android.apps.common.testing.ui.espresso.TransitionAwareIdlingResource;
 import com.google.android.apps.common.testing.ui.espresso.base.IdlingResourceRegistry.IdleNotificationCallback;
 
 import android.os.Handler;
@@ -13,6 +16,7 @@ import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -71,6 +75,245 @@ public class IdlingResourceRegistryTest extends InstrumentationTestCase {
     assertFalse(resourcesIdle.get());
   }
 
+  public void testUnregister() throws InterruptedException {
+    OnDemandIdlingResource r1 = new OnDemandIdlingResource("r1");
+    OnDemandIdlingResource r2 = new OnDemandIdlingResource("r2");
+    OnDemandIdlingResource r3 = new OnDemandIdlingResource("r3");
+    r2.forceIdleNow();
+    r3.forceIdleNow();
+    registry.register(r1);
+    registry.register(r2);
+    registry.register(r3);
+    // not the registered instance, ignored.
+    registry.unregister(new OnDemandIdlingResource("r1"));
+    assertFalse(allResourcesAreIdle());
+
+    registry.unregister(r1);
+    assertTrue(allResourcesAreIdle());
+
+    // the name is free again, and the slots left are still tracked.
+    OnDemandIdlingResource r1again = new OnDemandIdlingResource("r1");
+    registry.register(r1again);
+    r3.reset();
+    assertFalse(allResourcesAreIdle());
+    r3.forceIdleNow();
+    r1again.forceIdleNow();
+    assertTrue(allResourcesAreIdle());
+
+    // transitions of an unregistered resource are ignored.
+    r1.forceIdleNow();
+    registry.unregister(r2);
+    registry.unregister(r3);
+    assertTrue(allResourcesAreIdle());
+    assertEquals(1, registrySize());
+  }
+
+  public void testRegister_visibleWithoutMainThreadHop() throws InterruptedException {
+    final CountDownLatch mainThreadBlocked = new CountDownLatch(1);
+    final CountDownLatch registered = new CountDownLatch(1);
+    final AtomicBoolean resourcesIdle = new AtomicBoolean(true);
+    final CountDownLatch checked = new CountDownLatch(1);
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        mainThreadBlocked.countDown();
+        try {
+          registered.await();
+        } catch (InterruptedException ie) {
+          throw new RuntimeException(ie);
+        }
+        resourcesIdle.set(registry.allResourcesAreIdle());
+        checked.countDown();
+      }
+    });
+    assertTrue(mainThreadBlocked.await(1, TimeUnit.SECONDS));
+    // the main thread is busy, registering must neither wait for it nor be lost.
+    registry.register(new OnDemandIdlingResource("r1"));
+    registered.countDown();
+    assertTrue(checked.await(1, TimeUnit.SECONDS));
+    assertFalse(resourcesIdle.get());
+  }
+
+  @LargeTest
+  public void testRegister_concurrently() throws Exception {
+    final int threadCount = 8;
+    final int resourcesPerThread = 50;
+    final CountDownLatch start = new CountDownLatch(1);
+    final OnDemandIdlingResource[][] resources =
+        new OnDemandIdlingResource[threadCount][resourcesPerThread];
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+          }
+          for (int i = 0; i < resourcesPerThread; i++) {
+            resources[thread][i] = new OnDemandIdlingResource("t" + thread + "r" + i);
+            resources[thread][i].forceIdleNow();
+            registry.register(resources[thread][i]);
+            // every thread also races for the same shared name, one of them wins.
+            registry.register(new OnDemandIdlingResource("shared" + i));
+          }
+          // half of each thread's resources go again, from the thread which added them.
+          for (int i = 0; i < resourcesPerThread; i += 2) {
+            registry.unregister(resources[thread][i]);
+          }
+        }
+      });
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(threadCount * resourcesPerThread / 2 + resourcesPerThread, registrySize());
+    // the shared resources are busy, everything left of the threads' own is idle.
+    assertFalse(allResourcesAreIdle());
+    for (int t = 0; t < threadCount; t++) {
+      for (int i = 1; i < resourcesPerThread; i += 2) {
+        registry.unregister(resources[t][i]);
+      }
+    }
+    assertEquals(resourcesPerThread, registrySize());
+  }
+
+  @LargeTest
+  public void testUnregister_busyResourceReleasesWait() throws InterruptedException {
+    final CountDownLatch allResourcesIdleLatch = new CountDownLatch(1);
+    final OnDemandIdlingResource r1 = new OnDemandIdlingResource("r1");
+    OnDemandIdlingResource r2 = new OnDemandIdlingResource("r2");
+    registry.register(r1);
+    registry.register(r2);
+    r2.forceIdleNow();
+
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        registry.notifyWhenAllResourcesAreIdle(new IdleNotificationCallback() {
+          @Override
+          public void resourcesStillBusyWarning(List<String> busyResourceNames) {}
+
+          @Override
+          public void resourcesHaveTimedOut(List<String> busyResourceNames) {}
+
+          @Override
+          public void allResourcesIdle() {
+            allResourcesIdleLatch.countDown();
+          }
+        });
+      }
+    });
+
+    assertFalse(allResourcesIdleLatch.await(200, TimeUnit.MILLISECONDS));
+    registry.unregister(r1);
+    assertTrue(allResourcesIdleLatch.await(200, TimeUnit.MILLISECONDS));
+  }
+
+  public void testTransitionAwareResource_neverPolled() throws InterruptedException {
+    TransitioningIdlingResource r1 = new TransitioningIdlingResource("r1");
+    registry.register(r1);
+    assertTrue(allResourcesAreIdle());
+
+    r1.goBusy();
+    assertFalse(allResourcesAreIdle());
+    r1.goIdle();
+    assertTrue(allResourcesAreIdle());
+    assertEquals(1, r1.idleChecks.get());
+  }
+
+  @LargeTest
+  public void testTransitionAwareResource_idleExpected() throws InterruptedException {
+    final CountDownLatch allResourcesIdleLatch = new CountDownLatch(1);
+    final TransitioningIdlingResource r1 = new TransitioningIdlingResource("r1");
+    registry.register(r1);
+    r1.goBusy();
+
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        registry.notifyWhenAllResourcesAreIdle(new IdleNotificationCallback() {
+          @Override
+          public void resourcesStillBusyWarning(List<String> busyResourceNames) {}
+
+          @Override
+          public void resourcesHaveTimedOut(List<String> busyResourceNames) {}
+
+          @Override
+          public void allResourcesIdle() {
+            allResourcesIdleLatch.countDown();
+          }
+        });
+      }
+    });
+
+    // goes idle without saying so, but tells when to look.
+    r1.idle = true;
+    r1.callback.onIdleExpected(300, TimeUnit.MILLISECONDS);
+    assertFalse(allResourcesIdleLatch.await(100, TimeUnit.MILLISECONDS));
+    assertTrue(allResourcesIdleLatch.await(1, TimeUnit.SECONDS));
+  }
+
+  public void testPollingPolicyBackoff() {
+    PollingPolicy policy = new PollingPolicy.Builder()
+        .withInitialDelay(10, TimeUnit.MILLISECONDS)
+        .withMaxDelay(100, TimeUnit.MILLISECONDS)
+        .withMultiplier(3)
+        .withJitter(0.5)
+        .build();
+    assertEquals(10, policy.getDelayMillis(0, 0.5));
+    assertEquals(30, policy.getDelayMillis(1, 0.5));
+    assertEquals(90, policy.getDelayMillis(2, 0.5));
+    assertEquals(100, policy.getDelayMillis(3, 0.5));
+    assertEquals(100, policy.getDelayMillis(30, 0.5));
+    assertEquals(5, policy.getDelayMillis(0, 0));
+    assertEquals(150, policy.getDelayMillis(3, 1));
+  }
+
+  @LargeTest
+  public void testPolledResource_reportedIdleWithoutCallback() throws InterruptedException {
+    final CountDownLatch allResourcesIdleLatch = new CountDownLatch(1);
+    final AtomicBoolean warned = new AtomicBoolean(false);
+    final PollingResource r1 = new PollingResource("r1");
+    registry.register(r1);
+
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        registry.notifyWhenAllResourcesAreIdle(new IdleNotificationCallback() {
+          @Override
+          public void resourcesStillBusyWarning(List<String> busyResourceNames) {
+            warned.set(true);
+          }
+
+          @Override
+          public void resourcesHaveTimedOut(List<String> busyResourceNames) {}
+
+          @Override
+          public void allResourcesIdle() {
+            allResourcesIdleLatch.countDown();
+          }
+        });
+      }
+    });
+
+    assertFalse(allResourcesIdleLatch.await(200, TimeUnit.MILLISECONDS));
+    assertTrue("polled while busy", r1.idleChecks.get() > 2);
+    r1.idle = true;
+    // the policy polls at least every 50ms.
+    assertTrue(allResourcesIdleLatch.await(500, TimeUnit.MILLISECONDS));
+    assertFalse(warned.get());
+
+    int checks = r1.idleChecks.get();
+    Thread.sleep(200);
+    assertEquals("not polled once idle", checks, r1.idleChecks.get());
+  }
+
   @LargeTest
   public void testAllResourcesAreIdle_RepeatingToIdleTransitions() throws InterruptedException {
     OnDemandIdlingResource r1 = new OnDemandIdlingResource("r1");
@@ -218,4 +461,108 @@ public class IdlingResourceRegistryTest extends InstrumentationTestCase {
     assertEquals(1, busysFromWarning.get().size());
     assertEquals(1, allResourcesIdleLatch.getCount());
   }
+
+  private boolean allResourcesAreIdle() throws InterruptedException {
+    final AtomicBoolean resourcesIdle = new AtomicBoolean(false);
+    final CountDownLatch latch = new CountDownLatch(1);
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        resourcesIdle.set(registry.allResourcesAreIdle());
+        latch.countDown();
+      }
+    });
+    latch.await();
+    return resourcesIdle.get();
+  }
+
+  private int registrySize() throws InterruptedException {
+    final AtomicInteger size = new AtomicInteger();
+    final CountDownLatch latch = new CountDownLatch(1);
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        size.set(registry.size());
+        latch.countDown();
+      }
+    });
+    latch.await();
+    return size.get();
+  }
+
+  private static class PollingResource implements PolledIdlingResource {
+    private final String name;
+    private final AtomicInteger idleChecks = new AtomicInteger();
+    private volatile boolean idle = false;
+
+    PollingResource(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean isIdleNow() {
+      idleChecks.incrementAndGet();
+      return idle;
+    }
+
+    @Override
+    public void registerIdleTransitionCallback(ResourceCallback callback) {
+      // never called back.
+    }
+
+    @Override
+    public PollingPolicy getPollingPolicy() {
+      return new PollingPolicy.Builder()
+          .withInitialDelay(5, TimeUnit.MILLISECONDS)
+          .withMaxDelay(40, TimeUnit.MILLISECONDS)
+          .build();
+    }
+  }
+
+  private static class TransitioningIdlingResource implements TransitionAwareIdlingResource {
+    private final String name;
+    private final AtomicInteger idleChecks = new AtomicInteger();
+    private volatile boolean idle = true;
+    private volatile TransitionCallback callback;
+
+    TransitioningIdlingResource(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean isIdleNow() {
+      idleChecks.incrementAndGet();
+      return idle;
+    }
+
+    @Override
+    public void registerIdleTransitionCallback(ResourceCallback callback) {
+      fail("registerTransitionCallback expected instead.");
+    }
+
+    @Override
+    public void registerTransitionCallback(TransitionCallback callback) {
+      this.callback = callback;
+    }
+
+    void goBusy() {
+      idle = false;
+      callback.onTransitionToBusy();
+    }
+
+    void goIdle() {
+      idle = true;
+      callback.onTransitionToIdle();
+    }
+  }
 }
@@ -0,0 +1,94 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link IdlingResourceTimeline}.
+ */
+public class IdlingResourceTimelineTest extends TestCase {
+
+  private static final long START = TimeUnit.SECONDS.toNanos(100);
+
+  private IdlingResourceTimeline timeline;
+  private int images;
+  private int network;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    timeline = new IdlingResourceTimeline(8);
+    images = timeline.addResource("Images");
+    network = timeline.addResource("Network");
+  }
+
+  public void testCapacityMustBePowerOfTwo() {
+    try {
+      new IdlingResourceTimeline(6);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {}
+  }
+
+  public void testSameNameSameId() {
+    assertEquals(images, timeline.addResource("Images"));
+    assertTrue(images != network);
+  }
+
+  public void testEmpty() {
+    assertEquals("IdlingResource timeline: no transitions.", timeline.describe(0, 5));
+    assertEquals(0, timeline.mark());
+  }
+
+  public void testDescribeBusiestFirst() {
+    timeline.record(images, true, START);
+    timeline.record(network, true, START + millis(1));
+    timeline.record(images, false, START + millis(11));
+    timeline.record(network, false, START + millis(51));
+    timeline.record(images, true, START + millis(60));
+
+    assertEquals("IdlingResource timeline (5 transitions over 70.0ms):"
+        + "\n  Network: busy 50.0ms in 1 intervals"
+        + "\n  Images: busy 21.0ms in 2 intervals, busy for the last 10.0ms",
+        timeline.describe(0, 5, START + millis(70)));
+    assertEquals("IdlingResource timeline (5 transitions over 70.0ms):"
+        + "\n  Network: busy 50.0ms in 1 intervals",
+        timeline.describe(0, 1, START + millis(70)));
+  }
+
+  public void testDescribeFromMark() {
+    timeline.record(network, true, START);
+    timeline.record(network, false, START + millis(100));
+    long mark = timeline.mark();
+    timeline.record(images, true, START + millis(110));
+    timeline.record(images, false, START + millis(115));
+
+    assertEquals("IdlingResource timeline (2 transitions over 10.0ms):"
+        + "\n  Images: busy 5.0ms in 1 intervals",
+        timeline.describe(mark, 5, START + millis(120)));
+  }
+
+  public void testRingWrapsButTotalsRemain() {
+    for (int i = 0; i < 10; i++) {
+      timeline.record(network, true, START + millis(10 * i));
+      timeline.record(network, false, START + millis(10 * i + 5));
+    }
+    assertTrue(timeline.describe(0, 5).startsWith("IdlingResource timeline (8 transitions"));
+    assertEquals("IdlingResource busy time since start:"
+        + "\n  Network: busy 50.0ms in 10 intervals",
+        timeline.describeTotals(5));
+  }
+
+  public void testExport() throws Exception {
+    timeline.record(images, true, START);
+    timeline.record(images, false, START + millis(2));
+    StringWriter out = new StringWriter();
+    timeline.export(0, out);
+    assertEquals("0.000\tImages\tBUSY\n2.000\tImages\tIDLE\n", out.toString());
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
@@ -0,0 +1,103 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingResource.ResourceCallback;
+import com.google.common.collect.Lists;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link LooperGroupIdlingResource}.
+ */
+public class LooperGroupIdlingResourceTest extends InstrumentationTestCase {
+  private static final int LOOPER_COUNT = 70;
+
+  private final List<HandlerThread> threads = Lists.newArrayList();
+  private LooperGroupIdlingResource resource;
+  private CountDownLatch idleLatch;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    List<Looper> loopers = Lists.newArrayList();
+    // more than fit in one word of the bitmap.
+    for (int i = 0; i < LOOPER_COUNT; i++) {
+      HandlerThread thread = new HandlerThread("looper" + i);
+      thread.start();
+      threads.add(thread);
+      loopers.add(thread.getLooper());
+    }
+    resource = new LooperGroupIdlingResource("loopers", loopers);
+    idleLatch = new CountDownLatch(1);
+    resource.registerIdleTransitionCallback(new ResourceCallback() {
+      @Override
+      public void onTransitionToIdle() {
+        idleLatch.countDown();
+      }
+    });
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (HandlerThread thread : threads) {
+      thread.quit();
+    }
+    super.tearDown();
+  }
+
+  @LargeTest
+  public void testIdleOnceEveryLooperIdled() throws Exception {
+    assertTrue(idleLatch.await(2, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+  }
+
+  @LargeTest
+  public void testBusyWhileAMessageIsQueued() throws Exception {
+    assertTrue(idleLatch.await(2, TimeUnit.SECONDS));
+    idleLatch = new CountDownLatch(1);
+    final CountDownLatch runLatch = new CountDownLatch(1);
+    final CountDownLatch exitLatch = new CountDownLatch(1);
+    Handler handler = new Handler(threads.get(LOOPER_COUNT - 1).getLooper());
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        runLatch.countDown();
+        try {
+          exitLatch.await();
+        } catch (InterruptedException ie) {
+          throw new RuntimeException(ie);
+        }
+      }
+    });
+    assertTrue(runLatch.await(1, TimeUnit.SECONDS));
+    // queued behind the blocked message, not dispatched yet.
+    handler.post(new Runnable() {
+      @Override
+      public void run() {}
+    });
+    assertFalse(resource.isIdleNow());
+    // and stays busy until its idle handler ran.
+    assertFalse(resource.isIdleNow());
+
+    exitLatch.countDown();
+    assertTrue(idleLatch.await(1, TimeUnit.SECONDS));
+    assertTrue(resource.isIdleNow());
+  }
+
+  @LargeTest
+  public void testTaskDueLong_isIdle() throws Exception {
+    assertTrue(idleLatch.await(2, TimeUnit.SECONDS));
+    new Handler(threads.get(0).getLooper()).postDelayed(new Runnable() {
+      @Override
+      public void run() {}
+    }, TimeUnit.HOURS.toMillis(1));
+    assertTrue(resource.isIdleNow());
+  }
+}
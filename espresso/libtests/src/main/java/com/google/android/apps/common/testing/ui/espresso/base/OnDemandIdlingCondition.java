@@ -0,0 +1,64 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.android.apps.common.testing.ui.espresso.IdlingCondition;
+
+/**
+ * An {@link IdlingCondition} for testing that is met on demand.
+ */
+public class OnDemandIdlingCondition implements IdlingCondition {
+  private final String name;
+
+  private volatile boolean isIdle = false;
+  private volatile Runnable signal;
+  private volatile Runnable lastSignal;
+  private volatile int idleChecks = 0;
+
+  public OnDemandIdlingCondition(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean isIdleNow() {
+    idleChecks++;
+    return isIdle;
+  }
+
+  @Override
+  public void notifyWhenIdle(Runnable signal) {
+    this.signal = signal;
+    this.lastSignal = signal;
+  }
+
+  @Override
+  public void cancelIdleNotification() {
+    signal = null;
+  }
+
+  public void forceIdleNow() {
+    isIdle = true;
+    Runnable mySignal = signal;
+    if (mySignal != null) {
+      mySignal.run();
+    }
+  }
+
+  public void reset() {
+    isIdle = false;
+  }
+
+  /**
+   * Returns the last signal handed out, even if it has been cancelled since.
+   */
+  public Runnable getLastSignal() {
+    return lastSignal;
+  }
+
+  public int getIdleChecks() {
+    return idleChecks;
+  }
+}
@@ -0,0 +1,181 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import com.google.android.apps.common.testing.ui.testapp.R;
+import com.google.android.apps.common.testing.ui.testapp.SendActivity;
+import com.google.common.base.Optional;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.util.Arrays;
+
+/**
+ * Compares the throughput of {@link UiControllerImpl}'s idle engines on a testapp activity.
+ *
+ * Each interaction posts a handful of main thread tasks that touch the view hierarchy (causing a
+ * layout pass) and then waits for the app to go idle - roughly what a click or a typed character
+ * costs the idle loop.
+ *
+ * The engines that are on by default must not do more work than the ones they replaced: the
+ * event driven engine must not inspect the queue more often than polling, nor get through
+ * noticeably fewer interactions per second in its best round, and the frame aware engine must
+ * not inspect the queue more often than barrier polling.
+ */
+public class UiControllerImplBenchmarkTest extends ActivityInstrumentationTestCase2<SendActivity> {
+  private static final String TAG = UiControllerImplBenchmarkTest.class.getSimpleName();
+  private static final int WARMUP_INTERACTIONS = 20;
+  private static final int INTERACTIONS = 200;
+  private static final int TASKS_PER_INTERACTION = 5;
+  private static final int ROUNDS = 3;
+  // how much less throughput than polling the event driven engine may measure, for timer noise.
+  private static final double SLACK = 1.1;
+
+  private UiControllerImpl uiController;
+
+  @SuppressWarnings("deprecation")
+  public UiControllerImplBenchmarkTest() {
+    // Supporting froyo.
+    super("com.google.android.apps.common.testing.ui.testapp", SendActivity.class);
+  }
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    EventInjector injector = null;
+    if (Build.VERSION.SDK_INT > 15) {
+      InputManagerEventInjectionStrategy strat = new InputManagerEventInjectionStrategy();
+      strat.initialize();
+      injector = new EventInjector(strat);
+    } else {
+      WindowManagerEventInjectionStrategy strat = new WindowManagerEventInjectionStrategy();
+      strat.initialize();
+      injector = new EventInjector(strat);
+    }
+    uiController = new UiControllerImpl(
+        injector,
+        new AsyncTaskPoolMonitor(new ThreadPoolExecutorExtractor(
+            Looper.getMainLooper()).getAsyncTaskThreadPool()),
+        Optional.<AsyncTaskPoolMonitor>absent(),
+        new IdlingResourceRegistry(Looper.getMainLooper()),
+        new IdlingConditionRegistry(Looper.getMainLooper()),
+        Looper.getMainLooper());
+    getActivity();
+    getInstrumentation().waitForIdleSync();
+  }
+
+  @LargeTest
+  public void testInteractionsPerSecond() {
+    double polling = 0;
+    double eventDriven = 0;
+    long pollingInspections = Long.MAX_VALUE;
+    long eventDrivenInspections = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long inspections = uiController.getQueueInspectionCount();
+      polling = Math.max(polling, measureInteractionsPerSecond(false));
+      pollingInspections = Math.min(pollingInspections,
+          uiController.getQueueInspectionCount() - inspections);
+      inspections = uiController.getQueueInspectionCount();
+      eventDriven = Math.max(eventDriven, measureInteractionsPerSecond(true));
+      eventDrivenInspections = Math.min(eventDrivenInspections,
+          uiController.getQueueInspectionCount() - inspections);
+    }
+    String results = String.format("Idle engine throughput - polling: %.1f/s, %d queue "
+        + "inspections; event driven: %.1f/s, %d queue inspections",
+        polling, pollingInspections, eventDriven, eventDrivenInspections);
+    Log.i(TAG, results);
+    Log.i(TAG, uiController.getDispatchProfileReport(5));
+    assertTrue(results, eventDrivenInspections <= pollingInspections);
+    assertTrue(results, eventDriven * SLACK >= polling);
+  }
+
+  @LargeTest
+  public void testLoopIterationsPerInteraction() {
+    long[] barrierPolling = measureLoopWork(false);
+    long[] frameAware = measureLoopWork(true);
+    String results = String.format("Per interaction - barrier polling: %.2f iterations, %.2f "
+        + "queue inspections, median wait %dus; frame aware: %.2f iterations, %.2f queue "
+        + "inspections, median wait %dus",
+        barrierPolling[0] / (double) INTERACTIONS, barrierPolling[1] / (double) INTERACTIONS,
+        barrierPolling[2], frameAware[0] / (double) INTERACTIONS,
+        frameAware[1] / (double) INTERACTIONS, frameAware[2]);
+    Log.i(TAG, results);
+    assertTrue(results, barrierPolling[0] > 0);
+    assertTrue(results, frameAware[0] > 0);
+    if (Build.VERSION.SDK_INT >= 16) {
+      // before JB traversals are plain messages and both engines are the same.
+      assertTrue(results, frameAware[1] <= barrierPolling[1]);
+    }
+  }
+
+  /**
+   * Returns the loop iterations, the queue inspections and the median wait (in micros) of
+   * INTERACTIONS interactions.
+   */
+  private long[] measureLoopWork(final boolean frameAware) {
+    final TextView title = (TextView) getActivity().findViewById(R.id.send_title);
+    final long[] result = new long[3];
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        uiController.setFrameAwareIdling(frameAware);
+        Handler handler = new Handler();
+        for (int i = 0; i < WARMUP_INTERACTIONS; i++) {
+          interact(handler, title, i);
+        }
+        long[] waits = new long[INTERACTIONS];
+        long iterations = uiController.getLoopIterationCount();
+        long inspections = uiController.getQueueInspectionCount();
+        for (int i = 0; i < INTERACTIONS; i++) {
+          long start = System.nanoTime();
+          interact(handler, title, i);
+          waits[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(waits);
+        result[0] = uiController.getLoopIterationCount() - iterations;
+        result[1] = uiController.getQueueInspectionCount() - inspections;
+        result[2] = waits[INTERACTIONS / 2];
+      }
+    });
+    return result;
+  }
+
+  private double measureInteractionsPerSecond(final boolean eventDriven) {
+    final TextView title = (TextView) getActivity().findViewById(R.id.send_title);
+    final long[] elapsed = new long[1];
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        uiController.setEventDrivenIdling(eventDriven);
+        Handler handler = new Handler();
+        for (int i = 0; i < WARMUP_INTERACTIONS; i++) {
+          interact(handler, title, i);
+        }
+        long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < INTERACTIONS; i++) {
+          interact(handler, title, i);
+        }
+        elapsed[0] = Math.max(1, SystemClock.uptimeMillis() - start);
+      }
+    });
+    return INTERACTIONS * 1000.0 / elapsed[0];
+  }
+
+  private void interact(Handler handler, final TextView title, final int iteration) {
+    for (int i = 0; i < TASKS_PER_INTERACTION; i++) {
+      final int task = i;
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          title.setText("interaction " + iteration + "." + task);
+        }
+      });
+    }
+    uiController.loopMainThreadUntilIdle();
+  }
+}
@@ -61,6 +61,7 @@ public class UiControllerImplIntegrationTest
             Looper.getMainLooper()).getAsyncTaskThreadPool()),
         Optional.<AsyncTaskPoolMonitor>absent(),
         new IdlingResourceRegistry(Looper.getMainLooper()),
+        new IdlingConditionRegistry(Looper.getMainLooper()),
         Looper.getMainLooper());
   }
 
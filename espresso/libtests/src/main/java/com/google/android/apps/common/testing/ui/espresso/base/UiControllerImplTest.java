@@ -1,21 +1,31 @@
 package com.google.android.apps.common.testing.ui.espresso.base;
 
+import com.google.android.apps.common.testing.ui.espresso.AppNotIdleException;
+import com.google.android.apps.common.testing.ui.espresso.IdlingPolicies;
 import com.google.android.apps.common.testing.ui.espresso.IdlingResourceTimeoutException;
+import com.google.android.apps.common.testing.ui.espresso.InteractionIdlingPolicy;
 import com.google.common.base.Optional;
 
 import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.util.Log;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -29,6 +39,7 @@ public class UiControllerImplTest extends TestCase {
   private AtomicReference<UiControllerImpl> uiController = new AtomicReference<UiControllerImpl>();
   private ThreadPoolExecutor asyncPool;
   private IdlingResourceRegistry idlingResourceRegistry;
+  private IdlingConditionRegistry idlingConditionRegistry;
 
   private static class LooperThread extends Thread {
     private final CountDownLatch init = new CountDownLatch(1);
@@ -79,8 +90,10 @@ public class UiControllerImplTest extends TestCase {
     });
     testThread.start();
     idlingResourceRegistry = new IdlingResourceRegistry(testThread.getLooper());
+    idlingConditionRegistry = new IdlingConditionRegistry(testThread.getLooper());
+    // counted, as ThreadPoolExecutorExtractor makes AsyncTask's pool.
     asyncPool = new ThreadPoolExecutor(3, 3, 1, TimeUnit.SECONDS,
-        new LinkedBlockingQueue<Runnable>());
+        new TaskCountingQueue(new LinkedBlockingQueue<Runnable>()));
     EventInjector injector = null;
     if (Build.VERSION.SDK_INT > 15) {
       InputManagerEventInjectionStrategy strat = new InputManagerEventInjectionStrategy();
@@ -96,6 +109,7 @@ public class UiControllerImplTest extends TestCase {
         new AsyncTaskPoolMonitor(asyncPool),
         Optional.<AsyncTaskPoolMonitor>absent(),
         idlingResourceRegistry,
+        idlingConditionRegistry,
         testThread.getLooper()
         ));
 
@@ -181,6 +195,50 @@ public class UiControllerImplTest extends TestCase {
         latch.await(10, TimeUnit.SECONDS));
   }
 
+  public void testLoopForAtLeast_virtualTime() throws Exception {
+    final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    final long[] elapsed = new long[1];
+    final CountDownLatch latch = new CountDownLatch(1);
+    IdlingPolicies.setVirtualTimeEnabled(true);
+    try {
+      assertTrue(testThread.getHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          Handler handler = testThread.getHandler();
+          handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+              ran.add("second");
+            }
+          }, 3000);
+          handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+              ran.add("first");
+            }
+          }, 2000);
+          handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+              ran.add("after the wait");
+            }
+          }, 20000);
+          long start = SystemClock.uptimeMillis();
+          uiController.get().loopMainThreadForAtLeast(5000);
+          elapsed[0] = SystemClock.uptimeMillis() - start;
+          latch.countDown();
+        }
+      }));
+      assertTrue("Never returned from UiControllerImpl.loopMainThreadForAtLeast();",
+          latch.await(10, TimeUnit.SECONDS));
+    } finally {
+      IdlingPolicies.setVirtualTimeEnabled(false);
+    }
+    assertEquals(Arrays.asList("first", "second"), ran);
+    assertTrue("Waited for " + elapsed[0] + "ms in virtual time.", elapsed[0] < 1000);
+    assertTrue(uiController.get().getVirtualMillisAdvanced() >= 4000);
+  }
+
   public void testLoopMainThreadUntilIdle_fullQueue() {
     final CountDownLatch latch = new CountDownLatch(3);
     assertTrue(testThread.getHandler().post(new Runnable() {
@@ -289,6 +347,108 @@ public class UiControllerImplTest extends TestCase {
     }
   }
 
+  @SuppressWarnings("deprecation")
+  public void testLoopMainThreadUntilIdle_noSteadyStateAllocations() throws InterruptedException {
+    OnDemandIdlingResource idleResource = new OnDemandIdlingResource("IdleResource");
+    idleResource.forceIdleNow();
+    idlingResourceRegistry.register(idleResource);
+    final Handler countingHandler = new Handler(testThread.getLooper(), new Handler.Callback() {
+      @Override
+      public boolean handleMessage(Message msg) {
+        return true;
+      }
+    });
+    final AtomicInteger allocations = new AtomicInteger(-1);
+    final CountDownLatch latch = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 10; i++) {
+          countingHandler.sendEmptyMessage(1);
+          uiController.get().loopMainThreadUntilIdle();
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+          for (int i = 0; i < 100; i++) {
+            countingHandler.sendEmptyMessage(1);
+            countingHandler.sendEmptyMessage(2);
+            uiController.get().loopMainThreadUntilIdle();
+          }
+        } finally {
+          Debug.stopAllocCounting();
+        }
+        allocations.set(Debug.getThreadAllocCount());
+        latch.countDown();
+      }
+    }));
+    assertTrue("Never returned from the counted loops.", latch.await(10, TimeUnit.SECONDS));
+    assertEquals("Objects allocated while waiting on an idle app", 0, allocations.get());
+  }
+
+  public void testLoopMainThreadUntilIdle_shortCircuitsWhileIdleEpochIsOpen()
+      throws InterruptedException {
+    final OnDemandIdlingResource resource = new OnDemandIdlingResource("Resource");
+    resource.forceIdleNow();
+    idlingResourceRegistry.register(resource);
+    final AtomicInteger handled = new AtomicInteger(0);
+    final Handler countingHandler = new Handler(testThread.getLooper(), new Handler.Callback() {
+      @Override
+      public boolean handleMessage(Message msg) {
+        handled.incrementAndGet();
+        return true;
+      }
+    });
+    final long[] shortCircuited = new long[4];
+    final CountDownLatch latch = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        UiControllerImpl controller = uiController.get();
+        controller.loopMainThreadUntilIdle();
+        controller.loopMainThreadUntilIdle();
+        shortCircuited[0] = controller.getShortCircuitedIdleWaitCount();
+
+        // work enqueued by the caller ends the short circuit.
+        countingHandler.sendEmptyMessage(1);
+        controller.loopMainThreadUntilIdle();
+        shortCircuited[1] = controller.getShortCircuitedIdleWaitCount();
+
+        // so does a resource going busy behind our back.
+        resource.reset();
+        testThread.getHandler().postDelayed(new Runnable() {
+          @Override
+          public void run() {
+            resource.forceIdleNow();
+          }
+        }, 100);
+        controller.loopMainThreadUntilIdle();
+        shortCircuited[2] = controller.getShortCircuitedIdleWaitCount();
+        latch.countDown();
+      }
+    }));
+    assertTrue("Never returned from the back to back waits.", latch.await(10, TimeUnit.SECONDS));
+    assertEquals(1, shortCircuited[0]);
+    assertEquals(1, shortCircuited[1]);
+    assertEquals(1, handled.get());
+    assertEquals(1, shortCircuited[2]);
+    assertTrue(resource.isIdleNow());
+
+    // anything dispatched by the looper in between closes the epoch.
+    final CountDownLatch secondLatch = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        uiController.get().loopMainThreadUntilIdle();
+        shortCircuited[3] = uiController.get().getShortCircuitedIdleWaitCount();
+        secondLatch.countDown();
+      }
+    }));
+    assertTrue("Never returned from the second wait.", secondLatch.await(10, TimeUnit.SECONDS));
+    assertEquals(1, shortCircuited[3]);
+    assertEquals(5, uiController.get().getIdleWaitCount());
+  }
+
   public void testLoopMainThreadUntilIdle_oneIdlingResource() throws InterruptedException {
     OnDemandIdlingResource fakeResource = new OnDemandIdlingResource("FakeResource");
     idlingResourceRegistry.register(fakeResource);
@@ -307,6 +467,71 @@ public class UiControllerImplTest extends TestCase {
     assertTrue("App should be idle.", latch.await(5, TimeUnit.SECONDS));
   }
 
+  public void testLoopMainThreadUntilIdle_idlingConditions() throws InterruptedException {
+    OnDemandIdlingCondition condition1 = new OnDemandIdlingCondition("Condition1");
+    OnDemandIdlingCondition condition2 = new OnDemandIdlingCondition("Condition2");
+    idlingConditionRegistry.register(condition1);
+    idlingConditionRegistry.register(condition2);
+    final CountDownLatch latch = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        uiController.get().loopMainThreadUntilIdle();
+        latch.countDown();
+      }
+    }));
+    assertFalse(
+        "Should not have stopped looping the main thread yet!", latch.await(1, TimeUnit.SECONDS));
+    condition1.forceIdleNow();
+    assertFalse(
+        "Should not have stopped looping the main thread yet!", latch.await(1, TimeUnit.SECONDS));
+    int checksWhileWaiting = condition2.getIdleChecks();
+    assertFalse(
+        "Should not have stopped looping the main thread yet!", latch.await(1, TimeUnit.SECONDS));
+    assertEquals("Conditions must not be polled while waiting for their signal.",
+        checksWhileWaiting, condition2.getIdleChecks());
+    condition2.forceIdleNow();
+    assertTrue("App should be idle.", latch.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testLoopMainThreadUntilIdle_ignoresIdlingConditionSignalsOfEarlierWaits()
+      throws InterruptedException {
+    final OnDemandIdlingCondition condition = new OnDemandIdlingCondition("Condition");
+    idlingConditionRegistry.register(condition);
+    final CountDownLatch firstWait = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        uiController.get().loopMainThreadUntilIdle();
+        firstWait.countDown();
+      }
+    }));
+    assertFalse(
+        "Should not have stopped looping the main thread yet!", firstWait.await(1, TimeUnit.SECONDS));
+    final Runnable firstSignal = condition.getLastSignal();
+    condition.forceIdleNow();
+    assertTrue("App should be idle.", firstWait.await(5, TimeUnit.SECONDS));
+
+    condition.reset();
+    final CountDownLatch secondWait = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        uiController.get().loopMainThreadUntilIdle();
+        secondWait.countDown();
+      }
+    }));
+    assertFalse(
+        "Should not have stopped looping the main thread yet!", secondWait.await(1, TimeUnit.SECONDS));
+    assertNotSame(firstSignal, condition.getLastSignal());
+    // a late run of the first wait's signal must not end the second wait.
+    firstSignal.run();
+    assertFalse(
+        "A stale signal ended the wait!", secondWait.await(1, TimeUnit.SECONDS));
+    condition.forceIdleNow();
+    assertTrue("App should be idle.", secondWait.await(5, TimeUnit.SECONDS));
+  }
+
   public void testLoopMainThreadUntilIdle_multipleIdlingResources() throws InterruptedException {
     OnDemandIdlingResource fakeResource1 = new OnDemandIdlingResource("FakeResource1");
     OnDemandIdlingResource fakeResource2 = new OnDemandIdlingResource("FakeResource2");
@@ -371,4 +596,81 @@ public class UiControllerImplTest extends TestCase {
         "Should have caught IdlingResourceTimeoutException", latch.await(11, TimeUnit.SECONDS));
   }
 
+  public void testLoopMainThreadUntilIdle_interactionPolicySkipsConditions()
+      throws InterruptedException {
+    final CountDownLatch asyncTaskStarted = new CountDownLatch(1);
+    final CountDownLatch asyncTaskShouldComplete = new CountDownLatch(1);
+    asyncPool.execute(new Runnable() {
+      @Override
+      public void run() {
+        asyncTaskStarted.countDown();
+        while (true) {
+          try {
+            asyncTaskShouldComplete.await();
+            return;
+          } catch (InterruptedException ie) {
+            // cant interrupt me. ignore.
+          }
+        }
+      }
+    });
+    assertTrue("async task is not starting!", asyncTaskStarted.await(2, TimeUnit.SECONDS));
+    OnDemandIdlingResource skippedResource = new OnDemandIdlingResource("SkippedResource");
+    idlingResourceRegistry.register(skippedResource);
+    OnDemandIdlingCondition skippedCondition = new OnDemandIdlingCondition("SkippedCondition");
+    idlingConditionRegistry.register(skippedCondition);
+    final InteractionIdlingPolicy policy = new InteractionIdlingPolicy.Builder()
+        .skip(InteractionIdlingPolicy.Condition.ASYNC_TASKS)
+        .skip(InteractionIdlingPolicy.Condition.IDLING_CONDITIONS)
+        .skipIdlingResource("SkippedResource")
+        .build();
+    final CountDownLatch latch = new CountDownLatch(1);
+    try {
+      assertTrue(testThread.getHandler().post(new Runnable() {
+        @Override
+        public void run() {
+          IdlingPolicies.setInteractionIdlingPolicy(policy);
+          try {
+            uiController.get().loopMainThreadUntilIdle();
+          } finally {
+            IdlingPolicies.setInteractionIdlingPolicy(InteractionIdlingPolicy.DEFAULT);
+          }
+          latch.countDown();
+        }
+      }));
+      assertTrue("Skipped work should not have been waited for.",
+          latch.await(5, TimeUnit.SECONDS));
+      assertEquals("Skipped conditions should not even be checked.",
+          0, skippedCondition.getIdleChecks());
+    } finally {
+      asyncTaskShouldComplete.countDown();
+    }
+  }
+
+  public void testLoopMainThreadUntilIdle_interactionPolicyConditionTimeout()
+      throws InterruptedException {
+    idlingConditionRegistry.register(new OnDemandIdlingCondition("NeverIdle"));
+    final InteractionIdlingPolicy policy = new InteractionIdlingPolicy.Builder()
+        .withTimeout(InteractionIdlingPolicy.Condition.IDLING_CONDITIONS, 500, TimeUnit.MILLISECONDS)
+        .build();
+    final AtomicReference<AppNotIdleException> thrown = new AtomicReference<AppNotIdleException>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    assertTrue(testThread.getHandler().post(new Runnable() {
+      @Override
+      public void run() {
+        IdlingPolicies.setInteractionIdlingPolicy(policy);
+        try {
+          uiController.get().loopMainThreadUntilIdle();
+        } catch (AppNotIdleException e) {
+          thrown.set(e);
+        } finally {
+          IdlingPolicies.setInteractionIdlingPolicy(InteractionIdlingPolicy.DEFAULT);
+        }
+        latch.countDown();
+      }
+    }));
+    assertTrue("Should have given up on the condition.", latch.await(5, TimeUnit.SECONDS));
+    assertNotNull(thrown.get());
+    assertTrue(thrown.get().getMessage(), thrown.get().getMessage().contains("NeverIdle"));
+  }
 }
@@ -0,0 +1,123 @@
+package com.google.android.apps.common.testing.ui.espresso.base;
+
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
+import static org.hamcrest.Matchers.is;
+
+import com.google.common.collect.ImmutableList;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View;
+import android.view.View.MeasureSpec;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import org.hamcrest.Matcher;
+
+import java.util.List;
+
+import javax.inject.Provider;
+
+/**
+ * Compares finding a view by id through the {@link ViewIndex} with matching every view of a
+ * synthetic hierarchy of more than 5000 views.
+ *
+ * withId(int) is looked up in the index, while withId(is(int)) - which matches the same view -
+ * has no id the finder can read, so it is found by traversal. The cold case requests a layout
+ * before every lookup, so each one rebuilds the index first - as the first lookup after the screen
+ * changed does. The best of a few rounds is kept, and an indexed lookup must not be slower than
+ * the traversal.
+ */
+public class ViewFinderImplBenchmarkTest extends InstrumentationTestCase {
+  private static final String TAG = ViewFinderImplBenchmarkTest.class.getSimpleName();
+  private static final int FAN_OUT = 4;
+  private static final int DEPTH = 6;
+  private static final int WARMUP_LOOKUPS = 20;
+  private static final int LOOKUPS = 200;
+  private static final int ROUNDS = 3;
+  // how much slower than the traversal an indexed lookup may measure, for timer noise.
+  private static final double SLACK = 1.1;
+
+  private View root;
+  private int viewCount;
+  private Provider<List<View>> rootsProvider;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    root = buildTree(getInstrumentation().getTargetContext(), 0);
+    // laid out, so the index is kept between lookups.
+    root.measure(MeasureSpec.makeMeasureSpec(1000, MeasureSpec.EXACTLY),
+        MeasureSpec.makeMeasureSpec(1000, MeasureSpec.EXACTLY));
+    root.layout(0, 0, 1000, 1000);
+    rootsProvider = new Provider<List<View>>() {
+      @Override
+      public List<View> get() {
+        return ImmutableList.of(root);
+      }
+    };
+  }
+
+  @LargeTest
+  public void testIndexedLookupCost() {
+    final long[] result = new long[4];
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        ViewIndex viewIndex = new ViewIndex();
+        int id = viewCount;
+        long start = System.nanoTime();
+        ViewFinderImpl finder = new ViewFinderImpl(withId(id), rootsProvider, viewIndex);
+        assertEquals(id, finder.getView().getId());
+        result[0] = (System.nanoTime() - start) / 1000;
+        result[1] = Long.MAX_VALUE;
+        result[2] = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+          result[1] = Math.min(result[1], measure(withId(id), viewIndex, false));
+          result[2] = Math.min(result[2], measure(withId(is(id)), viewIndex, false));
+        }
+        // last: the root keeps its pending layout.
+        result[3] = measure(withId(id), viewIndex, true);
+      }
+    });
+    String results = String.format("%d views - building the index: %dus, indexed lookup: %dus, "
+        + "traversal: %dus, indexed lookup after a layout: %dus", viewCount, result[0], result[1],
+        result[2], result[3]);
+    Log.i(TAG, results);
+    assertTrue(results, result[1] <= result[2] * SLACK);
+  }
+
+  private long measure(Matcher<View> matcher, ViewIndex viewIndex, boolean cold) {
+    ViewFinderImpl finder = new ViewFinderImpl(matcher, rootsProvider, viewIndex);
+    for (int i = 0; i < WARMUP_LOOKUPS; i++) {
+      finder.getView();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      if (cold) {
+        root.requestLayout();
+      }
+      assertEquals(viewCount, finder.getView().getId());
+    }
+    return (System.nanoTime() - start) / LOOKUPS / 1000;
+  }
+
+  private View buildTree(Context context, int depth) {
+    // numbered in depth first order, so the highest id is the last view a traversal reaches.
+    int id = ++viewCount;
+    View view;
+    if (depth == DEPTH) {
+      view = new View(context);
+    } else {
+      ViewGroup group = new FrameLayout(context);
+      for (int i = 0; i < FAN_OUT; i++) {
+        group.addView(buildTree(context, depth + 1));
+      }
+      view = group;
+    }
+    view.setId(id);
+    return view;
+  }
+}
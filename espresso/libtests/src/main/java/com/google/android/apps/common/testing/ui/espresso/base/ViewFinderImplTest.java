@@ -1,25 +1,40 @@
 package com.google.android.apps.common.testing.ui.espresso.base;
 
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isAssignableFrom;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.sameInstance;
 
 import com.google.android.apps.common.testing.ui.espresso.AmbiguousViewMatcherException;
 import com.google.android.apps.common.testing.ui.espresso.NoMatchingViewException;
 import com.google.android.apps.common.testing.ui.espresso.ViewFinder;
+import com.google.common.collect.Lists;
 
 import android.test.InstrumentationTestCase;
 import android.test.UiThreadTest;
 import android.view.View;
+import android.view.View.MeasureSpec;
+import android.widget.ListView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import org.hamcrest.Matcher;
 import org.hamcrest.Matchers;
 
+import java.util.List;
+
 import javax.inject.Provider;
 
 /** Unit tests for {@link ViewFinderImpl}. */
 public class ViewFinderImplTest extends InstrumentationTestCase {
-  private Provider<View> testViewProvider;
+  // appended to each matching view in the hierarchy printed by AmbiguousViewMatcherException.
+  private static final String MATCHES_MARKER = "****MATCHES****";
+
+  private Provider<List<View>> testViewProvider;
+  private List<View> roots;
+  private ViewIndex viewIndex;
   private RelativeLayout testView;
   private View child1;
   private View child2;
@@ -48,28 +63,34 @@ public class ViewFinderImplTest extends InstrumentationTestCase {
     testView.addView(nestingLayout);
     testView.addView(child3);
     testView.addView(child4);
-    testViewProvider = new Provider<View>() {
+    // laid out, so the index is only rebuilt when a test changes the tree.
+    testView.measure(MeasureSpec.makeMeasureSpec(100, MeasureSpec.EXACTLY),
+        MeasureSpec.makeMeasureSpec(100, MeasureSpec.EXACTLY));
+    testView.layout(0, 0, 100, 100);
+    roots = Lists.<View>newArrayList(testView);
+    testViewProvider = new Provider<List<View>>() {
       @Override
-      public View get() {
-        return testView;
+      public List<View> get() {
+        return roots;
       }
 
       @Override
       public String toString() {
-        return "of(" + testView + ")";
+        return "of(" + roots + ")";
       }
     };
+    viewIndex = new ViewIndex();
   }
 
   @UiThreadTest
   public void testGetView_present() {
-    ViewFinder finder = new ViewFinderImpl(sameInstance(nestedChild), testViewProvider);
+    ViewFinder finder = new ViewFinderImpl(sameInstance(nestedChild), testViewProvider, viewIndex);
     assertThat(finder.getView(), sameInstance(nestedChild));
   }
 
   @UiThreadTest
   public void testGetView_missing() {
-    ViewFinder finder = new ViewFinderImpl(Matchers.<View>nullValue(), testViewProvider);
+    ViewFinder finder = new ViewFinderImpl(Matchers.<View>nullValue(), testViewProvider, viewIndex);
     try {
       finder.getView();
       fail("No children should pass that matcher!");
@@ -78,19 +99,132 @@ public class ViewFinderImplTest extends InstrumentationTestCase {
 
   @UiThreadTest
   public void testGetView_multiple() {
-    ViewFinder finder = new ViewFinderImpl(Matchers.<View>notNullValue(), testViewProvider);
+    ViewFinder finder = new ViewFinderImpl(Matchers.<View>notNullValue(), testViewProvider, viewIndex);
     try {
       finder.getView();
       fail("All nodes hit that matcher!");
     } catch (AmbiguousViewMatcherException expected) {}
   }
 
+  @UiThreadTest
+  public void testGetView_missingWithAdapterView() {
+    ListView listView = new ListView(getInstrumentation().getTargetContext());
+    testView.addView(listView);
+    try {
+      finder(Matchers.<View>nullValue()).getView();
+      fail("No children should pass that matcher!");
+    } catch (NoMatchingViewException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().contains("Espresso.onData"));
+    }
+  }
+
+  @UiThreadTest
+  public void testGetView_presentWithAdapterView() {
+    ListView listView = new ListView(getInstrumentation().getTargetContext());
+    // reached before the matching view, so it was noted before the match.
+    testView.addView(listView, 0);
+    assertThat(finder(sameInstance(child4)).getView(), sameInstance(child4));
+  }
+
+  @UiThreadTest
+  public void testGetView_multipleListsEveryMatch() {
+    try {
+      finder(isAssignableFrom(TextView.class)).getView();
+      fail("All text views hit that matcher!");
+    } catch (AmbiguousViewMatcherException expected) {
+      String message = expected.getMessage();
+      int matches = 0;
+      for (int i = message.indexOf(MATCHES_MARKER); i != -1;
+          i = message.indexOf(MATCHES_MARKER, i + 1)) {
+        matches++;
+      }
+      // once where the marker is explained, then after each of the five text views.
+      assertEquals(message, 6, matches);
+    }
+  }
+
+  @UiThreadTest
+  public void testGetView_indexed() {
+    assertThat(finder(withId(5)).getView(), sameInstance(nestedChild));
+    // again, from the index built by the first lookup.
+    assertThat(finder(withId(5)).getView(), sameInstance(nestedChild));
+    assertThat(finder(withId(1)).getView(), sameInstance(child1));
+  }
+
+  @UiThreadTest
+  @SuppressWarnings("unchecked")
+  public void testGetView_indexMiss() {
+    assertThat(finder(withId(1)).getView(), sameInstance(child1));
+    try {
+      // the index has a view with the id, but it does not match - nor does any other.
+      finder(allOf(withId(1), not(sameInstance(child1)))).getView();
+      fail("No view should pass that matcher!");
+    } catch (NoMatchingViewException expected) {}
+    try {
+      finder(withId(42)).getView();
+      fail("No view has that id!");
+    } catch (NoMatchingViewException expected) {}
+  }
+
+  @UiThreadTest
+  public void testGetView_duplicateIds() {
+    child3.setId(1);
+    try {
+      finder(withId(1)).getView();
+      fail("Two views have that id!");
+    } catch (AmbiguousViewMatcherException expected) {}
+  }
+
+  @UiThreadTest
+  public void testGetView_idChangedAfterIndexing() {
+    assertThat(finder(withId(1)).getView(), sameInstance(child1));
+    // setId does not lay the tree out again.
+    child3.setId(1);
+    try {
+      finder(withId(1)).getView();
+      fail("Two views have that id now!");
+    } catch (AmbiguousViewMatcherException expected) {}
+    child1.setId(42);
+    assertThat(finder(withId(42)).getView(), sameInstance(child1));
+    assertThat(finder(withId(1)).getView(), sameInstance(child3));
+  }
+
+  @UiThreadTest
+  public void testGetView_viewAddedAfterIndexing() {
+    assertThat(finder(withId(1)).getView(), sameInstance(child1));
+    View added = new TextView(getInstrumentation().getTargetContext());
+    added.setId(1);
+    testView.addView(added);
+    try {
+      finder(withId(1)).getView();
+      fail("Two views have that id now!");
+    } catch (AmbiguousViewMatcherException expected) {}
+  }
+
+  @UiThreadTest
+  public void testGetView_rootGone() {
+    RelativeLayout otherRoot = new RelativeLayout(getInstrumentation().getTargetContext());
+    View otherChild = new TextView(getInstrumentation().getTargetContext());
+    otherChild.setId(7);
+    otherRoot.addView(otherChild);
+    roots.add(otherRoot);
+    assertThat(finder(withId(7)).getView(), sameInstance(otherChild));
+    roots.remove(otherRoot);
+    try {
+      finder(withId(7)).getView();
+      fail("The view went away with its root!");
+    } catch (NoMatchingViewException expected) {}
+  }
+
   public void testFind_offUiThread() {
-    ViewFinder finder = new ViewFinderImpl(sameInstance(nestedChild), testViewProvider);
+    ViewFinder finder = new ViewFinderImpl(sameInstance(nestedChild), testViewProvider, viewIndex);
     try {
       finder.getView();
       fail("not on main thread, should die.");
     } catch (IllegalStateException expected) {}
   }
 
+  private ViewFinder finder(Matcher<View> matcher) {
+    return new ViewFinderImpl(matcher, testViewProvider, viewIndex);
+  }
 }
@@ -5,6 +5,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import com.google.android.apps.common.testing.ui.espresso.IdlingResource.ResourceCallback;
+import com.google.android.apps.common.testing.ui.espresso.TransitionAwareIdlingResource.TransitionCallback;
 
 import android.test.InstrumentationTestCase;
 
@@ -23,6 +24,9 @@ public class CountingIdlingResourceTest extends InstrumentationTestCase {
   @Mock
   private ResourceCallback mockCallback;
 
+  @Mock
+  private TransitionCallback mockTransitionCallback;
+
   @Override
   public void setUp() throws Exception {
     super.setUp();
@@ -65,6 +69,30 @@ public class CountingIdlingResourceTest extends InstrumentationTestCase {
     assertTrue(callIsIdle());
   }
 
+  public void testTransitionNotification() throws Exception {
+    registerTransitionCallback();
+    resource.increment();
+    verify(mockTransitionCallback).onTransitionToBusy();
+
+    resource.increment();
+    resource.decrement();
+    verify(mockTransitionCallback).onTransitionToBusy();
+    verify(mockTransitionCallback, never()).onTransitionToIdle();
+
+    resource.decrement();
+    verify(mockTransitionCallback).onTransitionToIdle();
+    verify(mockCallback, never()).onTransitionToIdle();
+  }
+
+  private void registerTransitionCallback() throws Exception {
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        resource.registerTransitionCallback(mockTransitionCallback);
+      }
+    });
+  }
+
   private void registerIdleCallback() throws Exception {
     FutureTask<Void> registerTask = new FutureTask<Void>(new Callable<Void>() {
       @Override
@@ -0,0 +1,100 @@
+package com.google.android.apps.common.testing.ui.espresso.contrib;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the throughput of {@link StripedCountingIdlingResource} and
+ * {@link CountingIdlingResource} as more threads count at once.
+ *
+ * Each thread increments and decrements in a loop while the main thread holds one increment, so
+ * the resource stays busy the whole time - as it does while an app works through its requests.
+ * With more than one processor to contend on, the striped resource must not be slower than
+ * CountingIdlingResource at the highest thread count.
+ */
+public class StripedCountingIdlingResourceBenchmarkTest extends InstrumentationTestCase {
+  private static final String TAG = StripedCountingIdlingResourceBenchmarkTest.class.getSimpleName();
+  private static final int[] THREAD_COUNTS = {1, 4, 16, 32};
+  private static final int OPERATIONS = 100000;
+  // how much slower than CountingIdlingResource the striped one may measure, for timer noise.
+  private static final double SLACK = 1.1;
+
+  @LargeTest
+  public void testThroughputByThreadCount() throws Exception {
+    long countingNanos = 0;
+    long stripedNanos = 0;
+    for (int threads : THREAD_COUNTS) {
+      final CountingIdlingResource counting = new CountingIdlingResource("counting", false);
+      countingNanos = measure(threads, new Counter() {
+        @Override
+        public void increment() {
+          counting.increment();
+        }
+
+        @Override
+        public void decrement() {
+          counting.decrement();
+        }
+      });
+      final StripedCountingIdlingResource striped =
+          new StripedCountingIdlingResource("striped");
+      stripedNanos = measure(threads, new Counter() {
+        @Override
+        public void increment() {
+          striped.increment();
+        }
+
+        @Override
+        public void decrement() {
+          striped.decrement();
+        }
+      });
+      Log.i(TAG, String.format("%d threads - counting: %dns/op, striped: %dns/op",
+          threads, countingNanos, stripedNanos));
+      assertTrue(counting.isIdleNow());
+      assertTrue(striped.isIdleNow());
+    }
+    if (Runtime.getRuntime().availableProcessors() > 1) {
+      assertTrue(String.format("counting: %dns/op, striped: %dns/op", countingNanos, stripedNanos),
+          stripedNanos <= countingNanos * SLACK);
+    }
+  }
+
+  private long measure(int threads, final Counter counter) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < OPERATIONS; i++) {
+              counter.increment();
+              counter.decrement();
+            }
+          } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    counter.increment();
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - begin;
+    counter.decrement();
+    return elapsed / (2L * OPERATIONS * threads);
+  }
+
+  private interface Counter {
+    void increment();
+    void decrement();
+  }
+}
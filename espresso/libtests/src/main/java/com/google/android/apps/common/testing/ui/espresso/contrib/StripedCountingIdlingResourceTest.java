@@ -0,0 +1,146 @@
+package com.google.android.apps.common.testing.ui.espresso.contrib;
+
+import com.google.android.apps.common.testing.ui.espresso.TransitionAwareIdlingResource.TransitionCallback;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Unit tests for {@link StripedCountingIdlingResource}. */
+public class StripedCountingIdlingResourceTest extends TestCase {
+  private static final String RESOURCE_NAME = "test_resource";
+  private static final int THREADS = 16;
+  private static final int ITERATIONS = 20000;
+
+  private StripedCountingIdlingResource resource;
+  private AlternationCheckingCallback callback;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    resource = new StripedCountingIdlingResource(RESOURCE_NAME, 4);
+    callback = new AlternationCheckingCallback();
+    resource.registerTransitionCallback(callback);
+  }
+
+  public void testResourceName() {
+    assertEquals(RESOURCE_NAME, resource.getName());
+  }
+
+  public void testInvalidStateDetected() {
+    resource.increment();
+    resource.decrement();
+    try {
+      resource.decrement();
+      fail("Should throw illegal state exception!");
+    } catch (IllegalStateException expected) { }
+  }
+
+  public void testTransitionNotification() {
+    assertTrue(resource.isIdleNow());
+    resource.increment();
+    assertFalse(resource.isIdleNow());
+    resource.increment();
+    resource.decrement();
+    assertFalse(resource.isIdleNow());
+    resource.decrement();
+    assertTrue(resource.isIdleNow());
+    assertEquals(1, callback.busyTransitions.get());
+    assertEquals(1, callback.idleTransitions.get());
+  }
+
+  public void testDecrementFromOtherThread() throws Exception {
+    Thread incrementer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        resource.increment();
+        resource.increment();
+      }
+    });
+    incrementer.start();
+    incrementer.join();
+    assertFalse(resource.isIdleNow());
+
+    resource.decrement();
+    assertFalse(resource.isIdleNow());
+    resource.decrement();
+    assertTrue(resource.isIdleNow());
+    assertEquals(1, callback.idleTransitions.get());
+  }
+
+  public void testTransitionsAlternateUnderContention() throws Exception {
+    // each decrement pays back an increment from some thread, so the count never goes below 0.
+    final ConcurrentLinkedQueue<Object> inflight = new ConcurrentLinkedQueue<Object>();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(THREADS);
+    for (int t = 0; t < THREADS; t++) {
+      final boolean holding = t % 2 == 0;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < ITERATIONS; i++) {
+              resource.increment();
+              inflight.add(this);
+              if (!holding || i % 3 == 0) {
+                Object token = inflight.poll();
+                if (null != token) {
+                  resource.decrement();
+                }
+              }
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+    assertTrue(done.await(60, TimeUnit.SECONDS));
+    assertNull(failure.get());
+
+    while (null != inflight.poll()) {
+      assertFalse(resource.isIdleNow());
+      resource.decrement();
+    }
+    assertTrue(resource.isIdleNow());
+    assertFalse(callback.outOfOrder.get());
+    assertTrue(callback.idleTransitions.get() >= 1);
+    assertEquals(callback.busyTransitions.get(), callback.idleTransitions.get());
+  }
+
+  private static class AlternationCheckingCallback implements TransitionCallback {
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    private final AtomicBoolean outOfOrder = new AtomicBoolean(false);
+    private final AtomicInteger busyTransitions = new AtomicInteger(0);
+    private final AtomicInteger idleTransitions = new AtomicInteger(0);
+
+    @Override
+    public void onTransitionToBusy() {
+      busyTransitions.incrementAndGet();
+      if (!busy.compareAndSet(false, true)) {
+        outOfOrder.set(true);
+      }
+    }
+
+    @Override
+    public void onTransitionToIdle() {
+      idleTransitions.incrementAndGet();
+      if (!busy.compareAndSet(true, false)) {
+        outOfOrder.set(true);
+      }
+    }
+
+    @Override
+    public void onIdleExpected(long delay, TimeUnit unit) {}
+  }
+}
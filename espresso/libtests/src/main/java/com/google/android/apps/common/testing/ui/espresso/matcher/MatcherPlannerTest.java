@@ -0,0 +1,196 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isDisplayed;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withTagValue;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.Cost;
+import com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.Costed;
+import com.google.common.collect.Lists;
+
+import android.view.View;
+
+import junit.framework.TestCase;
+
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+
+import java.util.List;
+
+/** Unit tests for {@link MatcherPlanner}. */
+public class MatcherPlannerTest extends TestCase {
+
+  private final List<String> calls = Lists.newArrayList();
+
+  @SuppressWarnings("unchecked")
+  public void testConjunctionRunsCheapPartsFirst() {
+    Matcher<Object> matcher = allOf(
+        recording("expensive", Cost.EXPENSIVE, true),
+        recording("moderate", Cost.MODERATE, true),
+        recording("cheap", Cost.CHEAP, true));
+    assertTrue(MatcherPlanner.plan(matcher).matches("item"));
+    assertEquals(Lists.newArrayList("cheap", "moderate", "expensive"), calls);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testConjunctionShortCircuits() {
+    Matcher<Object> matcher = allOf(
+        recording("expensive", Cost.EXPENSIVE, true),
+        recording("cheap", Cost.CHEAP, false));
+    assertFalse(MatcherPlanner.plan(matcher).matches("item"));
+    assertEquals(Lists.newArrayList("cheap"), calls);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testDisjunctionShortCircuits() {
+    Matcher<Object> matcher = anyOf(
+        recording("expensive", Cost.EXPENSIVE, true),
+        recording("cheap", Cost.CHEAP, true));
+    assertTrue(MatcherPlanner.plan(matcher).matches("item"));
+    assertEquals(Lists.newArrayList("cheap"), calls);
+
+    calls.clear();
+    matcher = anyOf(
+        recording("expensive", Cost.EXPENSIVE, false),
+        recording("cheap", Cost.CHEAP, false));
+    assertFalse(MatcherPlanner.plan(matcher).matches("item"));
+    assertEquals(Lists.newArrayList("cheap", "expensive"), calls);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testEqualCostsKeepTheirOrder() {
+    Matcher<Object> matcher = allOf(
+        recording("first", Cost.MODERATE, true),
+        notNullValue(),
+        recording("second", Cost.MODERATE, true));
+    assertTrue(MatcherPlanner.plan(matcher).matches("item"));
+    assertEquals(Lists.newArrayList("first", "second"), calls);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testUnknownPartsRunAfterThePartsBeforeThem() {
+    Matcher<Object> matcher = allOf(
+        recording("guard", Cost.EXPENSIVE, true),
+        unknown("custom", true),
+        recording("cheap", Cost.CHEAP, true));
+    assertTrue(MatcherPlanner.plan(matcher).matches("item"));
+    // known parts may still run first.
+    assertEquals(Lists.newArrayList("cheap", "guard", "custom"), calls);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testUnknownPartsKeepTheirOrder() {
+    Matcher<Object> matcher = anyOf(
+        recording("expensive", Cost.EXPENSIVE, false),
+        unknown("first", false),
+        unknown("second", false));
+    assertFalse(MatcherPlanner.plan(matcher).matches("item"));
+    assertEquals(Lists.newArrayList("expensive", "first", "second"), calls);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testNestedUnknownPartsAreNotMoved() {
+    Matcher<Object> matcher = allOf(
+        recording("guard", Cost.EXPENSIVE, true),
+        allOf(recording("cheap", Cost.CHEAP, true), unknown("custom", true)));
+    assertTrue(MatcherPlanner.plan(matcher).matches("item"));
+    assertEquals(Lists.newArrayList("guard", "cheap", "custom"), calls);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testNestedMatchersArePlanned() {
+    Matcher<Object> matcher = allOf(
+        anyOf(recording("expensive", Cost.EXPENSIVE, true), recording("cheap", Cost.CHEAP, true)),
+        recording("moderate", Cost.MODERATE, true));
+    assertTrue(MatcherPlanner.plan(matcher).matches("item"));
+    // the anyOf is ranked by its most expensive part, but tries its cheap one first.
+    assertEquals(Lists.newArrayList("moderate", "cheap"), calls);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testDescriptionIsKept() {
+    Matcher<Object> matcher = allOf(
+        recording("expensive", Cost.EXPENSIVE, true),
+        anyOf(recording("cheap", Cost.CHEAP, true), notNullValue()));
+    assertEquals(StringDescription.toString(matcher),
+        StringDescription.toString(MatcherPlanner.plan(matcher)));
+  }
+
+  public void testOtherMatchersAreUnchanged() {
+    Matcher<View> matcher = withId(42);
+    assertSame(matcher, MatcherPlanner.plan(matcher));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testCostOf() {
+    assertEquals(Cost.CHEAP, ViewMatchers.costOf(withId(42)));
+    assertEquals(Cost.EXPENSIVE, ViewMatchers.costOf(isDisplayed()));
+    assertEquals(Cost.MODERATE, ViewMatchers.costOf(notNullValue()));
+    // matchers running a matcher given by the caller are not cheap.
+    assertEquals(Cost.MODERATE, ViewMatchers.costOf(withId(is(42))));
+    assertEquals(Cost.MODERATE, ViewMatchers.costOf(withTagValue(notNullValue())));
+    Matcher<View> matcher = allOf(withId(42), isDisplayed());
+    assertEquals(Cost.EXPENSIVE, ViewMatchers.costOf(matcher));
+    assertEquals(Cost.EXPENSIVE, ViewMatchers.costOf(MatcherPlanner.plan(matcher)));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testRequiredIdOfPlannedMatcher() {
+    Matcher<View> matcher = allOf(isDisplayed(), withId(42));
+    assertEquals(Integer.valueOf(42), RequiredViewId.of(MatcherPlanner.plan(matcher)).get());
+  }
+
+  private Matcher<Object> recording(final String name, final Cost cost, final boolean result) {
+    return new RecordingMatcher(name, cost, result);
+  }
+
+  /** Returns a matcher which does not say what it costs. */
+  private Matcher<Object> unknown(final String name, final boolean result) {
+    return new BaseMatcher<Object>() {
+      @Override
+      public boolean matches(Object item) {
+        calls.add(name);
+        return result;
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText(name);
+      }
+    };
+  }
+
+  private class RecordingMatcher extends BaseMatcher<Object> implements Costed {
+    private final String name;
+    private final Cost cost;
+    private final boolean result;
+
+    private RecordingMatcher(String name, Cost cost, boolean result) {
+      this.name = name;
+      this.cost = cost;
+      this.result = result;
+    }
+
+    @Override
+    public boolean matches(Object item) {
+      calls.add(name);
+      return result;
+    }
+
+    @Override
+    public void describeTo(Description description) {
+      description.appendText(name);
+    }
+
+    @Override
+    public Cost getCost() {
+      return cost;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.google.android.apps.common.testing.ui.espresso.matcher;
+
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.isAssignableFrom;
+import static com.google.android.apps.common.testing.ui.espresso.matcher.ViewMatchers.withId;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.is;
+
+import android.view.View;
+import android.widget.TextView;
+
+import junit.framework.TestCase;
+
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+
+/** Unit tests for {@link RequiredViewId}. */
+public class RequiredViewIdTest extends TestCase {
+
+  public void testWithId() {
+    assertEquals(Integer.valueOf(42), RequiredViewId.of(withId(42)).get());
+  }
+
+  public void testWithIdDescription() {
+    assertEquals(StringDescription.toString(withId(is(42))),
+        StringDescription.toString(withId(42)));
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testConjunction() {
+    Matcher<View> matcher = allOf(isAssignableFrom(TextView.class), withId(42));
+    assertEquals(Integer.valueOf(42), RequiredViewId.of(matcher).get());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testNestedConjunction() {
+    Matcher<View> matcher =
+        allOf(isAssignableFrom(TextView.class), allOf(withId(42), isAssignableFrom(View.class)));
+    assertEquals(Integer.valueOf(42), RequiredViewId.of(matcher).get());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testNoRequiredId() {
+    assertFalse(RequiredViewId.of(withId(is(42))).isPresent());
+    assertFalse(RequiredViewId.of(isAssignableFrom(TextView.class)).isPresent());
+    assertFalse(RequiredViewId.of(anyOf(withId(42), withId(43))).isPresent());
+    assertFalse(RequiredViewId.of(allOf(isAssignableFrom(TextView.class))).isPresent());
+  }
+}
@@ -0,0 +1,190 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link TraceBuffer} and {@link ChromeTraceExporter}.
+ */
+public class TraceBufferTest extends TestCase {
+
+  private static final String TAG = TraceBufferTest.class.getSimpleName();
+
+  private TraceBuffer buffer;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    buffer = new TraceBuffer(8);
+  }
+
+  public void testCapacityMustBePowerOfTwo() {
+    try {
+      new TraceBuffer(6);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {}
+  }
+
+  public void testEmpty() {
+    assertTrue(buffer.snapshot().isEmpty());
+    assertEquals("Espresso trace: no records.", buffer.dump(10));
+  }
+
+  public void testRecordsInOrder() {
+    buffer.record(TraceEvent.TAP_SENT, 10, 20);
+    buffer.record(TraceEvent.MESSAGE_DISPATCHED, Object.class, null, 1000, 3);
+    List<TraceBuffer.Record> records = buffer.snapshot();
+    assertEquals(2, records.size());
+    assertEquals(TraceEvent.TAP_SENT, records.get(0).event);
+    assertEquals("to 10, 20", records.get(0).describe());
+    assertEquals(Thread.currentThread().getId(), records.get(0).threadId);
+    assertEquals("to java.lang.Object, callback: none, what: 3", records.get(1).describe());
+    assertTrue(records.get(0).timestampNanos <= records.get(1).timestampNanos);
+  }
+
+  public void testWrapsAround() {
+    for (int i = 0; i < 20; i++) {
+      buffer.record(TraceEvent.UP_SENT, i, 0);
+    }
+    List<TraceBuffer.Record> records = buffer.snapshot();
+    assertEquals(buffer.getCapacity(), records.size());
+    for (int i = 0; i < records.size(); i++) {
+      assertEquals(12 + i, records.get(i).arg0);
+    }
+  }
+
+  public void testDump() {
+    for (int i = 0; i < 5; i++) {
+      buffer.record(TraceEvent.UP_SENT, i, 0);
+    }
+    String dump = buffer.dump(2);
+    String[] lines = dump.split("\n");
+    assertEquals(dump, 3, lines.length);
+    assertEquals("Espresso trace (last 2 of 5 records):", lines[0]);
+    assertTrue(dump, lines[1].endsWith("up sent: at 3"));
+    assertTrue(dump, lines[2].endsWith("up sent: at 4"));
+  }
+
+  public void testCapture() {
+    for (int i = 0; i < 5; i++) {
+      buffer.record(TraceEvent.UP_SENT, i, 0);
+    }
+    Throwable trace = buffer.capture(2);
+    // later records are not part of the capture.
+    buffer.record(TraceEvent.UP_SENT, 5, 0);
+    assertEquals(0, trace.getStackTrace().length);
+    String[] lines = trace.getMessage().split("\n");
+    assertEquals(3, lines.length);
+    assertEquals("Espresso trace (last 2 of 5 records):", lines[0]);
+    assertTrue(lines[1].endsWith("up sent: at 3"));
+    assertTrue(lines[2].endsWith("up sent: at 4"));
+  }
+
+  public void testDisabled() {
+    buffer.setEnabled(false);
+    buffer.record(TraceEvent.UP_SENT, 1, 0);
+    assertTrue(buffer.snapshot().isEmpty());
+  }
+
+  public void testConcurrentWriters() throws InterruptedException {
+    final TraceBuffer shared = new TraceBuffer(1024);
+    final int writers = 4;
+    final int recordsPerWriter = 10000;
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(writers);
+    final long[] threadIds = new long[writers];
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < recordsPerWriter; i++) {
+              // both arguments name the writer, so a record mixing two writes is told apart.
+              shared.record(TraceEvent.SWIPE_MOVE_SENT, writer, writer * recordsPerWriter + i);
+            }
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      };
+      threadIds[w] = thread.getId();
+      thread.start();
+    }
+    start.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    // a writer lapped by another drops its record.
+    List<TraceBuffer.Record> records = shared.snapshot();
+    assertFalse(records.isEmpty());
+    assertTrue(records.size() <= shared.getCapacity());
+    // every record must be intact, and each writer's records in the order it wrote them.
+    long[] lastSeen = new long[writers];
+    Arrays.fill(lastSeen, -1);
+    for (TraceBuffer.Record record : records) {
+      assertEquals(TraceEvent.SWIPE_MOVE_SENT, record.event);
+      int writer = (int) record.arg0;
+      assertTrue(writer >= 0 && writer < writers);
+      assertEquals(writer, record.arg1 / recordsPerWriter);
+      assertEquals(threadIds[writer], record.threadId);
+      assertTrue(record.arg1 > lastSeen[writer]);
+      lastSeen[writer] = record.arg1;
+    }
+  }
+
+  public void testChromeTraceFormat() throws Exception {
+    buffer.record(TraceEvent.LOOP_STARTED, 7, 0);
+    buffer.record(TraceEvent.MESSAGE_DISPATCHED, Object.class, Runnable.class, 2000, 0);
+    buffer.record(TraceEvent.QUEUE_NOT_IDLE, 1, 0);
+    buffer.record(TraceEvent.LOOP_FINISHED, 1, 7);
+
+    StringWriter out = new StringWriter();
+    ChromeTraceExporter.write(buffer.snapshot(), 42, out);
+    String json = out.toString();
+    assertTrue(json, json.startsWith("{\"traceEvents\":["));
+    assertTrue(json, json.trim().endsWith("]}"));
+    assertTrue(json, json.contains("\"name\":\"loopUntil\",\"cat\":\"espresso\",\"ph\":\"B\""));
+    assertTrue(json, json.contains("\"ph\":\"X\",\"dur\":2.000"));
+    assertTrue(json, json.contains("\"ph\":\"i\",\"s\":\"t\""));
+    assertTrue(json, json.contains("\"ph\":\"E\""));
+    assertTrue(json, json.contains("\"pid\":42"));
+    assertTrue(json, json.contains("\"event\":\"MESSAGE_DISPATCHED\""));
+  }
+
+  @LargeTest
+  public void testRecordIsCheaperThanFormatting() {
+    TraceBuffer benchmark = new TraceBuffer(4096);
+    int iterations = 100000;
+    long recordNanos = 0;
+    long formatNanos = 0;
+    // the first round warms up.
+    for (int round = 0; round < 2; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        benchmark.record(TraceEvent.MESSAGE_DISPATCHED, Object.class, null, i, 0);
+      }
+      recordNanos = System.nanoTime() - start;
+      // what the trace replaced: a message formatted per event.
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        String.format("dispatched %s: %s", Object.class, i);
+      }
+      formatNanos = System.nanoTime() - start;
+    }
+    Log.i(TAG, String.format("TraceBuffer.record: %sns per event, String.format: %sns",
+        recordNanos / iterations, formatNanos / iterations));
+    assertTrue(String.format("record: %sns, format: %sns", recordNanos, formatNanos),
+        recordNanos < formatNanos);
+  }
+}
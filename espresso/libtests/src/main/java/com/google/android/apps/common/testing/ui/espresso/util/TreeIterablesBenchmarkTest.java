@@ -0,0 +1,94 @@
+package com.google.android.apps.common.testing.ui.espresso.util;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+/**
+ * Compares the view traversals of {@link TreeIterables}, which visit the children of each
+ * ViewGroup by index, with traversals which collect the children of each view first.
+ *
+ * The hierarchy is about as big as a busy screen: every ViewGroup has {@link #FAN_OUT} children,
+ * {@link #DEPTH} levels deep. Both traversals are measured in alternating rounds and the best
+ * round of each is kept, and the indexed traversals must not be slower than the collected ones.
+ */
+public class TreeIterablesBenchmarkTest extends InstrumentationTestCase {
+  private static final String TAG = TreeIterablesBenchmarkTest.class.getSimpleName();
+  private static final int FAN_OUT = 5;
+  private static final int DEPTH = 5;
+  private static final int WARMUP_TRAVERSALS = 20;
+  private static final int TRAVERSALS = 200;
+  private static final int ROUNDS = 5;
+  // how much slower than the collected traversal the indexed one may measure, for timer noise.
+  private static final double SLACK = 1.1;
+
+  private View root;
+  private int viewCount;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    root = buildTree(getInstrumentation().getTargetContext(), 0);
+  }
+
+  @LargeTest
+  public void testTraversalCost() {
+    Iterable<View> collectedDepthFirst =
+        TreeIterables.depthFirstTraversal(root, new TreeIterables.ViewTreeViewer());
+    Iterable<View> indexedDepthFirst = TreeIterables.depthFirstViewTraversal(root);
+    Iterable<View> collectedBreadthFirst =
+        TreeIterables.breadthFirstTraversal(root, new TreeIterables.ViewTreeViewer());
+    Iterable<View> indexedBreadthFirst = TreeIterables.breadthFirstViewTraversal(root);
+    long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+    for (int round = 0; round < ROUNDS; round++) {
+      best[0] = Math.min(best[0], measure(collectedDepthFirst));
+      best[1] = Math.min(best[1], measure(indexedDepthFirst));
+      best[2] = Math.min(best[2], measure(collectedBreadthFirst));
+      best[3] = Math.min(best[3], measure(indexedBreadthFirst));
+    }
+    String results = String.format("%d views - depth first: collected %dns, indexed %dns, "
+        + "breadth first: collected %dns, indexed %dns",
+        viewCount, best[0], best[1], best[2], best[3]);
+    Log.i(TAG, results);
+    assertTrue(results, best[1] <= best[0] * SLACK);
+    assertTrue(results, best[3] <= best[2] * SLACK);
+  }
+
+  /** Returns the nanos a single traversal took. */
+  private long measure(Iterable<View> traversal) {
+    for (int i = 0; i < WARMUP_TRAVERSALS; i++) {
+      count(traversal);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < TRAVERSALS; i++) {
+      assertEquals(viewCount, count(traversal));
+    }
+    return (System.nanoTime() - start) / TRAVERSALS;
+  }
+
+  private static int count(Iterable<View> traversal) {
+    int count = 0;
+    for (View view : traversal) {
+      if (null != view) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private View buildTree(Context context, int depth) {
+    viewCount++;
+    if (depth == DEPTH) {
+      return new View(context);
+    }
+    ViewGroup group = new FrameLayout(context);
+    for (int i = 0; i < FAN_OUT; i++) {
+      group.addView(buildTree(context, depth + 1));
+    }
+    return group;
+  }
+}
@@ -6,21 +6,20 @@ import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.is;
 
-import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.DistanceRecordingTreeViewer;
+import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.IndexedTreeViewer;
 import com.google.android.apps.common.testing.ui.espresso.util.TreeIterables.TreeViewer;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 
 import junit.framework.TestCase;
 
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Random;
 
 /** Unit tests for {@link TreeIterables}. */
 public class TreeIterablesTest extends TestCase {
@@ -41,6 +40,18 @@ public class TreeIterablesTest extends TestCase {
     }
   }
 
+  private static class IndexedTestElementTreeViewer implements IndexedTreeViewer<TestElement> {
+    @Override
+    public int childCount(TestElement element) {
+      return element.children.size();
+    }
+
+    @Override
+    public TestElement childAt(TestElement element, int index) {
+      return element.children.get(index);
+    }
+  }
+
   private static class TestElementStringConvertor implements Function<TestElement, String> {
     @Override
     public String apply(TestElement e) {
@@ -71,79 +82,6 @@ public class TreeIterablesTest extends TestCase {
             new TestElement("p"),
             new TestElement("q"))));
 
-  public void testDistanceRecorder_unknownItemThrowsException() {
-    final DistanceRecordingTreeViewer<TestElement> distanceRecorder =
-        new DistanceRecordingTreeViewer<TestElement>(complexTree, new TestElementTreeViewer());
-    try {
-      distanceRecorder.getDistance(new TestElement("hello"));
-      fail("node should be unknown");
-    } catch (RuntimeException expected) { }
-  }
-
-  public void testDistanceRecorder_unprocessedChildThrowsException() {
-    final DistanceRecordingTreeViewer<TestElement> distanceRecorder =
-        new DistanceRecordingTreeViewer<TestElement>(complexTree, new TestElementTreeViewer());
-
-    try {
-      distanceRecorder.getDistance(complexTree.children.iterator().next());
-      fail("distance recorder hasnt processed this child yet, cannot know distance");
-    } catch (RuntimeException expected) { }
-  }
-
-  public void testDistanceRecorder_distanceKnownAfterChildrenCall() {
-    final DistanceRecordingTreeViewer<TestElement> distanceRecorder =
-        new DistanceRecordingTreeViewer<TestElement>(complexTree, new TestElementTreeViewer());
-
-    @SuppressWarnings("unused")
-    List<TestElement> createdForSideEffect = Lists.newArrayList(
-        distanceRecorder.children(complexTree));
-
-    assertThat(distanceRecorder.getDistance(complexTree), is(0));
-    assertThat(distanceRecorder.getDistance(complexTree.children.iterator().next()), is(1));
-  }
-
-  @SuppressWarnings("unchecked")
-  public void testComplexTree_Distances() {
-    final DistanceRecordingTreeViewer<TestElement> distanceRecorder =
-        new DistanceRecordingTreeViewer<TestElement>(complexTree, new TestElementTreeViewer());
-    Iterable<TestElement> complexIterable = TreeIterables.depthFirstTraversal(complexTree,
-        distanceRecorder);
-    Set<TestElement> complexSet = Sets.newHashSet(complexIterable);
-    Map<String, Integer> distancesByData = Maps.newHashMap();
-    for (TestElement e : complexSet) {
-      distancesByData.put(e.data, distanceRecorder.getDistance(e));
-    }
-
-    assertThat(distancesByData, allOf(
-        hasEntry("a", 0),
-        hasEntry("b", 1),
-        hasEntry("c", 2),
-        hasEntry("d", 3),
-        hasEntry("e", 3),
-        hasEntry("f", 4),
-        hasEntry("g", 2),
-        hasEntry("h", 2),
-        hasEntry("i", 3),
-        hasEntry("j", 4),
-        hasEntry("k", 5),
-        hasEntry("l", 1),
-        hasEntry("m", 1),
-        hasEntry("n", 1),
-        hasEntry("o", 2),
-        hasEntry("p", 3),
-        hasEntry("q", 3)));
-    assertThat(distancesByData.size(), is(17));
-
-    List<String> traversalOrder = Lists.newArrayList(Iterables.transform(
-        complexIterable,
-        new TestElementStringConvertor()));
-
-    // should be depth first if forwarding correctly.
-    assertThat(traversalOrder,
-        is((List<String>) Lists.newArrayList(
-            "a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l", "m", "n", "o", "p", "q")));
-  }
-
   public void testComplexTraversal_depthFirst() {
     List<String> breadthFirst = Lists.newArrayList(Iterables.transform(
         TreeIterables.depthFirstTraversal(complexTree, new TestElementTreeViewer()),
@@ -183,16 +121,13 @@ public class TreeIterablesTest extends TestCase {
   }
 
   @SuppressWarnings("unchecked")
-  public void testTrivial_distance() {
-    final DistanceRecordingTreeViewer<TestElement> distanceRecorder =
-        new DistanceRecordingTreeViewer<TestElement>(trivialTree, new TestElementTreeViewer());
-
-    Iterable<TestElement> trivialIterable = TreeIterables.depthFirstTraversal(trivialTree,
-        distanceRecorder);
-    Set<TestElement> trivialSet = Sets.newHashSet(trivialIterable);
+  public void testTrivial_indexedDistance() {
+    TreeIterables.DepthFirstIterator<TestElement> iterator =
+        new TreeIterables.DepthFirstIterator<TestElement>(
+            trivialTree, new IndexedTestElementTreeViewer());
     Map<String, Integer> distancesByData = Maps.newHashMap();
-    for (TestElement e : trivialSet) {
-      distancesByData.put(e.data, distanceRecorder.getDistance(e));
+    while (iterator.hasNext()) {
+      distancesByData.put(iterator.next().data, iterator.getDistance());
     }
 
     assertThat(distancesByData, allOf(
@@ -202,4 +137,86 @@ public class TreeIterablesTest extends TestCase {
         hasEntry("d", 3)));
     assertThat(distancesByData.size(), is(4));
   }
+
+  public void testComplexTraversal_indexedMatchesCollected() {
+    assertEquals(
+        Lists.newArrayList(TreeIterables.depthFirstTraversal(
+            complexTree, new TestElementTreeViewer())),
+        Lists.newArrayList(TreeIterables.depthFirstIndexedTraversal(
+            complexTree, new IndexedTestElementTreeViewer())));
+    assertEquals(
+        Lists.newArrayList(TreeIterables.breadthFirstTraversal(
+            complexTree, new TestElementTreeViewer())),
+        Lists.newArrayList(TreeIterables.breadthFirstIndexedTraversal(
+            complexTree, new IndexedTestElementTreeViewer())));
+  }
+
+  public void testRandomTrees_indexedMatchesCollected() {
+    Random random = new Random(4711);
+    for (int i = 0; i < 50; i++) {
+      // wide and deep enough to grow the traversal arrays and wrap the queue.
+      TestElement tree = randomTree(random, 0, 7);
+      assertEquals(
+          Lists.newArrayList(TreeIterables.depthFirstTraversal(
+              tree, new TestElementTreeViewer())),
+          Lists.newArrayList(TreeIterables.depthFirstIndexedTraversal(
+              tree, new IndexedTestElementTreeViewer())));
+      assertEquals(
+          Lists.newArrayList(TreeIterables.breadthFirstTraversal(
+              tree, new TestElementTreeViewer())),
+          Lists.newArrayList(TreeIterables.breadthFirstIndexedTraversal(
+              tree, new IndexedTestElementTreeViewer())));
+    }
+  }
+
+  public void testTrivialTraversal_indexed() {
+    List<String> depthFirst = Lists.newArrayList(Iterables.transform(
+        TreeIterables.depthFirstIndexedTraversal(trivialTree, new IndexedTestElementTreeViewer()),
+        new TestElementStringConvertor()));
+    assertThat(depthFirst, is((List<String>) Lists.newArrayList("a", "b", "c", "d")));
+    List<String> breadthFirst = Lists.newArrayList(Iterables.transform(
+        TreeIterables.breadthFirstIndexedTraversal(trivialTree, new IndexedTestElementTreeViewer()),
+        new TestElementStringConvertor()));
+    assertThat(breadthFirst, is((List<String>) Lists.newArrayList("a", "b", "c", "d")));
+  }
+
+  private static TestElement randomTree(Random random, int depth, int maxDepth) {
+    int childCount = depth == maxDepth ? 0 : random.nextInt(depth == 0 ? 40 : 5);
+    TestElement[] children = new TestElement[childCount];
+    for (int i = 0; i < childCount; i++) {
+      children[i] = randomTree(random, depth + 1, maxDepth);
+    }
+    return new TestElement(depth + "-" + random.nextInt(), children);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testComplexTree_indexedDistances() {
+    TreeIterables.DepthFirstIterator<TestElement> iterator =
+        new TreeIterables.DepthFirstIterator<TestElement>(
+            complexTree, new IndexedTestElementTreeViewer());
+    Map<String, Integer> distancesByData = Maps.newHashMap();
+    while (iterator.hasNext()) {
+      distancesByData.put(iterator.next().data, iterator.getDistance());
+    }
+
+    assertThat(distancesByData, allOf(
+        hasEntry("a", 0),
+        hasEntry("b", 1),
+        hasEntry("c", 2),
+        hasEntry("d", 3),
+        hasEntry("e", 3),
+        hasEntry("f", 4),
+        hasEntry("g", 2),
+        hasEntry("h", 2),
+        hasEntry("i", 3),
+        hasEntry("j", 4),
+        hasEntry("k", 5),
+        hasEntry("l", 1),
+        hasEntry("m", 1),
+        hasEntry("n", 1),
+        hasEntry("o", 2),
+        hasEntry("p", 3),
+        hasEntry("q", 3)));
+    assertThat(distancesByData.size(), is(17));
+  }
 }